@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream which reads raw recording data written by {@link BlockCompressedOutputStream}.
+ * It may be started at any block boundary (as recorded in the block table).
+ */
+public class BlockCompressedInputStream extends InputStream {
+    private final InputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] header = new byte[8];
+
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockLength;
+    private int blockPos;
+    private boolean closed;
+
+    /**
+     * @param in The block data, positioned at the start of a block
+     */
+    public BlockCompressedInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Creates a new block compressed input stream starting at the block at the given offset.
+     * @param in The block data, positioned at the start of the first block
+     * @param offset Offset of the block to start at, as recorded in the block table
+     * @return The input stream
+     * @throws IOException if an I/O error occurs
+     */
+    public static BlockCompressedInputStream startingAt(InputStream in, long offset) throws IOException {
+        ByteStreams.skipFully(in, offset);
+        return new BlockCompressedInputStream(in);
+    }
+
+    private boolean nextBlock() throws IOException {
+        int read = ByteStreams.read(in, header, 0, header.length);
+        if (read == 0) {
+            return false;
+        }
+        if (read < header.length) {
+            throw new EOFException();
+        }
+        int rawLength = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+        int compressedLength = (header[4] & 0xff) << 24 | (header[5] & 0xff) << 16 | (header[6] & 0xff) << 8 | (header[7] & 0xff);
+
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        if (block.length < rawLength) {
+            block = new byte[rawLength];
+        }
+        ByteStreams.readFully(in, compressed, 0, compressedLength);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < rawLength) {
+                int n = inflater.inflate(block, inflated, rawLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Truncated block");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid block", e);
+        }
+
+        blockLength = rawLength;
+        blockPos = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (blockPos == blockLength) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        return block[blockPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (blockPos == blockLength) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, blockLength - blockPos);
+        System.arraycopy(block, blockPos, b, off, n);
+        blockPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return blockLength - blockPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.end();
+        in.close();
+    }
+}
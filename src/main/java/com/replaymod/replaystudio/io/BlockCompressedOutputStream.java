@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.util.IOConsumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream which splits raw recording data into blocks of whole frames and deflates each of them independently.
+ * Any time window of the recording can then be read by only inflating the blocks it touches, see
+ * {@link BlockCompressedInputStream}.
+ *
+ * Each block is written as its uncompressed and compressed length (both 4-byte big endian integers) followed by the
+ * raw deflate data. Once closed, the block table (time of the first frame in each block and the offset of the block)
+ * is passed to the given consumer.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final IOConsumer<RecordingIndex> blockTableConsumer;
+    private final int blockSize;
+    private final RecordingIndex.Builder blockTable = new RecordingIndex.Builder();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private byte[] block;
+    private int blockLength;
+    private int blockTime;
+    private byte[] compressed = new byte[0];
+    private long offset;
+
+    /**
+     * Header of the current frame. Only valid while {@link #frameRemaining} is 0.
+     */
+    private final byte[] header = new byte[8];
+    private int headerLength;
+    private int frameRemaining;
+
+    private final byte[] singleByte = new byte[1];
+    private boolean closed;
+
+    public BlockCompressedOutputStream(OutputStream out, IOConsumer<RecordingIndex> blockTableConsumer) {
+        this(out, blockTableConsumer, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out The actual output stream the blocks are written to
+     * @param blockTableConsumer Called with the block table once this stream has been closed
+     * @param blockSize Size after which a new block is started. Blocks may be larger if a single frame is larger.
+     */
+    public BlockCompressedOutputStream(OutputStream out, IOConsumer<RecordingIndex> blockTableConsumer, int blockSize) {
+        this.out = out;
+        this.blockTableConsumer = blockTableConsumer;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            if (frameRemaining == 0) {
+                n = Math.min(header.length - headerLength, len);
+                System.arraycopy(b, off, header, headerLength, n);
+                headerLength += n;
+                if (headerLength == header.length) {
+                    startFrame();
+                }
+            } else {
+                n = Math.min(frameRemaining, len);
+                append(b, off, n);
+                frameRemaining -= n;
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void startFrame() throws IOException {
+        int time = readInt(header, 0);
+        int length = readInt(header, 4);
+
+        if (blockLength >= blockSize) {
+            flushBlock();
+        }
+        if (blockLength == 0) {
+            blockTime = time;
+        }
+
+        append(header, 0, header.length);
+        headerLength = 0;
+        frameRemaining = length;
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (blockLength + len > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + len));
+        }
+        System.arraycopy(b, off, block, blockLength, len);
+        blockLength += len;
+    }
+
+    private void flushBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, Math.max(compressed.length * 2, blockLength / 2 + 64));
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        writeInt(blockLength);
+        writeInt(compressedLength);
+        out.write(compressed, 0, compressedLength);
+
+        blockTable.add(blockTime, offset);
+        offset += 8 + compressedLength;
+        blockLength = 0;
+    }
+
+    private void writeInt(int x) throws IOException {
+        out.write(new byte[]{(byte) (x >>> 24), (byte) (x >>> 16), (byte) (x >>> 8), (byte) x});
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // Keep any trailing partial header, same as a plain recording would
+        append(header, 0, headerLength);
+        if (blockLength > 0) {
+            flushBlock();
+        }
+        deflater.end();
+        out.close();
+
+        blockTableConsumer.consume(blockTable.build());
+    }
+}
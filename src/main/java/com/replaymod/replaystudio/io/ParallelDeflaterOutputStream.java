@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream which produces a single raw deflate stream (as used in zip files) by compressing fixed-size chunks of
+ * its input in parallel.
+ * Each chunk is compressed independently (using the tail of the previous chunk as preset dictionary to retain most of
+ * the compression ratio) and terminated by a sync flush, so the compressed chunks can simply be concatenated.
+ * This is the approach taken by pigz.
+ *
+ * Without an executor, no chunking takes place and the data is compressed as a single regular deflate stream, exactly
+ * like {@link java.util.zip.DeflaterOutputStream} would.
+ *
+ * The CRC32 and sizes of the data are tracked as well, so the result can be used for zip entries directly.
+ * Calling {@link #finish()} completes the deflate stream without closing the underlying output stream.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final int level;
+    private final int chunkSize;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Deflater used for the whole stream if there is no executor, {@code null} otherwise.
+     */
+    private final Deflater deflater;
+    private final byte[] deflaterBuffer;
+
+    private byte[] chunk;
+    private int chunkLength;
+    private byte[] dictionary;
+    private int dictionaryLength;
+
+    private long bytesRead;
+    private long bytesWritten;
+    private boolean finished;
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * @param out The output stream to which the deflate stream is written
+     * @param executor The executor on which chunks are compressed or {@code null} to compress the whole stream on the
+     *                 calling thread without splitting it into chunks
+     * @param parallelism Amount of chunks which may be compressed concurrently, should match the size of the executor
+     * @param level The compression level, see {@link Deflater}
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int parallelism, int level) {
+        this(out, executor, parallelism, level, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int parallelism, int level, int chunkSize) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = Math.max(1, parallelism) * 2;
+        this.level = level;
+        this.chunkSize = chunkSize;
+        if (executor == null) {
+            this.deflater = new Deflater(level, true);
+            this.deflaterBuffer = new byte[8 * 1024];
+        } else {
+            this.deflater = null;
+            this.deflaterBuffer = null;
+            this.chunk = new byte[chunkSize];
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+        crc.update(b, off, len);
+        bytesRead += len;
+        if (deflater != null) {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, chunkSize - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, n);
+            chunkLength += n;
+            off += n;
+            len -= n;
+            if (chunkLength == chunkSize) {
+                submitChunk(false);
+            }
+        }
+    }
+
+    private void submitChunk(boolean last) throws IOException {
+        byte[] input = chunk;
+        int inputLength = chunkLength;
+        byte[] dict = dictionary;
+        int dictLength = dictionaryLength;
+
+        // Chunks are handed to other threads, so we need a fresh one instead of re-using it
+        dictionary = input;
+        dictionaryLength = inputLength;
+        chunk = new byte[chunkSize];
+        chunkLength = 0;
+
+        pending.add(executor.submit(() -> compress(input, inputLength, dict, dictLength, last)));
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private byte[] compress(byte[] input, int inputLength, byte[] dict, int dictLength, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                int dictOffset = Math.max(0, dictLength - DICTIONARY_SIZE);
+                deflater.setDictionary(dict, dictOffset, dictLength - dictOffset);
+            }
+            deflater.setInput(input, 0, inputLength);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] buf = new byte[Math.max(64, inputLength / 2)];
+            int length = 0;
+            while (true) {
+                if (length == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int space = buf.length - length;
+                int n = deflater.deflate(buf, length, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += n;
+                if (last ? deflater.finished() : n < space) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(buf, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void deflate() throws IOException {
+        int n = deflater.deflate(deflaterBuffer, 0, deflaterBuffer.length);
+        if (n > 0) {
+            out.write(deflaterBuffer, 0, n);
+            bytesWritten += n;
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Future<byte[]> future = pending.poll();
+        try {
+            writeCompressed(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress chunk", e.getCause());
+        }
+    }
+
+    private void writeCompressed(byte[] compressed) throws IOException {
+        out.write(compressed);
+        bytesWritten += compressed.length;
+    }
+
+    /**
+     * Compresses any remaining data and completes the deflate stream without closing the underlying output stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            deflater.end();
+            finished = true;
+            return;
+        }
+        submitChunk(true);
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        finished = true;
+    }
+
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Provides access to the raw (i.e. still compressed) data of entries in a zip file.
+ * This allows entries to be copied into another zip file (see {@link ZipWriter#putRawEntry(ZipEntry, InputStream)})
+ * without inflating and deflating them again.
+ * Metadata like CRC and sizes should be taken from a regular {@link java.util.zip.ZipFile}.
+ */
+public class RawZipFile implements Closeable {
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long centralDirectoryOffset;
+
+    public RawZipFile(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        try {
+            readCentralDirectory();
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long length = file.length();
+        int tailLength = (int) Math.min(length, 22 + 0xFFFF);
+        byte[] tail = new byte[tailLength];
+        file.seek(length - tailLength);
+        file.readFully(tail);
+
+        int end = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (getInt(tail, i) == 0x06054b50) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+        long centralDirectorySize = getInt(tail, end + 12);
+        centralDirectoryOffset = getInt(tail, end + 16);
+
+        if (end >= 20 && getInt(tail, end - 20) == 0x07064b50) {
+            byte[] record = new byte[56];
+            file.seek(getLong(tail, end - 20 + 8));
+            file.readFully(record);
+            if (getInt(record, 0) == 0x06064b50) {
+                centralDirectorySize = getLong(record, 40);
+                centralDirectoryOffset = getLong(record, 48);
+            }
+        }
+
+        byte[] cen = new byte[(int) centralDirectorySize];
+        file.seek(centralDirectoryOffset);
+        file.readFully(cen);
+
+        int pos = 0;
+        while (pos + 46 <= cen.length && getInt(cen, pos) == 0x02014b50) {
+            int flag = getShort(cen, pos + 8);
+            long compressedSize = getInt(cen, pos + 20);
+            long size = getInt(cen, pos + 24);
+            int nameLength = getShort(cen, pos + 28);
+            int extraLength = getShort(cen, pos + 30);
+            int commentLength = getShort(cen, pos + 32);
+            long offset = getInt(cen, pos + 42);
+            String name = new String(cen, pos + 46, nameLength, StandardCharsets.UTF_8);
+
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || offset == ZIP64_MAGIC) {
+                int extra = pos + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = getShort(cen, extra);
+                    int dataLength = getShort(cen, extra + 2);
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+                        if (size == ZIP64_MAGIC) {
+                            size = getLong(cen, field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = getLong(cen, field);
+                            field += 8;
+                        }
+                        if (offset == ZIP64_MAGIC) {
+                            offset = getLong(cen, field);
+                        }
+                        break;
+                    }
+                    extra += 4 + dataLength;
+                }
+            }
+
+            int headerLength = 46 + nameLength + extraLength + commentLength;
+            Entry entry = new Entry();
+            entry.localHeaderOffset = offset;
+            // Assumes the local header carries the same extra data as the central one, good enough for an estimate
+            entry.length = 30 + nameLength + extraLength + compressedSize;
+            if ((flag & (1 << 3)) != 0) {
+                boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+                entry.length += zip64 ? 24 : 16;
+            }
+            entry.centralDirectoryHeader = new byte[headerLength];
+            System.arraycopy(cen, pos, entry.centralDirectoryHeader, 0, headerLength);
+            entries.put(name, entry);
+            pos += headerLength;
+        }
+    }
+
+    /**
+     * Returns the offset of the central directory, i.e. the end of the last entry.
+     * @return Offset of the central directory
+     */
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Estimates the amount of bytes in front of the central directory which do not belong to any entry.
+     * Such space is left behind when entries are replaced by appending them to the file.
+     * @param discarded Entries which are about to be replaced or removed and should be considered unused
+     * @return Estimated amount of unused bytes
+     */
+    public long getUnusedBytes(Collection<String> discarded) {
+        long used = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (!discarded.contains(e.getKey())) {
+                used += e.getValue().length;
+            }
+        }
+        return Math.max(0, centralDirectoryOffset - used);
+    }
+
+    /**
+     * Returns the raw central directory headers of all entries in this file.
+     * @return Map from entry name to central directory header, in order of the central directory
+     */
+    Map<String, byte[]> getCentralDirectoryHeaders() {
+        Map<String, byte[]> headers = new LinkedHashMap<>();
+        entries.forEach((name, entry) -> headers.put(name, entry.centralDirectoryHeader));
+        return headers;
+    }
+
+    /**
+     * Returns an input stream for the raw data of the given entry.
+     * @param entry The entry, as returned by a {@link java.util.zip.ZipFile} of the same file
+     * @return The raw input stream or {@code null} if the entry is unknown
+     * @throws IOException if an I/O error occurs
+     */
+    public InputStream getRawInputStream(ZipEntry entry) throws IOException {
+        Entry rawEntry = entries.get(entry.getName());
+        if (rawEntry == null || entry.getCompressedSize() == -1) {
+            return null;
+        }
+        long localHeaderOffset = rawEntry.localHeaderOffset;
+
+        byte[] header = new byte[30];
+        readFully(ByteBuffer.wrap(header), localHeaderOffset);
+        if (getInt(header, 0) != 0x04034b50) {
+            throw new ZipException("Invalid local header for " + entry.getName());
+        }
+        long start = localHeaderOffset + 30 + getShort(header, 26) + getShort(header, 28);
+        long end = start + entry.getCompressedSize();
+
+        return new InputStream() {
+            private long pos = start;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (pos >= end) {
+                    return -1;
+                }
+                int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                pos += read;
+                return read;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, end - pos));
+                pos += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static long getInt(byte[] b, int off) {
+        return getShort(b, off) | (long) getShort(b, off + 2) << 16;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return getInt(b, off) | getInt(b, off + 4) << 32;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static class Entry {
+        private long localHeaderOffset;
+        private long length;
+        private byte[] centralDirectoryHeader;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.io.stream.StreamNetInput;
+import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
+import com.replaymod.replaystudio.replay.ReplayFile;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A sparse index from timestamps to byte offsets of frames in the raw recording data.
+ * Also used as the block table of {@link BlockCompressedOutputStream}, in which case the offsets point to blocks.
+ * An entry is created for the first frame after every {@link #INTERVAL_TIME} milliseconds or {@link #INTERVAL_BYTES}
+ * bytes, whichever comes first.
+ *
+ * The index is built once by scanning the frame headers (packets are not decoded) and then cached in the replay file,
+ * see {@link ReplayFile#getRecordingIndex()}.
+ * It allows tools which only need raw frames from a specific time window to skip directly to that window, see
+ * {@link ReplayFile#getRawPacketData(int)}.
+ */
+public class RecordingIndex {
+    private static final int CACHE_VERSION = 1;
+
+    public static final int INTERVAL_TIME = 1000;
+    public static final int INTERVAL_BYTES = 256 * 1024;
+
+    private final int[] times;
+    private final long[] offsets;
+
+    private RecordingIndex(int[] times, long[] offsets) {
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Builds a new index by scanning all frames in the given raw recording data.
+     * @param rawIn The raw recording data, positioned at its first frame
+     * @return The index
+     * @throws IOException if an i/o error occurs
+     */
+    public static RecordingIndex build(InputStream rawIn) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn, 64 * 1024));
+        Builder builder = new Builder();
+
+        long offset = 0;
+        int lastTime = 0;
+        long lastOffset = 0;
+        while (true) {
+            int time;
+            int length;
+            try {
+                time = in.readInt();
+                length = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+
+            if (builder.size == 0 || time - lastTime >= INTERVAL_TIME || offset - lastOffset >= INTERVAL_BYTES) {
+                builder.add(lastTime = time, lastOffset = offset);
+            }
+
+            ByteStreams.skipFully(in, length);
+            offset += 8 + length;
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Reads an index previously written via {@link #write(OutputStream)}.
+     * @param rawIn The input stream
+     * @return The index or {@code null} if it was written by an incompatible version
+     * @throws IOException if an i/o error occurs
+     */
+    public static RecordingIndex read(InputStream rawIn) throws IOException {
+        NetInput in = new StreamNetInput(rawIn);
+        if (in.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
+        int size = in.readVarInt();
+        int[] times = new int[size];
+        long[] offsets = new long[size];
+        int time = 0;
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            times[i] = time += in.readVarInt();
+            offsets[i] = offset += in.readVarLong();
+        }
+        return new RecordingIndex(times, offsets);
+    }
+
+    public void write(OutputStream rawOut) throws IOException {
+        NetOutput out = new StreamNetOutput(rawOut);
+        out.writeVarInt(CACHE_VERSION);
+        out.writeVarInt(times.length);
+        int time = 0;
+        long offset = 0;
+        for (int i = 0; i < times.length; i++) {
+            out.writeVarInt(times[i] - time);
+            out.writeVarLong(offsets[i] - offset);
+            time = times[i];
+            offset = offsets[i];
+        }
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public int getTime(int index) {
+        return times[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Returns the offset of the last indexed frame such that all frames with a timestamp of at least {@code time}
+     * follow it.
+     * @param time The timestamp
+     * @return The byte offset in the raw recording data
+     */
+    public long floorOffset(int time) {
+        // Frames may share the same timestamp, so we need the last entry strictly before the target time
+        int i = Arrays.binarySearch(times, time);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            while (i > 0 && times[i - 1] == time) i--;
+        }
+        return i > 0 ? offsets[i - 1] : 0;
+    }
+
+    public static class Builder {
+        private int[] times = new int[64];
+        private long[] offsets = new long[64];
+        private int size;
+
+        public void add(int time, long offset) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            times[size] = time;
+            offsets[size] = offset;
+            size++;
+        }
+
+        public RecordingIndex build() {
+            return new RecordingIndex(Arrays.copyOf(times, size), Arrays.copyOf(offsets, size));
+        }
+    }
+}
@@ -42,13 +42,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.UUID;
 
-import static com.replaymod.replaystudio.util.Utils.readInt;
-
 /**
  * Input stream for reading packet data.
  */
@@ -56,6 +54,15 @@ public class ReplayInputStream extends InputStream {
 
     private static final ByteBufAllocator ALLOC = PooledByteBufAllocator.DEFAULT;
 
+    /**
+     * Size of the blocks in which raw data is read from the input stream.
+     * Packets are handed out as slices of these blocks, so any packet which is retained keeps its whole block alive.
+     * The stream only holds on to the block it is currently reading from. Once that has been read, it is re-used in
+     * place if no packet references it any more, otherwise it is left to those packets and freed with the last of them.
+     * Frames larger than this get a block of their own.
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
     private PacketTypeRegistry rawRegistry;
     private PacketTypeRegistry registry;
     private Registries mcRegistries; // 1.20.2+
@@ -66,6 +73,26 @@ public class ReplayInputStream extends InputStream {
      */
     private final InputStream in;
 
+    /**
+     * Raw data which has been read from {@link #in} but not yet been decoded into packets.
+     */
+    private ByteBuf block;
+
+    /**
+     * Whether {@link #in} has reached its end.
+     */
+    private boolean endOfInput;
+
+    /**
+     * Offset in {@link #in} of the next frame which has not yet been read into {@link #buffer}.
+     */
+    private long position;
+
+    /**
+     * Offset in {@link #in} of the frame which the packets in {@link #buffer} have been decoded from.
+     */
+    private long bufferPosition;
+
     /**
      * The instance of the ViaVersion packet converter in use.
      */
@@ -85,7 +112,7 @@ public class ReplayInputStream extends InputStream {
     /**
      * Packets which have already been read from the input but have not yet been requested via {@link #readPacket()}.
      */
-    private Queue<PacketData> buffer = new ArrayDeque<>();
+    private Deque<PacketData> buffer = new ArrayDeque<>();
 
     /**
      * Creates a new replay input stream for reading raw packet data.
@@ -120,11 +147,22 @@ public class ReplayInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
+        if (block != null && block.isReadable()) {
+            return block.readUnsignedByte();
+        }
         return in.read();
     }
 
     @Override
     public void close() throws IOException {
+        if (block != null) {
+            block.release();
+            block = null;
+        }
+        for (PacketData packetData : buffer) {
+            packetData.release();
+        }
+        buffer.clear();
         in.close();
     }
 
@@ -142,56 +180,118 @@ public class ReplayInputStream extends InputStream {
         return buffer.poll();
     }
 
+    /**
+     * Pushes back a packet previously returned by {@link #readPacket()}, so it is returned again by the next call.
+     * @param packetData The packet
+     */
+    public void unreadPacket(PacketData packetData) {
+        buffer.addFirst(packetData);
+    }
+
+    /**
+     * Returns the offset in the raw packet data of the first frame which has not been read completely, i.e. from which
+     * packets are still to be returned by {@link #readPacket()}. All packets of a frame have the same time, so after
+     * {@link #unreadPacket(PacketData) pushing back} the first packet at a new time, this is where that time starts.
+     * Only packets of the frame read last may have been pushed back for this to be accurate.
+     * @return The offset in bytes, see {@link #skipRaw(long)}
+     */
+    public long getPosition() {
+        return buffer.isEmpty() ? position : bufferPosition;
+    }
+
+    /**
+     * Skips ahead to the given offset in the raw packet data without decoding any of the packets before it. Only the
+     * protocol state (and registries on 1.20.2+) are tracked, just like when reading them.
+     * This is not possible if the packets need to be converted by ViaVersion, which has to see every one of them.
+     * @param offset Offset of a frame as returned by {@link #getPosition()}, not before the current position
+     * @return {@code true} if the stream is now positioned at the given offset, {@code false} if nothing has been
+     * skipped because the packets need to be converted and therefore have to be skipped by reading them instead
+     * @throws IOException if an I/O error occurs or the offset is not at the start of a frame
+     */
+    public boolean skipRaw(long offset) throws IOException {
+        if (offset < getPosition()) {
+            throw new IllegalArgumentException("Cannot skip back from " + getPosition() + " to " + offset);
+        }
+        if (!viaVersionConverter.isPassThrough()) {
+            return false;
+        }
+        if (offset == getPosition()) {
+            return true;
+        }
+
+        for (PacketData packetData : buffer) {
+            packetData.release();
+        }
+        buffer.clear();
+
+        while (position < offset) {
+            if (!ensureReadable(8)) {
+                throw new EOFException("Packet data ended at " + position + " before " + offset);
+            }
+            block.readInt(); // time
+            int length = block.readInt();
+            if (!ensureReadable(length)) {
+                throw new EOFException();
+            }
+            position += 8 + length;
+            if (length == 0) {
+                continue;
+            }
+
+            ByteBuf buf = block.readSlice(length);
+            int rawPacketId = new ByteBufNetInput(buf).readVarInt();
+            Packet rawPacket = new Packet(rawRegistry, rawPacketId, buf);
+            updateRawState(rawPacket);
+            // Without conversion, the packets we would have returned are the raw ones
+            updateState(rawPacket.getType());
+        }
+        if (position != offset) {
+            throw new IOException("Offset " + offset + " is not at the start of a frame");
+        }
+        return true;
+    }
+
     private void fillBuffer() throws IOException {
         while (buffer.isEmpty()) {
-            int next = readInt(in);
-            int length = readInt(in);
-            if (next == -1 || length == -1) {
+            if (!ensureReadable(8)) {
                 break; // reached end of stream
             }
+            long framePosition = position;
+            int next = block.readInt();
+            int length = block.readInt();
+            position += 8;
             if (length == 0) {
                 continue; // skip empty segments
             }
-
-            ByteBuf buf = ALLOC.buffer(length);
-            while (length > 0) {
-                int read = buf.writeBytes(in, length);
-                if (read == -1) {
-                    throw new EOFException();
-                }
-                length -= read;
+            if (!ensureReadable(length)) {
+                throw new EOFException();
             }
+            position += length;
+
+            ByteBuf buf = block.readRetainedSlice(length);
 
             int rawPacketId = new ByteBufNetInput(buf).readVarInt();
             Packet rawPacket = new Packet(rawRegistry, rawPacketId, buf);
-            switch (rawPacket.getType()) {
-                case LoginSuccess:
-                    rawRegistry = rawRegistry.withLoginSuccess();
-                    break;
-                case Reconfigure:
-                    rawRegistry = rawRegistry.withState(State.CONFIGURATION);
-                    break;
-                case ConfigCustomPayload:
-                case ConfigSelectKnownPacks:
-                case ConfigRegistries:
-                    mcRegistries = mcRegistriesBuilder.update(rawPacket, mcRegistries);
-                    break;
-                case ConfigFinish:
-                    rawRegistry = rawRegistry.withState(State.PLAY);
-                    mcRegistries = mcRegistriesBuilder.finish(mcRegistries);
-                    break;
-                case JoinGame:
-                    PacketJoinGame joinGame = PacketJoinGame.read(rawPacket, mcRegistries);
-                    // Set entity id to an arbitrary negative value (which are invalid to use, so we know it's unused)
-                    // so ViaVersion doesn't try to fixup the 1.8.9 armor packets for the recording player (we already
-                    // record those properly).
-                    // Using the bitwise negation because we still want to be able to read the id later in SquashFilter.
-                    joinGame.entityId = ~joinGame.entityId;
-                    joinGame.gameMode = 3; // Spectator
-                    try (Packet.Writer writer = rawPacket.overwrite()) {
-                        joinGame.write(rawPacket, writer);
-                    }
-                    break;
+            updateRawState(rawPacket);
+            if (rawPacket.getType() == PacketType.JoinGame) {
+                // We're about to re-write this packet in place, so it needs its own buffer instead of a slice
+                // which would be unable to grow
+                ByteBuf owned = buf.copy(0, buf.writerIndex());
+                owned.readerIndex(buf.readerIndex());
+                buf.release();
+                buf = owned;
+                rawPacket = new Packet(rawRegistry, rawPacketId, buf);
+
+                PacketJoinGame joinGame = PacketJoinGame.read(rawPacket, mcRegistries);
+                // Set entity id to an arbitrary negative value (which are invalid to use, so we know it's unused)
+                // so ViaVersion doesn't try to fixup the 1.8.9 armor packets for the recording player (we already
+                // record those properly).
+                // Using the bitwise negation because we still want to be able to read the id later in SquashFilter.
+                joinGame.entityId = ~joinGame.entityId;
+                joinGame.gameMode = 3; // Spectator
+                try (Packet.Writer writer = rawPacket.overwrite()) {
+                    joinGame.write(rawPacket, writer);
+                }
             }
 
             buf.resetReaderIndex();
@@ -214,31 +314,102 @@ public class ReplayInputStream extends InputStream {
                     continue; // They aren't needed in a replay
                 }
 
-                if (type == PacketType.LoginSuccess) {
-                    loginPhase = false;
-                    registry = registry.withLoginSuccess();
-                    // ViaVersion must wait for the client to confirm the switch, we must simulate that acknowledgement
-                    if (registry.atLeast(ProtocolVersion.v1_20_2)) {
-                        viaVersionConverter.loginAcknowledged();
-                    }
-                }
+                updateState(type);
                 if ((loginPhase || type == PacketType.LoginSuccess) && !outputLoginPhase) {
                     packet.release();
                     continue;
                 }
-                if (type == PacketType.ConfigFinish) {
-                    registry = registry.withState(State.PLAY);
-                    // ViaVersion must wait for the client to confirm the switch, we must simulate that acknowledgement
-                    if (registry.atLeast(ProtocolVersion.v1_20_2)) {
-                        viaVersionConverter.finishConfiguration();
-                    }
+                buffer.offer(new PacketData(next, packet));
+                bufferPosition = framePosition;
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the protocol state and registries of the raw packet data.
+     * @param rawPacket The next raw packet, as read from the input stream
+     */
+    private void updateRawState(Packet rawPacket) throws IOException {
+        switch (rawPacket.getType()) {
+            case LoginSuccess:
+                rawRegistry = rawRegistry.withLoginSuccess();
+                break;
+            case Reconfigure:
+                rawRegistry = rawRegistry.withState(State.CONFIGURATION);
+                break;
+            case ConfigCustomPayload:
+            case ConfigSelectKnownPacks:
+            case ConfigRegistries:
+                mcRegistries = mcRegistriesBuilder.update(rawPacket, mcRegistries);
+                break;
+            case ConfigFinish:
+                rawRegistry = rawRegistry.withState(State.PLAY);
+                mcRegistries = mcRegistriesBuilder.finish(mcRegistries);
+                break;
+        }
+    }
+
+    /**
+     * Keeps track of the protocol state of the packets returned from this stream.
+     * @param type Type of the next packet, after conversion
+     */
+    private void updateState(PacketType type) throws IOException {
+        switch (type) {
+            case LoginSuccess:
+                loginPhase = false;
+                registry = registry.withLoginSuccess();
+                // ViaVersion must wait for the client to confirm the switch, we must simulate that acknowledgement
+                if (registry.atLeast(ProtocolVersion.v1_20_2)) {
+                    viaVersionConverter.loginAcknowledged();
                 }
-                if (type == PacketType.Reconfigure) {
-                    registry = registry.withState(State.CONFIGURATION);
+                break;
+            case ConfigFinish:
+                registry = registry.withState(State.PLAY);
+                // ViaVersion must wait for the client to confirm the switch, we must simulate that acknowledgement
+                if (registry.atLeast(ProtocolVersion.v1_20_2)) {
+                    viaVersionConverter.finishConfiguration();
                 }
-                buffer.offer(new PacketData(next, packet));
+                break;
+            case Reconfigure:
+                registry = registry.withState(State.CONFIGURATION);
+                break;
+        }
+    }
+
+    /**
+     * Makes sure that at least the given amount of bytes is readable from {@link #block}, reading another block from
+     * the input stream if necessary.
+     * @param length The amount of bytes required
+     * @return {@code true} if enough bytes are available, {@code false} if the input stream ended before that
+     * @throws IOException if an I/O error occurs.
+     */
+    private boolean ensureReadable(int length) throws IOException {
+        if (block != null && block.readableBytes() >= length) {
+            return true;
+        }
+        if (endOfInput) {
+            return false;
+        }
+
+        if (block != null && block.refCnt() == 1 && block.capacity() >= length) {
+            // No packets reference the current block any more, so we can simply re-use it
+            block.discardReadBytes();
+        } else {
+            ByteBuf newBlock = ALLOC.buffer(Math.max(BLOCK_SIZE, length));
+            if (block != null) {
+                newBlock.writeBytes(block);
+                block.release();
+            }
+            block = newBlock;
+        }
+
+        while (block.readableBytes() < length) {
+            if (block.writeBytes(in, block.writableBytes()) == -1) {
+                endOfInput = true;
+                return false;
             }
         }
+        return true;
     }
 
     /**
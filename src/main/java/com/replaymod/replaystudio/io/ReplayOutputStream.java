@@ -34,12 +34,19 @@ import com.replaymod.replaystudio.replay.ReplayMetaData;
 import com.replaymod.replaystudio.studio.ReplayStudio;
 import com.replaymod.replaystudio.lib.viaversion.api.protocol.version.ProtocolVersion;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static com.replaymod.replaystudio.util.Utils.writeInt;
 
@@ -59,14 +66,25 @@ public class ReplayOutputStream extends OutputStream {
 
     /**
      * The actual output stream.
-     * If we write to a ZIP output stream, this is the same as {@link #zipOut}.
+     * If we write to a ZIP file, this is the output stream of the current entry in {@link #zipOut} (or
+     * {@link #blocksOut} while writing the block compressed recording).
      */
-    private final OutputStream out;
+    private OutputStream out;
 
     /**
-     * If we write to a ZIP output stream instead of just raw data, this holds a reference to that output stream.
+     * If we write to a ZIP file instead of just raw data, this holds a reference to its writer.
      */
-    private final ZipOutputStream zipOut;
+    private final ZipWriter zipOut;
+
+    /**
+     * If we write a block compressed recording to a ZIP output stream, this holds a reference to the stream writing
+     * the blocks to {@link #blocksFile} until the recording is finished.
+     * Stored entries need to know their size and CRC up front, so the blocks can only be added to the zip at the end.
+     */
+    private BlockCompressedOutputStream blocksOut;
+    private File blocksFile;
+    private CheckedOutputStream blocksFileOut;
+    private RecordingIndex blockTable;
 
     /**
      * Duration of the replay written. This gets updated with each packet and is afterwards used to set the
@@ -96,6 +114,35 @@ public class ReplayOutputStream extends OutputStream {
      * @throws IOException If an exception occurred while writing the first entry to the zip output stream
      */
     public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData) throws IOException {
+        this(version, out, metaData, false);
+    }
+
+    /**
+     * Creates a new replay output stream which will write its packets and the specified meta data
+     * in a zip output stream according to the MCPR format.
+     *
+     * @param out The actual output stream
+     * @param metaData The meta data written to the output
+     * @param blockCompressed Whether the packets should be stored as independently compressed blocks,
+     *                        see {@link BlockCompressedOutputStream}
+     * @throws IOException If an exception occurred while writing the first entry to the zip output stream
+     */
+    public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData, boolean blockCompressed) throws IOException {
+        this(version, out, metaData, blockCompressed, 1);
+    }
+
+    /**
+     * Creates a new replay output stream which will write its packets and the specified meta data
+     * in a zip output stream according to the MCPR format.
+     *
+     * @param out The actual output stream
+     * @param metaData The meta data written to the output
+     * @param blockCompressed Whether the packets should be stored as independently compressed blocks,
+     *                        see {@link BlockCompressedOutputStream}
+     * @param compressionThreads Amount of threads used to compress zip entries, see {@link ZipWriter}
+     * @throws IOException If an exception occurred while writing the first entry to the zip output stream
+     */
+    public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData, boolean blockCompressed, int compressionThreads) throws IOException {
         Studio studio = new ReplayStudio();
         if (metaData == null) {
             metaData = new ReplayMetaData();
@@ -104,15 +151,22 @@ public class ReplayOutputStream extends OutputStream {
             metaData.setDate(System.currentTimeMillis());
         }
         metaData.setFileFormat("MCPR");
-        metaData.setFileFormatVersion(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
+        metaData.setFileFormatVersion(blockCompressed
+                ? ReplayMetaData.BLOCK_COMPRESSED_FILE_FORMAT_VERSION
+                : ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
         metaData.setProtocolVersion(version.getOriginalVersion());
         metaData.setGenerator("ReplayStudio v" + studio.getVersion());
         this.metaData = metaData;
 
-        this.out = zipOut = new ZipOutputStream(out);
-
-        zipOut.putNextEntry(new ZipEntry("recording.tmcpr"));
+        this.zipOut = new ZipWriter(out, compressionThreads);
 
+        if (blockCompressed) {
+            blocksFile = Files.createTempFile("replaystudio", "blocks").toFile();
+            blocksFileOut = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(blocksFile)), new CRC32());
+            this.out = blocksOut = new BlockCompressedOutputStream(blocksFileOut, table -> blockTable = table);
+        } else {
+            this.out = zipOut.putNextEntry("recording.tmcpr");
+        }
     }
 
     @Override
@@ -120,6 +174,11 @@ public class ReplayOutputStream extends OutputStream {
         out.write(b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
     /**
      * Writes the specified packet data to the underlying output stream.
      * @param data The packet data
@@ -179,23 +238,59 @@ public class ReplayOutputStream extends OutputStream {
      */
     public void nextEntry(String name) throws IOException {
         if (zipOut != null) {
-            zipOut.closeEntry();
-            zipOut.putNextEntry(new ZipEntry(name));
+            if (blocksOut != null) {
+                finishBlocks();
+            } else {
+                out.close();
+            }
+            out = zipOut.putNextEntry(name);
         } else {
             throw new UnsupportedOperationException("Cannot start new entry when writing raw replay output.");
         }
     }
 
+    /**
+     * Finishes the block compressed recording and copies it into the zip output stream.
+     */
+    private void finishBlocks() throws IOException {
+        blocksOut.close();
+        blocksOut = null;
+        out = null;
+
+        try {
+            ZipEntry entry = new ZipEntry("recording.tmcpr.blocks");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(blocksFile.length());
+            entry.setCompressedSize(blocksFile.length());
+            entry.setCrc(blocksFileOut.getChecksum().getValue());
+            try (InputStream in = new FileInputStream(blocksFile)) {
+                zipOut.putRawEntry(entry, in);
+            }
+
+            try (OutputStream tableOut = zipOut.putNextEntry("recording.tmcpr.blocks.index")) {
+                blockTable.write(tableOut);
+            }
+        } finally {
+            Files.deleteIfExists(blocksFile.toPath());
+        }
+    }
+
     @Override
     public void close() throws IOException {
         if (zipOut != null) {
-            zipOut.closeEntry();
+            if (blocksOut != null) {
+                finishBlocks();
+            } else {
+                out.close();
+            }
 
             metaData.setDuration(duration);
-            zipOut.putNextEntry(new ZipEntry("metaData.json"));
-            zipOut.write(GSON.toJson(metaData).getBytes());
-            zipOut.closeEntry();
+            try (OutputStream metaOut = zipOut.putNextEntry("metaData.json")) {
+                metaOut.write(GSON.toJson(metaData).getBytes());
+            }
+            zipOut.close();
+        } else {
+            out.close();
         }
-        out.close();
     }
 }
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Minimal zip file writer.
+ * Unlike {@link java.util.zip.ZipOutputStream}, it can deflate entries on multiple threads (see
+ * {@link ParallelDeflaterOutputStream}) and can write entries which have already been compressed (e.g. when copying
+ * them from another zip file) without inflating and deflating them again.
+ * Zip64 extensions are used where required.
+ * Existing zip files may also be opened for appending (see {@link #append(File, int)}).
+ */
+public class ZipWriter implements Closeable {
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final OutputStream out;
+    private final int threads;
+    private final ExecutorService executor;
+    private final List<Entry> entries = new ArrayList<>();
+    private long written;
+    private OutputStream currentEntry;
+    private boolean closed;
+
+    /**
+     * Channel of the file which is being appended to, {@code null} if not in append mode.
+     */
+    private FileChannel appendChannel;
+
+    public ZipWriter(OutputStream out) {
+        this(out, 1);
+    }
+
+    /**
+     * @param out The output stream to write the zip file to
+     * @param threads Amount of threads used to compress entries, 1 to compress on the calling thread
+     */
+    public ZipWriter(OutputStream out, int threads) {
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.threads = threads;
+        if (threads > 1) {
+            ThreadFactory threadFactory = Executors.defaultThreadFactory();
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = threadFactory.newThread(runnable);
+                thread.setName("zip-deflater-" + thread.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Opens an existing zip file for appending.
+     * All entries of the existing file are kept (unless replaced or removed via {@link #removeEntry(String)}) without
+     * being moved, new entries are written in place of the old central directory and a new central directory is
+     * written on {@link #close()}.
+     * Replaced and removed entries remain in the file as unused space until it is rewritten.
+     * Note that the file is invalid from the moment the first new entry is written until the writer has been closed.
+     * @param file The zip file
+     * @param threads Amount of threads used to compress entries, 1 to compress on the calling thread
+     * @return The zip writer
+     */
+    public static ZipWriter append(File file, int threads) throws IOException {
+        long offset;
+        Map<String, byte[]> headers;
+        try (RawZipFile zipFile = new RawZipFile(file)) {
+            offset = zipFile.getCentralDirectoryOffset();
+            headers = zipFile.getCentralDirectoryHeaders();
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(offset);
+        ZipWriter writer = new ZipWriter(Channels.newOutputStream(channel), threads);
+        writer.appendChannel = channel;
+        writer.written = offset;
+        headers.forEach((name, header) -> {
+            Entry entry = new Entry(name, 0, 0);
+            entry.centralDirectoryHeader = header;
+            writer.entries.add(entry);
+        });
+        return writer;
+    }
+
+    /**
+     * Removes an entry which has been written previously (or which existed before the file was opened for appending).
+     * Its data is not removed from the file, it just won't be listed in the central directory.
+     * @param name Name of the entry
+     */
+    public void removeEntry(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        entries.removeIf(entry -> Arrays.equals(entry.name, bytes));
+    }
+
+    /**
+     * Starts a new deflated entry.
+     * The entry is complete once the returned output stream has been closed, no other entry may be started before that.
+     * @param name Name of the entry
+     * @return Output stream for the uncompressed entry data
+     */
+    public OutputStream putNextEntry(String name) throws IOException {
+        return putNextEntry(name, System.currentTimeMillis());
+    }
+
+    public OutputStream putNextEntry(String name, long time) throws IOException {
+        ensureNoOpenEntry();
+        if (appendChannel != null) {
+            removeEntry(name);
+        }
+
+        Entry entry = new Entry(name, ZipEntry.DEFLATED, time);
+        entry.flag |= FLAG_DATA_DESCRIPTOR;
+        entry.offset = written;
+        writeLocalHeader(entry);
+
+        ParallelDeflaterOutputStream deflater = new ParallelDeflaterOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writeByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeBytes(b, off, len);
+            }
+        }, executor, threads, Deflater.DEFAULT_COMPRESSION);
+
+        return currentEntry = new OutputStream() {
+            private boolean entryClosed;
+
+            @Override
+            public void write(int b) throws IOException {
+                deflater.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                deflater.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (entryClosed) {
+                    return;
+                }
+                entryClosed = true;
+                deflater.finish();
+
+                entry.crc = deflater.getCrc();
+                entry.size = deflater.getBytesRead();
+                entry.compressedSize = deflater.getBytesWritten();
+                writeDataDescriptor(entry);
+                entries.add(entry);
+                currentEntry = null;
+            }
+        };
+    }
+
+    /**
+     * Writes an entry whose data is already in its final (compressed or stored) form.
+     * @param zipEntry The entry, its method, CRC, size and compressed size must be set
+     * @param rawData The raw entry data, exactly {@link ZipEntry#getCompressedSize()} bytes are copied from it
+     */
+    public void putRawEntry(ZipEntry zipEntry, InputStream rawData) throws IOException {
+        ensureNoOpenEntry();
+        if (zipEntry.getMethod() == -1 || zipEntry.getCrc() == -1 || zipEntry.getSize() == -1 || zipEntry.getCompressedSize() == -1) {
+            throw new IllegalArgumentException("Method, CRC and sizes must be set for raw entry " + zipEntry.getName());
+        }
+        if (appendChannel != null) {
+            removeEntry(zipEntry.getName());
+        }
+
+        Entry entry = new Entry(zipEntry.getName(), zipEntry.getMethod(), zipEntry.getTime() != -1 ? zipEntry.getTime() : System.currentTimeMillis());
+        entry.crc = zipEntry.getCrc();
+        entry.size = zipEntry.getSize();
+        entry.compressedSize = zipEntry.getCompressedSize();
+        entry.offset = written;
+        writeLocalHeader(entry);
+
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            int read = rawData.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Premature end of data for raw entry " + entry.name);
+            }
+            writeBytes(buffer, 0, read);
+            remaining -= read;
+        }
+        entries.add(entry);
+    }
+
+    private void ensureNoOpenEntry() throws IOException {
+        if (closed) {
+            throw new IOException("Zip writer already closed");
+        }
+        if (currentEntry != null) {
+            throw new IllegalStateException("Previous entry has not yet been closed");
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        writeInt(0x04034b50);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(entry.flag);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        if ((entry.flag & FLAG_DATA_DESCRIPTOR) != 0) {
+            writeInt(0);
+            writeInt(0);
+            writeInt(0);
+        } else {
+            writeInt(entry.crc);
+            writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+            writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+        }
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+    }
+
+    private void writeDataDescriptor(Entry entry) throws IOException {
+        writeInt(0x08074b50);
+        writeInt(entry.crc);
+        if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        } else {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+    }
+
+    private void writeCentralDirectoryHeader(Entry entry) throws IOException {
+        if (entry.centralDirectoryHeader != null) {
+            writeBytes(entry.centralDirectoryHeader, 0, entry.centralDirectoryHeader.length);
+            return;
+        }
+        boolean sizeZip64 = entry.size >= ZIP64_MAGIC;
+        boolean compressedSizeZip64 = entry.compressedSize >= ZIP64_MAGIC;
+        boolean offsetZip64 = entry.offset >= ZIP64_MAGIC;
+        int extraLength = (sizeZip64 ? 8 : 0) + (compressedSizeZip64 ? 8 : 0) + (offsetZip64 ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        writeInt(0x02014b50);
+        writeShort(zip64 ? 45 : 20); // version made by
+        writeShort(zip64 ? 45 : 20); // version needed to extract
+        writeShort(entry.flag);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(compressedSizeZip64 ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(sizeZip64 ? ZIP64_MAGIC : entry.size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? extraLength + 4 : 0);
+        writeShort(0); // comment length
+        writeShort(0); // disk number
+        writeShort(0); // internal attributes
+        writeInt(0); // external attributes
+        writeInt(offsetZip64 ? ZIP64_MAGIC : entry.offset);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(extraLength);
+            if (sizeZip64) writeLong(entry.size);
+            if (compressedSizeZip64) writeLong(entry.compressedSize);
+            if (offsetZip64) writeLong(entry.offset);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (currentEntry != null) {
+                currentEntry.close();
+            }
+            closed = true;
+
+            long centralDirectoryOffset = written;
+            for (Entry entry : entries) {
+                writeCentralDirectoryHeader(entry);
+            }
+            long centralDirectorySize = written - centralDirectoryOffset;
+
+            int count = entries.size();
+            if (count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC) {
+                long zip64EndOffset = written;
+                writeInt(0x06064b50);
+                writeLong(44); // size of the remaining record
+                writeShort(45); // version made by
+                writeShort(45); // version needed to extract
+                writeInt(0); // number of this disk
+                writeInt(0); // disk with the central directory
+                writeLong(count);
+                writeLong(count);
+                writeLong(centralDirectorySize);
+                writeLong(centralDirectoryOffset);
+
+                writeInt(0x07064b50);
+                writeInt(0); // disk with the zip64 end of central directory
+                writeLong(zip64EndOffset);
+                writeInt(1); // total number of disks
+            }
+
+            writeInt(0x06054b50);
+            writeShort(0); // number of this disk
+            writeShort(0); // disk with the central directory
+            writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+            writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+            writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC));
+            writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+            writeShort(0); // comment length
+
+            if (appendChannel != null) {
+                // The previous central directory may have extended further than the new one
+                out.flush();
+                appendChannel.truncate(written);
+            }
+        } finally {
+            closed = true;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        out.write(b);
+        written++;
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void writeShort(int x) throws IOException {
+        writeByte(x & 0xff);
+        writeByte((x >>> 8) & 0xff);
+    }
+
+    private void writeInt(long x) throws IOException {
+        writeShort((int) (x & 0xffff));
+        writeShort((int) ((x >>> 16) & 0xffff));
+    }
+
+    private void writeLong(long x) throws IOException {
+        writeInt(x & ZIP64_MAGIC);
+        writeInt(x >>> 32);
+    }
+
+    private static long toDosTime(long time) {
+        LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (date.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (long) (date.getYear() - 1980) << 25
+                | date.getMonthValue() << 21
+                | date.getDayOfMonth() << 16
+                | date.getHour() << 11
+                | date.getMinute() << 5
+                | date.getSecond() >> 1;
+    }
+
+    private static class Entry {
+        private final byte[] name;
+        private final int method;
+        private final long dosTime;
+        private int flag = FLAG_UTF8;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+        /**
+         * Central directory header copied from an existing file, written as is.
+         */
+        private byte[] centralDirectoryHeader;
+
+        private Entry(String name, int method, long time) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.dosTime = toDosTime(time);
+        }
+    }
+}
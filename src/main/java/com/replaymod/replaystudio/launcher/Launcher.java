@@ -56,6 +56,7 @@ public class Launcher {
                 "to the specified output file. Note that the output file if raw packet data, not a zipped replay with meta data.");
         options.addOption("d", "daemon", true, "Runs replay studio as a daemon listening for requests. Pass in the amount" +
                 "of concurrent worker threads. The port of the daemon is defined by the environment variable 'replaystudio.port' (default 4002).");
+        options.addOption("t", "threads", true, "Amount of threads used to compress the output replay (default 1).");
 
         CommandLineParser parser = new GnuParser();
         CommandLine cmd;
@@ -94,7 +94,8 @@ public class StreamLauncher {
         ReplayOutputStream out;
         if (!"x".equals(output)) {
             OutputStream buffOut = new BufferedOutputStream(new FileOutputStream(output));
-            out = new ReplayOutputStream(inputVersion, buffOut, null);
+            int threads = cmd.hasOption('t') ? Integer.parseInt(cmd.getOptionValue('t')) : 1;
+            out = new ReplayOutputStream(inputVersion, buffOut, null, false, threads);
         } else {
             out = null;
         }
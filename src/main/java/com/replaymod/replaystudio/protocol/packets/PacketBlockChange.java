@@ -132,6 +132,55 @@ public class PacketBlockChange {
         }
     }
 
+    /**
+     * Writes a multi block change packet.
+     * All changes must be in the same chunk section (or, prior to 1.16.2, the same chunk column).
+     * @param registry The packet registry
+     * @param changes The changes, at least one
+     * @return The packet
+     */
+    public static Packet writeBulk(PacketTypeRegistry registry, List<PacketBlockChange> changes) throws IOException {
+        IPosition first = changes.get(0).pos;
+        int chunkX = first.getX() >> 4;
+        int chunkY = first.getY() >> 4;
+        int chunkZ = first.getZ() >> 4;
+
+        Packet packet = new Packet(registry, PacketType.MultiBlockChange);
+        try (Packet.Writer out = packet.overwrite()) {
+            if (packet.atLeast(ProtocolVersion.v1_16_2)) {
+                out.writeLong(((long) chunkX & 0x3FFFFF) << 42 | ((long) chunkZ & 0x3FFFFF) << 20 | ((long) chunkY & 0xFFFFF));
+                if (packet.olderThan(ProtocolVersion.v1_20)) {
+                    out.writeBoolean(false); // do not skip light updates, same as for single block changes
+                }
+            } else {
+                out.writeInt(chunkX);
+                out.writeInt(chunkZ);
+            }
+            if (packet.atLeast(ProtocolVersion.v1_8)) {
+                out.writeVarInt(changes.size());
+            } else {
+                out.writeShort(changes.size());
+                out.writeInt(changes.size() * 4);
+            }
+            for (PacketBlockChange change : changes) {
+                int x = change.pos.getX() & 15;
+                int y = change.pos.getY();
+                int z = change.pos.getZ() & 15;
+                if (packet.atLeast(ProtocolVersion.v1_16_2)) {
+                    out.writeVarLong((long) change.id << 12 | x << 8 | z << 4 | (y & 15));
+                } else {
+                    out.writeShort(x << 12 | z << 8 | (y & 255));
+                    if (packet.atLeast(ProtocolVersion.v1_8)) {
+                        out.writeVarInt(change.id);
+                    } else {
+                        out.writeShort(change.id);
+                    }
+                }
+            }
+        }
+        return packet;
+    }
+
     public static List<PacketBlockChange> readSingleOrBulk(Packet packet) throws IOException {
         if (packet.getType() == PacketType.BlockChange) {
             return Collections.singletonList(read(packet));
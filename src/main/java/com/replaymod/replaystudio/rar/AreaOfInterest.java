@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar;
+
+import com.replaymod.replaystudio.util.IPosition;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.util.Objects;
+
+/**
+ * Horizontal area of the world (and optionally a set of entities) which a {@link RandomAccessReplay} should replicate.
+ * Chunks outside of the area, entities outside of it at the seeked time and entities not on the allow-list are not
+ * sent, or despawned if they already have been.
+ * Instances are immutable, except for the center of radius areas which can be {@link #setCenter(IPosition) moved}.
+ */
+public final class AreaOfInterest {
+    // Bounding box in block coordinates (inclusive), used if center is null
+    private final int minX, minZ, maxX, maxZ;
+    private volatile IPosition center;
+    private final int radius;
+    private final long radiusSquared;
+    private final IntSet entities;
+
+    private AreaOfInterest(int minX, int minZ, int maxX, int maxZ, IPosition center, int radius, IntSet entities) {
+        this.minX = minX;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxZ = maxZ;
+        this.center = center;
+        this.radius = radius;
+        this.radiusSquared = (long) radius * radius;
+        this.entities = entities;
+    }
+
+    /**
+     * Creates an area containing all blocks between the two given corners (inclusive). The y coordinate is ignored.
+     */
+    public static AreaOfInterest box(IPosition from, IPosition to) {
+        return new AreaOfInterest(
+                Math.min(from.getX(), to.getX()), Math.min(from.getZ(), to.getZ()),
+                Math.max(from.getX(), to.getX()), Math.max(from.getZ(), to.getZ()),
+                null, 0, null);
+    }
+
+    /**
+     * Creates an area containing all blocks within the given horizontal distance from the center.
+     * The y coordinate is ignored.
+     */
+    public static AreaOfInterest radius(IPosition center, int radius) {
+        return new AreaOfInterest(0, 0, 0, 0, center, radius, null);
+    }
+
+    /**
+     * Returns a copy of this area which only contains the given entities (instead of all of them).
+     * @param entityIds Ids of the entities to allow
+     */
+    public AreaOfInterest withEntities(int... entityIds) {
+        return new AreaOfInterest(minX, minZ, maxX, maxZ, center, radius, new IntOpenHashSet(entityIds));
+    }
+
+    /**
+     * Returns a copy of this area, which is not affected when this one is {@link #setCenter(IPosition) moved}.
+     */
+    public AreaOfInterest copy() {
+        return new AreaOfInterest(minX, minZ, maxX, maxZ, center, radius, entities);
+    }
+
+    /**
+     * Moves this area, e.g. to follow the camera. Only applicable to areas created via
+     * {@link #radius(IPosition, int)}.
+     * Takes effect on the next seek, which then only needs to look at the chunks which have entered or left the area.
+     * @param center The new center, the y coordinate is ignored
+     */
+    public void setCenter(IPosition center) {
+        if (this.center == null) {
+            throw new IllegalStateException("Only radius areas can be moved");
+        }
+        this.center = center;
+    }
+
+    /**
+     * @return The center of this area, or {@code null} if it is a box
+     */
+    public IPosition getCenter() {
+        return center;
+    }
+
+    /**
+     * @return Lowest x coordinate of any block within this area
+     */
+    public int getMinX() {
+        IPosition center = this.center;
+        return center != null ? center.getX() - radius : minX;
+    }
+
+    /**
+     * @return Lowest z coordinate of any block within this area
+     */
+    public int getMinZ() {
+        IPosition center = this.center;
+        return center != null ? center.getZ() - radius : minZ;
+    }
+
+    /**
+     * @return Highest x coordinate of any block within this area
+     */
+    public int getMaxX() {
+        IPosition center = this.center;
+        return center != null ? center.getX() + radius : maxX;
+    }
+
+    /**
+     * @return Highest z coordinate of any block within this area
+     */
+    public int getMaxZ() {
+        IPosition center = this.center;
+        return center != null ? center.getZ() + radius : maxZ;
+    }
+
+    /**
+     * Returns whether any block between the given corners (inclusive) is within this area.
+     */
+    public boolean intersects(int fromX, int fromZ, int toX, int toZ) {
+        IPosition center = this.center;
+        if (center == null) {
+            return toX >= minX && fromX <= maxX && toZ >= minZ && fromZ <= maxZ;
+        }
+        // Distance to the closest point of the box
+        long dx = Math.max(fromX, Math.min(center.getX(), toX)) - (long) center.getX();
+        long dz = Math.max(fromZ, Math.min(center.getZ(), toZ)) - (long) center.getZ();
+        return dx * dx + dz * dz <= radiusSquared;
+    }
+
+    /**
+     * Returns whether any part of the chunk column at the given chunk coordinates is within this area.
+     */
+    public boolean containsChunk(int chunkX, int chunkZ) {
+        int chunkMinX = chunkX << 4;
+        int chunkMinZ = chunkZ << 4;
+        return intersects(chunkMinX, chunkMinZ, chunkMinX + 15, chunkMinZ + 15);
+    }
+
+    /**
+     * Returns whether the block at the given position is within this area.
+     */
+    public boolean containsPosition(double x, double z) {
+        int blockX = (int) Math.floor(x);
+        int blockZ = (int) Math.floor(z);
+        return intersects(blockX, blockZ, blockX, blockZ);
+    }
+
+    /**
+     * Returns whether the entity with the given id is allowed by this area.
+     */
+    public boolean containsEntity(int entityId) {
+        return entities == null || entities.contains(entityId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AreaOfInterest that = (AreaOfInterest) o;
+        return minX == that.minX
+                && minZ == that.minZ
+                && maxX == that.maxX
+                && maxZ == that.maxZ
+                && radius == that.radius
+                && Objects.equals(center, that.center)
+                && Objects.equals(entities, that.entities);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minX, minZ, maxX, maxZ, center, radius, entities);
+    }
+}
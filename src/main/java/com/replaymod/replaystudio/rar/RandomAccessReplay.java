@@ -25,22 +25,42 @@ import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.github.steveice10.packetlib.io.stream.StreamNetInput;
 import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.lib.guava.base.Optional;
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.lib.viaversion.api.protocol.packet.State;
+import com.replaymod.replaystudio.lib.viaversion.api.protocol.version.ProtocolVersion;
 import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.rar.analyse.ReplayAnalyzer;
+import com.replaymod.replaystudio.rar.cache.LazyPacketList;
+import com.replaymod.replaystudio.rar.cache.MemoryBudget;
+import com.replaymod.replaystudio.rar.cache.PacketListPrefetcher;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.state.Replay;
 import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.util.ByteBufExtNetInput;
+import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Utils;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -60,9 +80,27 @@ import java.util.logging.Logger;
  * maintenance work in the future.
  */
 public abstract class RandomAccessReplay {
-    private static final String CACHE_ENTRY = "quickModeCache.bin";
-    private static final String CACHE_INDEX_ENTRY = "quickModeCacheIndex.bin";
-    private static final int CACHE_VERSION = 10;
+    // Kept when data is appended to the recording, so the cache can be extended rather than re-analysing everything
+    private static final String CACHE_ENTRY = ReplayFile.APPENDABLE_CACHE_PREFIX + "quickModeCache.bin";
+    private static final String CACHE_UNCOMPRESSED_ENTRY = ReplayFile.APPENDABLE_CACHE_PREFIX + "quickModeCache.raw";
+    private static final String CACHE_INDEX_ENTRY = ReplayFile.APPENDABLE_CACHE_PREFIX + "quickModeCacheIndex.bin";
+    private static final String CACHE_SEGMENTS_ENTRY = ReplayFile.APPENDABLE_CACHE_PREFIX + "quickModeCacheSegments.bin";
+    private static final int CACHE_VERSION = 19;
+    /**
+     * Maximum number of packets the vanilla client accepts in a single bundle.
+     */
+    private static final int MAX_BUNDLE_SIZE = 4096;
+    /**
+     * Length of the first segment written by {@link #loadProgressively(Consumer)}, each following one is as long as all
+     * previous ones together.
+     */
+    private static final int FIRST_PREFIX_LENGTH = 60 * 1000;
+    /**
+     * Amount of packet data after which a new cache segment is started even if no checkpoints were requested.
+     * The cache is indexed with ints and mapped as a single buffer, so a segment must stay well below 2GB. Its size is
+     * not known until it has been built, but it is usually considerably smaller than the packet data it was built from.
+     */
+    private static final long MAX_SEGMENT_DATA = 1024 * 1024 * 1024;
     private static final Logger LOGGER = Logger.getLogger(RandomAccessReplay.class.getName());
 
     private final ReplayFile replayFile;
@@ -72,6 +110,71 @@ public abstract class RandomAccessReplay {
 
     private Replay state;
     private ReadableCache cache;
+    /**
+     * Time (exclusive) up to which the loaded state is valid, less than the duration while analysing progressively.
+     */
+    private int stateEndTime = Integer.MAX_VALUE;
+    /**
+     * Segments of the cache, {@code null} if nothing has been loaded.
+     */
+    private List<Segment> segments;
+    /**
+     * Time (exclusive) up to which the last segment is valid, less than the duration while analysing progressively.
+     */
+    private int segmentsEndTime = Integer.MAX_VALUE;
+    private int loadedSegment = -1;
+
+    private Thread analysisThread;
+    private volatile boolean analysisCancelled;
+    private volatile int analysedTime = -1;
+    /**
+     * Segments covering a longer prefix of the replay, published by the analysis thread but not yet swapped in.
+     */
+    private final AtomicReference<PublishedSegments> publishedSegments = new AtomicReference<>();
+
+    /**
+     * Whether the cache should be stored uncompressed (and memory-mapped when loaded) when it is next written.
+     */
+    private boolean uncompressedCache;
+
+    /**
+     * Replay time between analysis checkpoints, or 0 if analysis is not checkpointed.
+     */
+    private int checkpointInterval;
+
+    /**
+     * Maximum amount of decoded packet data held by the prefetcher, or 0 if prefetching is disabled.
+     */
+    private long prefetchLimit;
+    /**
+     * How far ahead of (or behind, when rewinding) the playhead things are prefetched, in milliseconds.
+     */
+    private int prefetchHorizon;
+    private PacketListPrefetcher prefetcher;
+
+    /**
+     * Maximum estimated heap size of decoded state, or 0 if unlimited.
+     */
+    private long memoryLimit;
+    private MemoryBudget memoryBudget;
+
+    private volatile AreaOfInterest areaOfInterest;
+
+    private boolean batchedDispatch;
+    private boolean bundledDispatch;
+    private SeekListener seekListener;
+
+    private ExecutorService seekWorker;
+    /**
+     * The most recently requested asynchronous seek which has not yet been started, if any.
+     */
+    private PendingSeek pendingSeek; // guarded by seekLock
+    private final Object seekLock = new Object();
+    /**
+     * Packets generated by seeks whose batch has not been handed off (because they were superseded or cancelled).
+     * These must still reach the client, so they are prepended to the next batch.
+     */
+    private List<Packet> undeliveredPackets = new ArrayList<>();
 
     public RandomAccessReplay(ReplayFile replayFile, PacketTypeRegistry registry) {
         this.replayFile = replayFile;
@@ -80,38 +183,317 @@ public abstract class RandomAccessReplay {
 
     protected abstract void dispatch(Packet packet);
 
+    /**
+     * Dispatches all packets of one seek at once, only called when {@link #setBatchedDispatch(boolean, boolean) batched
+     * dispatch} is enabled.
+     * Implementations may override this to apply the whole batch atomically, e.g. within a single tick.
+     * By default, {@link #dispatch(Packet)} is called for each packet.
+     * @param packets The packets in order
+     */
+    protected void dispatchBatch(List<Packet> packets) {
+        packets.forEach(this::dispatch);
+    }
+
+    /**
+     * Restricts all following seeks to the given area of the world.
+     * Chunks outside of it (and entities outside of it at the seeked time or not on its allow-list) are not sent, and
+     * are despawned if they already have been. Things which enter the area (either because it is changed or moved, or
+     * because they spawn or move into it) are sent during the next seek.
+     * To follow a moving camera, {@link AreaOfInterest#setCenter(IPosition) move} the area (or set an updated one)
+     * before each seek. Only the chunks which enter or leave it then need to be looked at.
+     * @param areaOfInterest The area, or {@code null} to replicate the whole world (the default)
+     */
+    public void setAreaOfInterest(AreaOfInterest areaOfInterest) {
+        this.areaOfInterest = areaOfInterest;
+    }
+
+    /**
+     * Sets whether the packets of each {@link #seek(int)} are collected and passed to {@link #dispatchBatch(List)} at
+     * once instead of being passed to {@link #dispatch(Packet)} as they are generated.
+     * @param batched Whether to collect packets into batches
+     * @param bundled Whether to additionally wrap the batch in {@link PacketType#Bundle} delimiters on versions which
+     *                support them, so the client processes it in a single tick. Also applies to
+     *                {@link #seekAsync(int)}.
+     */
+    public void setBatchedDispatch(boolean batched, boolean bundled) {
+        this.batchedDispatch = batched;
+        this.bundledDispatch = bundled;
+    }
+
+    /**
+     * Sets a listener which is notified after every seek, e.g. to measure its cost.
+     * For {@link #seekAsync(int)}, the listener is called on the seek worker thread.
+     * @param seekListener The listener, or {@code null} to remove it
+     */
+    public void setSeekListener(SeekListener seekListener) {
+        this.seekListener = seekListener;
+    }
+
+    /**
+     * Sets whether the cache should be stored uncompressed when the replay is analysed.
+     * An uncompressed cache takes up more disk space but is memory-mapped instead of being inflated into the heap
+     * when loaded, so loading it is almost instant and the operating system decides which parts stay in memory.
+     * Existing caches are loaded regardless of this setting.
+     * Defaults to {@code false}, implied by {@link #setMemoryLimit(long)}.
+     * @param uncompressedCache Whether to store the cache uncompressed
+     */
+    public void setUncompressedCache(boolean uncompressedCache) {
+        this.uncompressedCache = uncompressedCache;
+    }
+
+    /**
+     * Enables checkpoints during analysis of the replay.
+     * The cache is then written in segments, each covering the given amount of replay time. Once a segment has been
+     * written, it is kept even if the analysis is interrupted (e.g. because the game is closed), so the next
+     * {@link #load(Consumer)} resumes the analysis from the end of the last segment instead of starting over.
+     * Analysis is resumed regardless of this setting.
+     * Similarly, if data is appended to the recording of an analysed replay, only the new data is analysed and stored
+     * in additional segments.
+     * <p>
+     * Each segment starts with the state the previous one ends with, so seeking into a neighbouring segment first
+     * plays (or rewinds) the current one up to the boundary and then continues with the other one without re-sending
+     * anything. Seeking further than that is effectively a reset of the client state, just like the first seek after
+     * loading. Only one segment is loaded at a time, so shorter intervals also mean less time per segment to seek in
+     * without switching.
+     * @param interval Replay time covered by each segment in milliseconds, or 0 to write the cache as one piece (the
+     *                 default)
+     */
+    public void setCheckpointInterval(int interval) {
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Enables prefetching of the spawn packets of things which are about to become active.
+     * After each seek, these are decoded on a background thread, in the direction of the seek, so later seeks do not
+     * have to decode them on the calling thread.
+     * Takes effect the next time the replay is loaded.
+     * @param maxBytes Maximum amount of decoded packet data to hold, or 0 to disable prefetching (the default)
+     * @param horizon How many milliseconds ahead of the playhead to prefetch
+     */
+    public void setPrefetching(long maxBytes, int horizon) {
+        this.prefetchLimit = maxBytes;
+        this.prefetchHorizon = horizon;
+    }
+
+    /**
+     * Limits the amount of heap memory used for state decoded from the cache.
+     * When exceeded, the least recently used state is dropped and read from the cache again once it is needed. State
+     * which is not needed for a seek (e.g. because it has no changes in the seeked range) is not read again.
+     * <p>
+     * A compressed cache has to be inflated into the heap as a whole to be read, which this limit cannot account for.
+     * So with a limit, the cache is always written {@link #setUncompressedCache(boolean) uncompressed} and an existing
+     * compressed cache is decompressed on disk when loaded, so it can be memory-mapped instead.
+     * Takes effect the next time the replay is loaded.
+     * @param maxBytes Maximum estimated heap size in bytes, or 0 for no limit (the default)
+     */
+    public void setMemoryLimit(long maxBytes) {
+        this.memoryLimit = maxBytes;
+    }
+
+    /**
+     * @return Estimated heap size in bytes of the state currently decoded from the cache plus the cache itself if it
+     * was inflated into the heap, or 0 if not loaded
+     */
+    public long getMemoryFootprint() {
+        return memoryBudget != null ? memoryBudget.getFootprint() + getCacheHeapSize() : 0;
+    }
+
+    /**
+     * @return Highest value {@link #getMemoryFootprint()} has had since the replay was loaded
+     */
+    public long getPeakMemoryFootprint() {
+        return memoryBudget != null ? memoryBudget.getPeakFootprint() + getCacheHeapSize() : 0;
+    }
+
+    private long getCacheHeapSize() {
+        ReadableCache cache = this.cache;
+        return cache != null ? cache.getHeapSize() : 0;
+    }
+
     public void load(Consumer<Double> progress) throws IOException {
         if (!tryLoadFromCache(progress)) {
             double progressSplit = 0.9; // 90% of progress time for analysing, 10% for loading
             analyseReplay(d -> progress.accept(d * progressSplit));
             tryLoadFromCache(d -> progress.accept(d * (1 - progressSplit) + progressSplit));
         }
+        analysedTime = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Like {@link #load(Consumer)} but if the replay needs to be analysed, this happens on a background thread and the
+     * replay can be seeked before the analysis has finished.
+     * The cache is written in segments of increasing length (the first one covering one minute, each following one as
+     * much as all previous ones together), each resuming the analysis where the previous one ended, so this takes
+     * hardly longer than a regular analysis. As soon as a segment has been written, it becomes available for seeking
+     * at the start of the next seek. Seeks beyond the analysed part stop at its end, and seeks before the first segment
+     * is available do nothing.
+     * Like with {@link #setCheckpointInterval(int) checkpoints}, written segments are kept if the analysis is
+     * interrupted, so the next load resumes it and can seek the previously analysed part right away.
+     * @param progress Consumer of the fraction of the replay analysed so far
+     * @return Future which completes once the whole replay has been analysed and is available for seeking
+     * @see #getAnalysedTime()
+     */
+    public CompletableFuture<Void> loadProgressively(Consumer<Double> progress) throws IOException {
+        if (tryLoadFromCache(progress)) {
+            analysedTime = Integer.MAX_VALUE;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        analysedTime = 0;
+        analysisCancelled = false;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        analysisThread = new Thread(() -> {
+            try {
+                analyseReplay(progress, true);
+                future.complete(null);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, "replaystudio-analysis");
+        analysisThread.setDaemon(true);
+        analysisThread.start();
+        return future;
+    }
+
+    /**
+     * Returns the time up to which the replay has been analysed and can be seeked.
+     * @return The time in milliseconds (exclusive), {@link Integer#MAX_VALUE} once the whole replay has been analysed,
+     * or -1 if the replay has not been loaded
+     */
+    public int getAnalysedTime() {
+        return analysedTime;
+    }
+
+    /**
+     * Makes the given segments available for seeking, starting with the next seek.
+     * @param endTime Time (exclusive) up to which the last segment is valid
+     */
+    private void publish(List<Segment> segments, int endTime) {
+        publishedSegments.set(new PublishedSegments(new ArrayList<>(segments), endTime));
+        analysedTime = endTime;
     }
 
     private boolean tryLoadFromCache(Consumer<Double> progress) throws IOException {
         release();
 
-        Optional<InputStream> cacheIndexOpt = replayFile.getCache(CACHE_INDEX_ENTRY);
-        if (!cacheIndexOpt.isPresent()) return false;
+        CacheManifest manifest = readManifest();
+        if (manifest == null) return false;
+        if (!manifest.complete) {
+            return false; // left behind by an interrupted analysis, which needs to be resumed first
+        }
+        if (!Objects.equals(manifest.recordingHash, replayFile.getRecordingHash())) {
+            return false; // data has been appended to the recording since, which needs to be analysed first
+        }
+        Pair<Replay, ReadableCache> result = readCache(0, progress);
+        if (result == null) return false;
+        segments = manifest.segments;
+        segmentsEndTime = Integer.MAX_VALUE;
+        loadedSegment = 0;
+        stateEndTime = getSegmentEndTime(0);
+        return loaded(result);
+    }
+
+    /**
+     * Reads the given segment of the cache, segment 0 is also the whole cache if it has not been written in segments.
+     */
+    private Pair<Replay, ReadableCache> readCache(int segment, Consumer<Double> progress) throws IOException {
+        Optional<InputStream> cacheIndexOpt = replayFile.getCache(segmentEntry(CACHE_INDEX_ENTRY, segment));
+        if (!cacheIndexOpt.isPresent()) return null;
         try (InputStream indexIn = cacheIndexOpt.get()) {
-            Optional<InputStream> cacheOpt = replayFile.getCache(CACHE_ENTRY);
-            if (!cacheOpt.isPresent()) return false;
+            Optional<ByteBuffer> mappedCacheOpt = replayFile.mapCache(segmentEntry(CACHE_UNCOMPRESSED_ENTRY, segment));
+            if (mappedCacheOpt.isPresent()) {
+                return loadFromMappedCache(mappedCacheOpt.get(), indexIn);
+            }
+
+            Optional<InputStream> cacheOpt = replayFile.getCache(segmentEntry(CACHE_ENTRY, segment));
+            if (cacheOpt.isPresent() && memoryLimit > 0) {
+                // Inflating it into the heap would defeat the limit, so store it uncompressed and map it instead
+                decompressCache(cacheOpt.get(), segment);
+                mappedCacheOpt = replayFile.mapCache(segmentEntry(CACHE_UNCOMPRESSED_ENTRY, segment));
+                if (mappedCacheOpt.isPresent()) {
+                    return loadFromMappedCache(mappedCacheOpt.get(), indexIn);
+                }
+                cacheOpt = Optional.absent();
+            }
+            if (!cacheOpt.isPresent()) {
+                // Replay files which cannot map their cache still allow reading the uncompressed entry as a stream
+                cacheOpt = replayFile.getCache(segmentEntry(CACHE_UNCOMPRESSED_ENTRY, segment));
+                if (!cacheOpt.isPresent()) return null;
+            }
             try (InputStream cacheIn = cacheOpt.get()) {
-                Pair<Replay, ReadableCache> result = loadFromCache(cacheIn, indexIn, progress);
-                if (result == null) return false;
-                Replay replay = result.getLeft();
-                ReadableCache cache = result.getRight();
-                replay.load(Packet::release, cache);
-                this.state = replay;
-                this.cache = cache;
-                return true;
+                return loadFromCache(cacheIn, indexIn, progress);
             }
         } catch (EOFException e) {
             LOGGER.log(Level.WARNING, "Re-analysing replay due to premature EOF while loading the cache:", e);
-            return false;
+            return null;
         }
     }
 
+    /**
+     * Replaces the compressed form of the given segment with an uncompressed one.
+     */
+    private void decompressCache(InputStream rawCacheIn, int segment) throws IOException {
+        long sysTimeStart = System.currentTimeMillis();
+        try (InputStream cacheIn = rawCacheIn;
+             OutputStream cacheOut = replayFile.writeCacheUncompressed(segmentEntry(CACHE_UNCOMPRESSED_ENTRY, segment))) {
+            ByteStreams.copy(cacheIn, cacheOut);
+        }
+        // Only removed afterwards, a partially written uncompressed cache fails to load and causes a re-analysis
+        replayFile.removeCache(segmentEntry(CACHE_ENTRY, segment));
+        LOGGER.info("Decompressed quick replay cache in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
+    }
+
+    private boolean loaded(Pair<Replay, ReadableCache> result) throws IOException {
+        Replay replay = result.getLeft();
+        ReadableCache cache = result.getRight();
+        memoryBudget = new MemoryBudget(memoryLimit > 0 ? memoryLimit : Long.MAX_VALUE);
+        cache.setMemoryBudget(memoryBudget);
+        replay.load(Packet::release, cache);
+        this.state = replay;
+        this.cache = cache;
+        if (prefetchLimit > 0) {
+            prefetcher = new PacketListPrefetcher(cache, prefetchLimit);
+            cache.setPrefetcher(prefetcher);
+        }
+        return true;
+    }
+
+    private Pair<Replay, ReadableCache> loadFromMappedCache(ByteBuffer mapped, InputStream rawIndexIn) throws IOException {
+        long sysTimeStart = System.currentTimeMillis();
+
+        ByteBuf buf = Unpooled.wrappedBuffer(mapped);
+        Replay replay;
+        ReadableCache cache;
+        int size;
+        boolean loaded = false;
+        try {
+            NetInput cacheIn = new ByteBufExtNetInput(buf);
+            NetInput in = new StreamNetInput(rawIndexIn);
+            if (in.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
+            if (cacheIn.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
+            if (in.readVarInt() != registry.getVersion().getOriginalVersion()) return null; // Cache of incompatible protocol version
+            if (cacheIn.readVarInt() != registry.getVersion().getOriginalVersion()) return null; // Cache of incompatible protocol version
+
+            replay = new Replay(registry, in);
+
+            size = in.readVarInt();
+            if (buf.readableBytes() < size) {
+                throw new EOFException("Expected " + size + " bytes of cache but only " + buf.readableBytes() + " are available");
+            }
+            // Unmapped as soon as the last reference is released, otherwise the entry could not be removed or replaced
+            // on some platforms until the garbage collector happens to get around to it
+            cache = new ReadableCache(buf.slice(buf.readerIndex(), size), () -> Utils.unmap(mapped));
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                Utils.unmap(mapped);
+            }
+        }
+
+        LOGGER.info("Mapped quick replay cache of size " + size / 1024 + "KB in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
+        return Pair.of(replay, cache);
+    }
+
     private Pair<Replay, ReadableCache> loadFromCache(InputStream rawCacheIn, InputStream rawIndexIn, Consumer<Double> progress) throws IOException {
         long sysTimeStart = System.currentTimeMillis();
 
@@ -141,39 +523,305 @@ public abstract class RandomAccessReplay {
     }
 
     private void analyseReplay(Consumer<Double> progress) throws IOException {
+        analyseReplay(progress, false);
+    }
+
+    /**
+     * @param progressive Whether to write segments of increasing length (see {@link #FIRST_PREFIX_LENGTH}) and
+     *                    {@link #publish(List, int) publish} each one as soon as it has been written
+     */
+    private void analyseReplay(Consumer<Double> progress, boolean progressive) throws IOException {
         double sysTimeStart = System.currentTimeMillis();
-        try (ReplayInputStream in = replayFile.getPacketData(registry.withLoginSuccess());
-             OutputStream cacheOut = replayFile.writeCache(CACHE_ENTRY);
-             OutputStream cacheIndexOut = replayFile.writeCache(CACHE_INDEX_ENTRY)) {
-            NetOutput out = new StreamNetOutput(cacheOut);
+        String recordingHash = replayFile.getRecordingHash();
+        CacheManifest manifest = readManifest();
+        if (manifest != null && !manifest.segments.isEmpty()
+                && (!manifest.complete || !Objects.equals(manifest.recordingHash, recordingHash))) {
+            // Either the analysis was interrupted, or the recording has changed since. The cache is only kept across
+            // changes which merely append data to the recording, so either way we can continue where we left off.
+            Segment last = manifest.segments.get(manifest.segments.size() - 1);
+            LOGGER.info((manifest.complete ? "Extending" : "Resuming") + " analysis of replay at " + last.endTime / 1000 + "s");
+            try {
+                analyseSegments(new ArrayList<>(manifest.segments), recordingHash, progressive, progress);
+                LOGGER.info("Analysed rest of replay in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
+                return;
+            } catch (EOFException e) {
+                if (progressive && analysedTime > 0) {
+                    throw e; // published segments may already be in use, so they must not be re-written
+                }
+                LOGGER.log(Level.WARNING, "Re-analysing replay as its previous analysis could not be resumed:", e);
+            }
+        }
+
+        // Written before the first segment, so a partially written one is never mistaken for a complete cache
+        writeManifest(new CacheManifest(new ArrayList<>(), false, recordingHash));
+        analyseSegments(new ArrayList<>(), recordingHash, progressive, progress);
+        LOGGER.info("Analysed replay in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
+    }
+
+    /**
+     * Analyses the replay following the given segments, writing a new segment (and updating the manifest) every
+     * {@link #checkpointInterval} and every {@link #MAX_SEGMENT_DATA}.
+     * @param progressive See {@link #analyseReplay(Consumer, boolean)}
+     */
+    private void analyseSegments(List<Segment> segments, String recordingHash, boolean progressive,
+                                 Consumer<Double> progress) throws IOException {
+        boolean uncompressed = uncompressedCache || memoryLimit > 0;
+        try (ReplayInputStream in = replayFile.getPacketData(registry.withLoginSuccess())) {
+            int startTime = 0;
+            int startPackets = 0;
+            List<Packet> resumeState = null;
+            if (!segments.isEmpty()) {
+                Segment last = segments.get(segments.size() - 1);
+                startTime = last.endTime;
+                startPackets = last.packets;
+                if (!in.skipRaw(last.offset)) {
+                    // The packets need to be converted by ViaVersion, which has to see all of them
+                    skipPackets(in, startPackets);
+                }
+                resumeState = readResumeState(segments.size() - 1, last);
+                if (progressive) {
+                    publish(segments, startTime);
+                }
+            }
+
+            while (true) {
+                int index = segments.size();
+                int endTime = checkpointInterval > 0 && startTime < Integer.MAX_VALUE - checkpointInterval
+                        ? startTime + checkpointInterval : Integer.MAX_VALUE;
+                if (progressive) {
+                    endTime = (int) Math.min(endTime, Math.max(FIRST_PREFIX_LENGTH, 2L * startTime));
+                }
+
+                // Only one of the two may exist at any time, otherwise we wouldn't know which one is up to date
+                replayFile.removeCache(segmentEntry(uncompressed ? CACHE_ENTRY : CACHE_UNCOMPRESSED_ENTRY, index));
+                Pair<Segment, Boolean> result;
+                try (OutputStream cacheOut = uncompressed
+                             ? replayFile.writeCacheUncompressed(segmentEntry(CACHE_UNCOMPRESSED_ENTRY, index))
+                             : replayFile.writeCache(segmentEntry(CACHE_ENTRY, index));
+                     OutputStream cacheIndexOut = replayFile.writeCache(segmentEntry(CACHE_INDEX_ENTRY, index))) {
+                    result = analyse(in, cacheOut, cacheIndexOut, resumeState, startTime, startPackets, endTime,
+                            MAX_SEGMENT_DATA, progress);
+                }
+                Segment segment = result.getLeft();
+                segments.add(segment);
+
+                boolean complete = result.getRight();
+                writeManifest(new CacheManifest(segments, complete, recordingHash));
+                if (progressive) {
+                    publish(segments, complete ? Integer.MAX_VALUE : segment.endTime);
+                }
+                if (complete) {
+                    break;
+                }
+                LOGGER.fine("Analysis checkpoint at " + segment.endTime / 1000 + "s");
+
+                resumeState = readResumeState(index, segment);
+                startTime = segment.endTime;
+                startPackets = segment.packets;
+            }
+        }
+    }
+
+    private static void skipPackets(ReplayInputStream in, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            PacketData packetData = in.readPacket();
+            if (packetData == null) {
+                throw new EOFException("Replay ended after " + i + " of " + count + " already analysed packets");
+            }
+            packetData.release();
+        }
+    }
+
+    /**
+     * Generates the packets from which a {@link ReplayAnalyzer} can {@link ReplayAnalyzer#resume(List, int) resume}
+     * analysis at the end of the given segment.
+     * These are what seeking in the segment sends to the client, not the state of the analyzer which wrote it, see
+     * {@link ReplayAnalyzer#resume(List, int)} for what that loses.
+     */
+    private List<Packet> readResumeState(int index, Segment segment) throws IOException {
+        Pair<Replay, ReadableCache> result = readCache(index, d -> {});
+        if (result == null) throw new EOFException("Failed to read back cache segment " + index);
+        Replay replay = result.getLeft();
+        ReadableCache cache = result.getRight();
+        List<Packet> packets = new ArrayList<>();
+        try {
+            replay.players.read(packets::add, cache);
+            replay.load(Packet::release, cache);
+            replay.play(packets::add, -1, segment.endTime - 1);
+            replay.unload(Packet::release, cache);
+        } catch (IOException | RuntimeException e) {
+            packets.forEach(Packet::release);
+            throw e;
+        } finally {
+            cache.release();
+        }
+        return packets;
+    }
+
+    private CacheManifest readManifest() throws IOException {
+        Optional<InputStream> manifestOpt = replayFile.getCache(CACHE_SEGMENTS_ENTRY);
+        if (!manifestOpt.isPresent()) return null;
+        try (InputStream rawIn = manifestOpt.get()) {
+            NetInput in = new StreamNetInput(rawIn);
+            if (in.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
+            if (in.readVarInt() != registry.getVersion().getOriginalVersion()) return null; // Cache of incompatible protocol version
+            boolean complete = in.readBoolean();
+            String recordingHash = in.readBoolean() ? in.readString() : null;
+            List<Segment> segments = new ArrayList<>();
+            for (int i = in.readVarInt(); i > 0; i--) {
+                segments.add(new Segment(in.readVarInt(), in.readVarInt(), in.readVarInt(), in.readVarLong()));
+            }
+            return new CacheManifest(segments, complete, recordingHash);
+        } catch (EOFException e) {
+            LOGGER.log(Level.WARNING, "Ignoring truncated cache manifest:", e);
+            return null;
+        }
+    }
+
+    private void writeManifest(CacheManifest manifest) throws IOException {
+        try (OutputStream rawOut = replayFile.writeCache(CACHE_SEGMENTS_ENTRY)) {
+            NetOutput out = new StreamNetOutput(rawOut);
             out.writeVarInt(CACHE_VERSION);
             out.writeVarInt(registry.getVersion().getOriginalVersion());
-            NetOutput indexOut = new StreamNetOutput(cacheIndexOut);
-            indexOut.writeVarInt(CACHE_VERSION);
-            indexOut.writeVarInt(registry.getVersion().getOriginalVersion());
+            out.writeBoolean(manifest.complete);
+            out.writeBoolean(manifest.recordingHash != null);
+            if (manifest.recordingHash != null) {
+                out.writeString(manifest.recordingHash);
+            }
+            out.writeVarInt(manifest.segments.size());
+            for (Segment segment : manifest.segments) {
+                out.writeVarInt(segment.startTime);
+                out.writeVarInt(segment.endTime);
+                out.writeVarInt(segment.packets);
+                out.writeVarLong(segment.offset);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the entry for the given segment, the first one uses the plain name.
+     */
+    private static String segmentEntry(String entry, int segment) {
+        if (segment == 0) {
+            return entry;
+        }
+        int extension = entry.lastIndexOf('.');
+        return entry.substring(0, extension) + "." + segment + entry.substring(extension);
+    }
+
+    private int findSegment(int time) {
+        int segment = 0;
+        while (segment + 1 < segments.size() && segments.get(segment + 1).startTime <= time) {
+            segment++;
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the time (exclusive) up to which the given segment is valid, the last one is valid up to
+     * {@link #segmentsEndTime}.
+     */
+    private int getSegmentEndTime(int segment) {
+        if (segment == segments.size() - 1) {
+            return segmentsEndTime;
+        }
+        return segments.get(segment).endTime;
+    }
 
-            WriteableCache cache = new WriteableCache(cacheOut);
+    /**
+     * @return The analysed segment, and whether it reached the end of the replay
+     */
+    private Pair<Segment, Boolean> analyse(ReplayInputStream in, OutputStream cacheOut, OutputStream cacheIndexOut,
+                                           List<Packet> resumeState, int startTime, int startPackets, int endTime,
+                                           long maxData, Consumer<Double> progress) throws IOException {
+        NetOutput out = new StreamNetOutput(cacheOut);
+        out.writeVarInt(CACHE_VERSION);
+        out.writeVarInt(registry.getVersion().getOriginalVersion());
+        NetOutput indexOut = new StreamNetOutput(cacheIndexOut);
+        indexOut.writeVarInt(CACHE_VERSION);
+        indexOut.writeVarInt(registry.getVersion().getOriginalVersion());
 
+        try (WriteableCache cache = new WriteableCache(cacheOut)) {
             double duration = replayFile.getMetaData().getDuration();
-            new ReplayAnalyzer(registry, indexOut, cache)
-                    .analyse(in, time -> progress.accept(time / duration));
+            ReplayAnalyzer analyzer = new ReplayAnalyzer(registry, indexOut, cache);
+            if (resumeState != null) {
+                analyzer.resume(resumeState, startTime);
+            }
+            analyzer.analyse(in, endTime, maxData, time -> {
+                if (analysisCancelled) {
+                    throw new CancellationException("Analysis cancelled");
+                }
+                progress.accept(time / duration);
+            });
 
             indexOut.writeVarInt(cache.index()); // store size of cache
+            Segment segment = new Segment(startTime, analyzer.getEndTime(), startPackets + analyzer.getPacketsBeforeEnd(),
+                    analyzer.getEndOffset());
+            return Pair.of(segment, analyzer.isEndOfReplay());
         }
-        LOGGER.info("Analysed replay in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
     }
 
     public void release() {
-        if (state != null && cache != null) {
+        if (analysisThread != null) {
+            analysisCancelled = true;
+            try {
+                analysisThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            analysisThread = null;
+        }
+        publishedSegments.set(null);
+        if (seekWorker != null) {
+            synchronized (seekLock) {
+                if (pendingSeek != null) {
+                    pendingSeek.future.cancel(false);
+                    pendingSeek = null;
+                }
+            }
+            seekWorker.shutdown();
+            try {
+                seekWorker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            seekWorker = null;
+        }
+        for (Packet packet : undeliveredPackets) {
+            packet.release();
+        }
+        undeliveredPackets.clear();
+        try {
+            unloadState(Packet::release);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        segments = null;
+        segmentsEndTime = Integer.MAX_VALUE;
+        loadedSegment = -1;
+        analysedTime = -1;
+    }
+
+    private void unloadState(PacketSink sink) throws IOException {
+        if (prefetcher != null) {
             try {
-                state.unload(Packet::release, cache);
+                prefetcher.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            state = null;
+            cache.setPrefetcher(null);
+            prefetcher = null;
+        }
+        if (state != null && cache != null) {
+            try {
+                state.unload(sink, cache);
+            } finally {
+                state = null;
 
-            cache.release();
-            cache = null;
+                cache.release();
+                cache = null;
+                memoryBudget = null;
+            }
         }
     }
 
@@ -181,12 +829,315 @@ public abstract class RandomAccessReplay {
         currentTimeStamp = -1;
     }
 
+    /**
+     * Seeks to the given time, {@link #dispatch(Packet) dispatching} all packets on the calling thread.
+     * Must not be called while there are asynchronous seeks pending.
+     */
     public void seek(int targetTime) throws IOException {
+        seek(targetTime, (IPosition) null);
+    }
+
+    /**
+     * Seeks to the given time, {@link #dispatch(Packet) dispatching} all packets on the calling thread.
+     * Chunks which need to be loaded are sent in order of their distance to the given focus position, so the terrain
+     * around it becomes visible as soon as possible.
+     * Must not be called while there are asynchronous seeks pending.
+     * @param targetTime The time to seek to
+     * @param focus Block position around which chunks should be loaded first, usually the camera, or {@code null}
+     */
+    public void seek(int targetTime, IPosition focus) throws IOException {
+        List<Packet> batch = undeliveredPackets;
+        undeliveredPackets = new ArrayList<>();
+        if (batchedDispatch) {
+            seek(targetTime, focus, batch::add);
+            dispatchBatch(bundle(batch));
+        } else {
+            batch.forEach(this::dispatch);
+            seek(targetTime, focus, this::dispatch);
+        }
+    }
+
+    /**
+     * Seeks to the given time on a background thread.
+     * Instead of being dispatched, the packets are collected and the returned future completes with all of them in one
+     * batch (wrapped in bundles if enabled), which the caller should then {@link #dispatchBatch(List) dispatch} on
+     * its own thread.
+     * <p>
+     * If a newer seek is requested before this one has started, this one is skipped entirely. If it is requested while
+     * this one is running, the packets of this one are carried over into the batch of the newer one.
+     * Either way, the future of this one is cancelled, so only the batch of the latest seek is ever delivered.
+     * Likewise, if the future is cancelled by the caller, its packets are delivered with the next batch.
+     * <p>
+     * While asynchronous seeks are pending, no other methods of this class may be called except for {@link #release()}.
+     * @param targetTime The time to seek to
+     * @return Future of all packets which need to be dispatched
+     */
+    public CompletableFuture<List<Packet>> seekAsync(int targetTime) {
+        return seekAsync(targetTime, null);
+    }
+
+    /**
+     * Like {@link #seekAsync(int)} but chunks are loaded by distance to the given focus position.
+     * @see #seek(int, IPosition)
+     */
+    public CompletableFuture<List<Packet>> seekAsync(int targetTime, IPosition focus) {
+        CompletableFuture<List<Packet>> future = new CompletableFuture<>();
+        synchronized (seekLock) {
+            PendingSeek superseded = pendingSeek;
+            pendingSeek = new PendingSeek(targetTime, focus, future);
+            if (superseded != null) {
+                // Its task is still queued and will pick up our seek instead
+                superseded.future.cancel(false);
+                return future;
+            }
+            if (seekWorker == null) {
+                seekWorker = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "replaystudio-seek");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        seekWorker.execute(this::runPendingSeek);
+        return future;
+    }
+
+    private void runPendingSeek() {
+        PendingSeek seek;
+        synchronized (seekLock) {
+            seek = pendingSeek;
+            pendingSeek = null;
+        }
+        if (seek == null || seek.future.isCancelled()) {
+            return;
+        }
+
+        try {
+            seek(seek.targetTime, seek.focus, undeliveredPackets::add);
+        } catch (Throwable t) {
+            seek.future.completeExceptionally(t);
+            return;
+        }
+
+        synchronized (seekLock) {
+            if (pendingSeek != null) {
+                // Superseded while we were running, our packets will be delivered with the newer seek
+                seek.future.cancel(false);
+                return;
+            }
+        }
+
+        List<Packet> batch = undeliveredPackets;
+        undeliveredPackets = new ArrayList<>();
+        List<Packet> bundledBatch = bundle(batch);
+        if (!seek.future.complete(bundledBatch)) {
+            // Cancelled by the caller, deliver with the next batch (which will get its own bundle delimiters)
+            if (bundledBatch != batch) {
+                bundledBatch.stream().filter(packet -> packet.getType() == PacketType.Bundle).forEach(Packet::release);
+            }
+            undeliveredPackets = batch;
+        }
+    }
+
+    /**
+     * Wraps the given packets in bundles if enabled and supported.
+     * Packets which cannot be part of a bundle (such as those switching to or in the configuration phase) are left
+     * in-between bundles.
+     * @return The given list if no bundles are used, otherwise a new list
+     */
+    private List<Packet> bundle(List<Packet> packets) {
+        if (!bundledDispatch || registry.olderThan(ProtocolVersion.v1_19_4) || packets.isEmpty()) {
+            return packets;
+        }
+        List<Packet> result = new ArrayList<>(packets.size() + 2);
+        int bundleSize = -1; // -1 when not in a bundle
+        for (Packet packet : packets) {
+            boolean bundleable = packet.getRegistry().getState() == State.PLAY && packet.getType() != PacketType.Reconfigure;
+            if (bundleSize != -1 && (!bundleable || bundleSize >= MAX_BUNDLE_SIZE - 1)) {
+                result.add(new Packet(registry, PacketType.Bundle));
+                bundleSize = -1;
+            }
+            if (bundleable && bundleSize == -1) {
+                result.add(new Packet(registry, PacketType.Bundle));
+                bundleSize = 0;
+            }
+            result.add(packet);
+            if (bundleable) {
+                bundleSize++;
+            }
+        }
+        if (bundleSize != -1) {
+            result.add(new Packet(registry, PacketType.Bundle));
+        }
+        return result;
+    }
+
+    private void seek(int targetTime, IPosition focus, PacketSink target) throws IOException {
+        long sysTimeStart = System.nanoTime();
+        int[] packets = new int[1];
+        long[] bytes = new long[1];
+        PacketSink sink = packet -> {
+            packets[0]++;
+            bytes[0] += packet.getBuf().readableBytes();
+            target.accept(packet);
+        };
+        AreaOfInterest areaOfInterest = this.areaOfInterest;
+
+        PublishedSegments published = publishedSegments.getAndSet(null);
+        if (published != null) {
+            // New segments only extend the known ones, so the loaded one remains valid
+            segments = published.segments;
+            segmentsEndTime = published.endTime;
+            if (loadedSegment != -1) {
+                stateEndTime = getSegmentEndTime(loadedSegment);
+            }
+        }
+        if (segments != null) {
+            int segment = findSegment(targetTime);
+            if (segment != loadedSegment) {
+                Pair<Replay, ReadableCache> result = readCache(segment, d -> {});
+                if (result == null) throw new IOException("Failed to load cache segment " + segment);
+                if (state != null && currentTimeStamp != -1 && Math.abs(segment - loadedSegment) == 1) {
+                    // Adjacent segments share the state just before the later one starts (see ReplayAnalyzer#resume),
+                    // so bring the client to that point and continue from there with the other segment
+                    int boundary = segments.get(Math.max(segment, loadedSegment)).startTime - 1;
+                    state.setFocus(focus);
+                    state.setAreaOfInterest(areaOfInterest);
+                    if (segment > loadedSegment) {
+                        state.play(sink, currentTimeStamp, boundary);
+                    } else {
+                        state.rewind(sink, currentTimeStamp, boundary);
+                    }
+                    unloadState(Packet::release);
+                    loaded(result);
+                    state.setFocus(focus);
+                    state.setAreaOfInterest(areaOfInterest);
+                    state.play(Packet::release, -1, boundary);
+                    currentTimeStamp = boundary;
+                } else {
+                    // Without a shared state to switch at, this is effectively a reset of the client state
+                    unloadState(sink);
+                    loaded(result);
+                    currentTimeStamp = -1;
+                }
+                loadedSegment = segment;
+                stateEndTime = getSegmentEndTime(segment);
+            }
+        }
+        if (state == null) {
+            return; // nothing analysed yet
+        }
+        targetTime = Math.min(targetTime, stateEndTime - 1);
+
+        state.setFocus(focus);
+        state.setAreaOfInterest(areaOfInterest);
+
         if (targetTime > currentTimeStamp) {
-            state.play(this::dispatch, currentTimeStamp, targetTime);
+            state.play(sink, currentTimeStamp, targetTime);
         } else {
-            state.rewind(this::dispatch, currentTimeStamp, targetTime);
+            state.rewind(sink, currentTimeStamp, targetTime);
+        }
+
+        if (prefetcher != null) {
+            List<LazyPacketList> upcoming = new ArrayList<>();
+            int towards = targetTime >= currentTimeStamp ? targetTime + prefetchHorizon : targetTime - prefetchHorizon;
+            state.collectUpcomingSpawns(targetTime, towards, upcoming);
+            prefetcher.prefetch(upcoming);
+        }
+
+        long duration = System.nanoTime() - sysTimeStart;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Seek from " + currentTimeStamp + " to " + targetTime + " dispatched " + packets[0]
+                    + " packets (" + bytes[0] / 1024 + "KB) in " + duration / 1000 + "us, state footprint "
+                    + memoryBudget.getFootprint() / 1024 + "KB (peak " + memoryBudget.getPeakFootprint() / 1024 + "KB)");
+        }
+        if (seekListener != null) {
+            seekListener.onSeek(currentTimeStamp, targetTime, packets[0], bytes[0], duration);
         }
         currentTimeStamp = targetTime;
     }
+
+    public interface SeekListener {
+        /**
+         * Called after a seek has generated all its packets.
+         * @param fromTime The time the seek started at
+         * @param toTime The time the seek went to
+         * @param packets Number of packets generated (excluding any bundle delimiters)
+         * @param bytes Total size of the packets generated, excluding packet ids
+         * @param durationNanos Time it took to generate the packets
+         */
+        void onSeek(int fromTime, int toTime, int packets, long bytes, long durationNanos);
+    }
+
+    private static class PublishedSegments {
+        private final List<Segment> segments;
+        /**
+         * Time (exclusive) up to which the last segment is valid.
+         */
+        private final int endTime;
+
+        private PublishedSegments(List<Segment> segments, int endTime) {
+            this.segments = segments;
+            this.endTime = endTime;
+        }
+    }
+
+    /**
+     * A part of the cache, covering a range of the replay. Its state just before its start time is the one the previous
+     * segment has at that time.
+     */
+    private static class Segment {
+        private final int startTime;
+        /**
+         * Time (exclusive) up to which the segment is valid, also where the next one starts.
+         */
+        private final int endTime;
+        /**
+         * Number of packets in the replay before the end time, i.e. those which need to be skipped to resume the
+         * analysis after this segment if that cannot be done via the {@link #offset}.
+         */
+        private final int packets;
+        /**
+         * Offset in the raw packet data (see {@link ReplayInputStream#getPosition()}) of the first packet at or after
+         * the end time, so resuming the analysis does not need to decode all packets before it. For the last segment,
+         * this is where the packets at its end time start, so extending it after data has been appended to the
+         * recording does not need to decode them either.
+         */
+        private final long offset;
+
+        private Segment(int startTime, int endTime, int packets, long offset) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.packets = packets;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Lists the segments of the cache written so far, and whether these cover the whole recording (as it was when it
+     * had the given hash).
+     */
+    private static class CacheManifest {
+        private final List<Segment> segments;
+        private final boolean complete;
+        private final String recordingHash;
+
+        private CacheManifest(List<Segment> segments, boolean complete, String recordingHash) {
+            this.segments = segments;
+            this.complete = complete;
+            this.recordingHash = recordingHash;
+        }
+    }
+
+    private static class PendingSeek {
+        private final int targetTime;
+        private final IPosition focus;
+        private final CompletableFuture<List<Packet>> future;
+
+        private PendingSeek(int targetTime, IPosition focus, CompletableFuture<List<Packet>> future) {
+            this.targetTime = targetTime;
+            this.focus = focus;
+            this.future = future;
+        }
+    }
 }
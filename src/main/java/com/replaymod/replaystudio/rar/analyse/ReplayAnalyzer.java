@@ -44,6 +44,7 @@ import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.IntConsumer;
@@ -66,6 +67,12 @@ public class ReplayAnalyzer {
     private final RegistriesBuilder registriesBuilder = new RegistriesBuilder();
     private Packet lastLightUpdate = null;
 
+    private int startTime;
+    private int endTime;
+    private int packetsBeforeEnd;
+    private long endOffset;
+    private boolean endOfReplay;
+
     public ReplayAnalyzer(PacketTypeRegistry registry, NetOutput out, WriteableCache cache) throws IOException {
         this.registry = registry;
         this.out = out;
@@ -73,240 +80,359 @@ public class ReplayAnalyzer {
     }
 
     public void analyse(ReplayInputStream in, IntConsumer progress) throws IOException {
-        int time = 0;
+        analyse(in, Integer.MAX_VALUE, progress);
+    }
+
+    /**
+     * Analyses the replay only up to the given time. All things still alive at that time despawn at it, so the
+     * resulting state is valid for all times before it.
+     * The first packet at or after the end time is left in the input stream, so another analyzer can
+     * {@link #resume(List, int) resume} from there.
+     * @param endTime Time (exclusive) after which to stop
+     */
+    public void analyse(ReplayInputStream in, int endTime, IntConsumer progress) throws IOException {
+        analyse(in, endTime, Long.MAX_VALUE, progress);
+    }
+
+    /**
+     * Like {@link #analyse(ReplayInputStream, int, IntConsumer)} but additionally stops at the first new timestamp
+     * once the given amount of packet data has been analysed. Use {@link #isEndOfReplay()} to find out whether there
+     * is more to analyse.
+     * @param maxBytes Amount of packet data after which to stop, {@link Long#MAX_VALUE} for no limit
+     */
+    public void analyse(ReplayInputStream in, int endTime, long maxBytes, IntConsumer progress) throws IOException {
+        int time = startTime;
+        int packets = 0;
+        int packetsBeforeTime = 0;
+        long offsetBeforeTime = in.getPosition();
+        long bytes = 0;
+        endOfReplay = false;
         PacketData packetData;
-        while ((packetData = in.readPacket()) != null) {
+        while (true) {
+            long offset = in.getPosition();
+            packetData = in.readPacket();
+            if (packetData == null) {
+                endOfReplay = true;
+                break;
+            }
+            if (packetData.getTime() >= endTime) {
+                in.unreadPacket(packetData);
+                time = endTime;
+                packetsBeforeTime = packets;
+                offsetBeforeTime = offset;
+                break;
+            }
             Packet packet = packetData.getPacket();
-            time = (int) packetData.getTime();
-            progress.accept(time);
-            Integer entityId = PacketUtils.getEntityId(packet);
-            PacketType type = packet.getType();
-            switch (type) {
-                case SpawnPlayer:
-                case SpawnMob:
-                case SpawnObject:
-                case SpawnPainting: {
-                    Entity.Builder entity = replay.world.transientThings.newEntity(time, entityId);
-
-                    if (type == (packet.atLeast(ProtocolVersion.v1_20_2) ? PacketType.SpawnObject : PacketType.SpawnPlayer)) {
-                        PacketPlayerListEntry entry = playerListEntries.get(PacketSpawnPlayer.getPlayerListEntryId(packet));
-                        if (entry != null) {
-                            entity.addSpawnPacket(PacketPlayerListEntry.write(registry, PacketPlayerListEntry.Action.init(registry), entry));
-                        }
-                    }
-
-                    entity.addSpawnPacket(packet.retain());
+            int packetTime = (int) packetData.getTime();
+            if (packetTime != time) {
+                if (bytes >= maxBytes) {
+                    in.unreadPacket(packetData);
+                    time = packetTime;
+                    packetsBeforeTime = packets;
+                    offsetBeforeTime = offset;
                     break;
                 }
-                case DestroyEntity:
-                case DestroyEntities: {
-                    for (int id : PacketDestroyEntities.getEntityIds(packet)) {
-                        replay.world.transientThings.removeEntity(time, id);
+                time = packetTime;
+                packetsBeforeTime = packets;
+                offsetBeforeTime = offset;
+            }
+            packets++;
+            bytes += packet.getBuf().readableBytes();
+            progress.accept(time);
+            process(time, packet);
+        }
+
+        if (lastLightUpdate != null) {
+            lastLightUpdate.release();
+            lastLightUpdate = null;
+        }
+
+        for (PacketPlayerListEntry entry : playerListEntries.values()) {
+            replay.players.add(PacketPlayerListEntry.write(registry, PacketPlayerListEntry.Action.init(registry), entry));
+        }
+
+        replay.build(out, time);
+        this.endTime = time;
+        this.packetsBeforeEnd = packetsBeforeTime;
+        this.endOffset = offsetBeforeTime;
+    }
+
+    /**
+     * Restores the state of a previous analysis, so this analyzer continues where that one left off.
+     * Must be called before {@link #analyse(ReplayInputStream, int, IntConsumer)}, which must then be passed the
+     * stream positioned after the {@link #getPacketsBeforeEnd() packets} analysed by the previous one.
+     * The restored state is placed just before the given time, where it is identical to the state of the previous
+     * analysis, so a client can be switched from one to the other without re-sending any of it.
+     * <p>
+     * Only state which is sent to the client is restored, and it is restored as it is at that time rather than with
+     * its history. So things alive at the given time appear to have been created just before it, and a light update
+     * still waiting for its chunk is lost. Neither can be observed by seeking after the given time.
+     * @param packets Packets which re-create the state, that is the player list of the previous analysis followed by
+     *                the packets a {@link com.replaymod.replaystudio.rar.RandomAccessReplay} of it generates when
+     *                seeking from nothing to just before its end time. These are released by this method.
+     * @param time The end time of the previous analysis
+     */
+    public void resume(List<Packet> packets, int time) throws IOException {
+        startTime = time;
+        for (Packet packet : packets) {
+            process(time - 1, packet);
+        }
+    }
+
+    /**
+     * @return Time at which the state was built, i.e. the end time if it was reached, otherwise the time of the last
+     * packet in the replay
+     */
+    public int getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return Whether analysis stopped because the input stream ended, rather than at the end time or data limit
+     */
+    public boolean isEndOfReplay() {
+        return endOfReplay;
+    }
+
+    /**
+     * @return Number of packets read from the input stream whose time is before the {@link #getEndTime() end time}.
+     * Skipping these is where analysis of the rest of the replay resumes.
+     */
+    public int getPacketsBeforeEnd() {
+        return packetsBeforeEnd;
+    }
+
+    /**
+     * @return Offset in the raw packet data (see {@link ReplayInputStream#getPosition()}) right after the
+     * {@link #getPacketsBeforeEnd() packets before the end time}, also if the end of the replay has been reached.
+     * {@link ReplayInputStream#skipRaw(long) Skipping} to it is where analysis of the rest of the replay resumes.
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    private void process(int time, Packet packet) throws IOException {
+        Integer entityId = PacketUtils.getEntityId(packet);
+        PacketType type = packet.getType();
+        switch (type) {
+            case SpawnPlayer:
+            case SpawnMob:
+            case SpawnObject:
+            case SpawnPainting: {
+                Entity.Builder entity = replay.world.transientThings.newEntity(time, entityId);
+
+                if (type == (packet.atLeast(ProtocolVersion.v1_20_2) ? PacketType.SpawnObject : PacketType.SpawnPlayer)) {
+                    PacketPlayerListEntry entry = playerListEntries.get(PacketSpawnPlayer.getPlayerListEntryId(packet));
+                    if (entry != null) {
+                        entity.addSpawnPacket(PacketPlayerListEntry.write(registry, PacketPlayerListEntry.Action.init(registry), entry));
                     }
-                    break;
                 }
-                case UnloadChunk:
-                case ChunkData: {
-                    PacketChunkData chunkData = PacketChunkData.read(packet, replay.world.info.dimensionType.getSections());
-                    if (chunkData.isUnload()) {
-                        replay.world.transientThings.removeChunk(time, chunkData.getUnloadX(), chunkData.getUnloadZ());
-                    } else {
-                        processChunkLoad(time, chunkData.getColumn());
-                    }
-                    break;
+
+                entity.addSpawnPacket(packet.retain());
+                break;
+            }
+            case DestroyEntity:
+            case DestroyEntities: {
+                for (int id : PacketDestroyEntities.getEntityIds(packet)) {
+                    replay.world.transientThings.removeEntity(time, id);
                 }
-                case BulkChunkData: {
-                    for (PacketChunkData.Column column : PacketChunkData.readBulk(packet)) {
-                        processChunkLoad(time, column);
-                    }
-                    break;
+                break;
+            }
+            case UnloadChunk:
+            case ChunkData: {
+                PacketChunkData chunkData = PacketChunkData.read(packet, replay.world.info.dimensionType.getSections());
+                if (chunkData.isUnload()) {
+                    replay.world.transientThings.removeChunk(time, chunkData.getUnloadX(), chunkData.getUnloadZ());
+                } else {
+                    processChunkLoad(time, chunkData.getColumn());
                 }
-                case UpdateLight: {
-                    if (registry.atLeast(ProtocolVersion.v1_18)) {
-                        break; // initial light is now part of the chunk packet again
-                    }
-                    // A light update packet may be sent either before or after the corresponding chunk packet.
-                    // The vanilla server appears to always send it immediately before the chunk packet.
-                    // Third-party servers (e.g. Hypixel) may sent it after the corresponding chunk packet, hence
-                    // why we must support both options here.
-                    PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
-                    Chunk.Builder chunk = replay.world.transientThings.getChunk(updateLight.getX(), updateLight.getZ());
-                    if (chunk != null && chunk.spawnPackets.list.size() == 1) {
-                        // We we already know about the chunk and this is the first light update we receive for it,
-                        // then add the packet to the chunks spawn packets.
-                        chunk.spawnPackets.list.add(0, packet.retain());
-                    } else {
-                        // If we don't yet know about the chunk, then store the packet for when the chunk arrives.
-                        if (lastLightUpdate != null) {
-                            lastLightUpdate.release();
-                        }
-                        lastLightUpdate = packet.retain();
-                    }
-                    break;
+                break;
+            }
+            case BulkChunkData: {
+                for (PacketChunkData.Column column : PacketChunkData.readBulk(packet)) {
+                    processChunkLoad(time, column);
                 }
-                case BlockChange:
-                case MultiBlockChange: {
-                    for (PacketBlockChange record : PacketBlockChange.readSingleOrBulk(packet)) {
-                        IPosition pos = record.getPosition();
-                        Chunk.Builder chunk = replay.world.transientThings.getChunk(pos.getX() >> 4, pos.getZ() >> 4);
-                        if (chunk != null) {
-                            chunk.blocks.update(time, record);
-                        }
+                break;
+            }
+            case UpdateLight: {
+                if (registry.atLeast(ProtocolVersion.v1_18)) {
+                    break; // initial light is now part of the chunk packet again
+                }
+                // A light update packet may be sent either before or after the corresponding chunk packet.
+                // The vanilla server appears to always send it immediately before the chunk packet.
+                // Third-party servers (e.g. Hypixel) may sent it after the corresponding chunk packet, hence
+                // why we must support both options here.
+                PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
+                Chunk.Builder chunk = replay.world.transientThings.getChunk(updateLight.getX(), updateLight.getZ());
+                if (chunk != null && chunk.spawnPackets.list.size() == 1) {
+                    // We we already know about the chunk and this is the first light update we receive for it,
+                    // then add the packet to the chunks spawn packets.
+                    chunk.spawnPackets.list.add(0, packet.retain());
+                } else {
+                    // If we don't yet know about the chunk, then store the packet for when the chunk arrives.
+                    if (lastLightUpdate != null) {
+                        lastLightUpdate.release();
                     }
-                    break;
+                    lastLightUpdate = packet.retain();
                 }
-                case PlayerListEntry: {
-                    Set<PacketPlayerListEntry.Action> actions = PacketPlayerListEntry.getActions(packet);
-                    for (PacketPlayerListEntry entry : PacketPlayerListEntry.read(packet)) {
-                        for (PacketPlayerListEntry.Action action : actions) {
-                            switch (action) {
-                                case ADD:
-                                    playerListEntries.put(entry.getId(), entry);
-                                    break;
-                                case CHAT_KEY:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateChatKey(it, entry.getSigData()));
-                                    break;
-                                case GAMEMODE:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateGamemode(it, entry.getGamemode()));
-                                    break;
-                                case LISTED:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateListed(it, entry.isListed()));
-                                    break;
-                                case LATENCY:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateLatency(it, entry.getLatency()));
-                                    break;
-                                case DISPLAY_NAME:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateDisplayName(it, entry.getDisplayName()));
-                                    break;
-                                case REMOVE:
-                                    playerListEntries.remove(entry.getId());
-                            }
-                        }
+                break;
+            }
+            case BlockChange:
+            case MultiBlockChange: {
+                for (PacketBlockChange record : PacketBlockChange.readSingleOrBulk(packet)) {
+                    IPosition pos = record.getPosition();
+                    Chunk.Builder chunk = replay.world.transientThings.getChunk(pos.getX() >> 4, pos.getZ() >> 4);
+                    if (chunk != null) {
+                        chunk.blocks.update(time, record);
                     }
-                    break;
                 }
-                case Respawn: {
-                    PacketRespawn respawn = PacketRespawn.read(packet, replay.world.info.registries);
-                    String newDimension = respawn.dimension;
-                    if (!newDimension.equals(replay.world.info.dimension)) {
-                        World.Builder world = replay.newWorld(time, new World.Info(replay.world.info, respawn));
-                        if (registry.atLeast(ProtocolVersion.v1_14)) {
-                            currentViewChunkX = currentViewChunkZ = 0;
-                            world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
-                            world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
-                        }
-                        if (registry.atLeast(ProtocolVersion.v1_18)) {
-                            world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
+                break;
+            }
+            case PlayerListEntry: {
+                Set<PacketPlayerListEntry.Action> actions = PacketPlayerListEntry.getActions(packet);
+                for (PacketPlayerListEntry entry : PacketPlayerListEntry.read(packet)) {
+                    for (PacketPlayerListEntry.Action action : actions) {
+                        switch (action) {
+                            case ADD:
+                                playerListEntries.put(entry.getId(), entry);
+                                break;
+                            case CHAT_KEY:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateChatKey(it, entry.getSigData()));
+                                break;
+                            case GAMEMODE:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateGamemode(it, entry.getGamemode()));
+                                break;
+                            case LISTED:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateListed(it, entry.isListed()));
+                                break;
+                            case LATENCY:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateLatency(it, entry.getLatency()));
+                                break;
+                            case DISPLAY_NAME:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateDisplayName(it, entry.getDisplayName()));
+                                break;
+                            case REMOVE:
+                                playerListEntries.remove(entry.getId());
                         }
                     }
-                    break;
                 }
-                case JoinGame: {
-                    PacketJoinGame joinGame = PacketJoinGame.read(packet, registries);
-                    replay.newWorld(time, new World.Info(joinGame, joinGame.registries));
+                break;
+            }
+            case Respawn: {
+                PacketRespawn respawn = PacketRespawn.read(packet, replay.world.info.registries);
+                String newDimension = respawn.dimension;
+                if (!newDimension.equals(replay.world.info.dimension)) {
+                    World.Builder world = replay.newWorld(time, new World.Info(replay.world.info, respawn));
                     if (registry.atLeast(ProtocolVersion.v1_14)) {
                         currentViewChunkX = currentViewChunkZ = 0;
-                        replay.world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
-
-                        currentViewDistance = joinGame.viewDistance;
-                        replay.world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
+                        world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
+                        world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
                     }
                     if (registry.atLeast(ProtocolVersion.v1_18)) {
-                        currentSimulationDistance = joinGame.simulationDistance;
-                        replay.world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
+                        world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
                     }
-                    break;
-                }
-                case ConfigFeatures:
-                case Features: {
-                    replay.features.put(time, packet.retain());
-                    break;
                 }
-                case ConfigTags: {
-                    // As of 1.20.2, tags can also be sent in the config phase. For simplicity, we'll convert those to
-                    // play phase ones; their encoding is identical.
-                    replay.tags.put(time, new Packet(registry, PacketType.Tags, packet.getBuf().retain()));
-                    break;
-                }
-                case Tags: {
-                    replay.tags.put(time, packet.retain());
-                    break;
+                break;
+            }
+            case JoinGame: {
+                PacketJoinGame joinGame = PacketJoinGame.read(packet, registries);
+                replay.newWorld(time, new World.Info(joinGame, joinGame.registries));
+                if (registry.atLeast(ProtocolVersion.v1_14)) {
+                    currentViewChunkX = currentViewChunkZ = 0;
+                    replay.world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
+
+                    currentViewDistance = joinGame.viewDistance;
+                    replay.world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
                 }
-                case ConfigCustomPayload:
-                case ConfigSelectKnownPacks:
-                case ConfigRegistries:
-                case ConfigFinish: {
-                    registries = registriesBuilder.update(packet, registries);
-                    break;
+                if (registry.atLeast(ProtocolVersion.v1_18)) {
+                    currentSimulationDistance = joinGame.simulationDistance;
+                    replay.world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
                 }
-                case UpdateViewPosition: {
-                    currentViewChunkX = PacketUpdateViewPosition.getChunkX(packet);
-                    currentViewChunkZ = PacketUpdateViewPosition.getChunkZ(packet);
-                    invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
+                break;
+            }
+            case ConfigFeatures:
+            case Features: {
+                replay.features.put(time, packet.retain());
+                break;
+            }
+            case ConfigTags: {
+                // As of 1.20.2, tags can also be sent in the config phase. For simplicity, we'll convert those to
+                // play phase ones; their encoding is identical.
+                replay.tags.put(time, new Packet(registry, PacketType.Tags, packet.getBuf().retain()));
+                break;
+            }
+            case Tags: {
+                replay.tags.put(time, packet.retain());
+                break;
+            }
+            case ConfigCustomPayload:
+            case ConfigSelectKnownPacks:
+            case ConfigRegistries:
+            case ConfigFinish: {
+                registries = registriesBuilder.update(packet, registries);
+                break;
+            }
+            case UpdateViewPosition: {
+                currentViewChunkX = PacketUpdateViewPosition.getChunkX(packet);
+                currentViewChunkZ = PacketUpdateViewPosition.getChunkZ(packet);
+                invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
 
-                    replay.world.viewPosition.put(time, packet.retain());
-                    break;
-                }
-                case UpdateViewDistance: {
-                    currentViewDistance = PacketUpdateViewDistance.getDistance(packet);
-                    invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
+                replay.world.viewPosition.put(time, packet.retain());
+                break;
+            }
+            case UpdateViewDistance: {
+                currentViewDistance = PacketUpdateViewDistance.getDistance(packet);
+                invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
 
-                    replay.world.viewDistance.put(time, packet.retain());
-                    break;
-                }
-                case UpdateSimulationDistance: {
-                    currentSimulationDistance = PacketUpdateSimulationDistance.getDistance(packet);
+                replay.world.viewDistance.put(time, packet.retain());
+                break;
+            }
+            case UpdateSimulationDistance: {
+                currentSimulationDistance = PacketUpdateSimulationDistance.getDistance(packet);
 
-                    replay.world.simulationDistance.put(time, packet.retain());
-                    break;
-                }
-                case UpdateTime: {
-                    replay.world.worldTimes.put(time, packet.retain());
-                    break;
-                }
-                case NotifyClient: {
-                    switch (PacketNotifyClient.getAction(packet)) {
-                        case START_RAIN:
-                            replay.world.transientThings.newWeather(time);
-                            break;
-                        case STOP_RAIN:
-                            replay.world.transientThings.removeWeather(time);
-                            break;
-                        case RAIN_STRENGTH:
-                            replay.world.rainStrengths.put(time, packet.retain());
-                            break;
-                        case THUNDER_STRENGTH:
-                            replay.world.thunderStrengths.put(time, packet.retain());
-                            break;
-                        default:
-                            break;
-                    }
-                    break;
-                }
+                replay.world.simulationDistance.put(time, packet.retain());
+                break;
             }
-            if (entityId != null) {
-                Entity.Builder entity = replay.world.transientThings.getEntity(entityId);
-                if (entity != null) {
-                    Location current = entity.getLocation();
-                    Location updated = PacketUtils.updateLocation(current, packet);
-                    if (updated != null) {
-                        entity.updateLocation(time, updated);
-                    }
+            case UpdateTime: {
+                replay.world.worldTimes.put(time, packet.retain());
+                break;
+            }
+            case NotifyClient: {
+                switch (PacketNotifyClient.getAction(packet)) {
+                    case START_RAIN:
+                        replay.world.transientThings.newWeather(time);
+                        break;
+                    case STOP_RAIN:
+                        replay.world.transientThings.removeWeather(time);
+                        break;
+                    case RAIN_STRENGTH:
+                        replay.world.rainStrengths.put(time, packet.retain());
+                        break;
+                    case THUNDER_STRENGTH:
+                        replay.world.thunderStrengths.put(time, packet.retain());
+                        break;
+                    default:
+                        break;
                 }
+                break;
             }
-            packet.release();
         }
-
-        if (lastLightUpdate != null) {
-            lastLightUpdate.release();
+        if (entityId != null) {
+            Entity.Builder entity = replay.world.transientThings.getEntity(entityId);
+            if (entity != null) {
+                Location current = entity.getLocation();
+                Location updated = PacketUtils.updateLocation(current, packet);
+                if (updated != null) {
+                    entity.updateLocation(time, updated);
+                }
+            }
         }
-
-        replay.build(out, time);
+        packet.release();
     }
 
     private void processChunkLoad(int time, PacketChunkData.Column column) throws IOException {
@@ -19,18 +19,27 @@
 
 package com.replaymod.replaystudio.rar.cache;
 
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.util.ByteBufExtNetInput;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static com.replaymod.replaystudio.util.Utils.readCompressedPacket;
-import static com.replaymod.replaystudio.util.Utils.writeCompressedPacket;
+import static com.replaymod.replaystudio.util.Utils.readCompressed;
+import static com.replaymod.replaystudio.util.Utils.readPacket;
+import static com.replaymod.replaystudio.util.Utils.writeCompressed;
+import static com.replaymod.replaystudio.util.Utils.writePacket;
 
 public class LazyPacketList {
     private final PacketTypeRegistry registry;
@@ -42,30 +51,122 @@ public class LazyPacketList {
     }
 
     public void read(PacketSink sink, ReadableCache cache) throws IOException {
+        List<Packet> prefetched = cache.takePrefetched(index);
+        if (prefetched != null) {
+            for (Packet packet : prefetched) {
+                sink.accept(packet);
+            }
+            return;
+        }
+
+        decode(sink, cache);
+    }
+
+    void decode(PacketSink sink, ReadableCache cache) throws IOException {
         NetInput in = cache.seek(index);
-        for (int i = in.readVarInt(); i > 0; i--) {
-            sink.accept(readCompressedPacket(registry, in));
+        int count = in.readVarInt();
+        ByteBuf block = readCompressed(in);
+        try {
+            NetInput blockIn = new ByteBufExtNetInput(block);
+            for (int i = 0; i < count; i++) {
+                int len = blockIn.readVarInt();
+                ByteBuf packetBuf = block.readSlice(len);
+                sink.accept(readPacket(registry, packetBuf));
+            }
+        } finally {
+            block.release();
         }
     }
 
+    int getIndex() {
+        return index;
+    }
+
     public static class Builder {
+        /**
+         * Lists with less payload than this are not worth deduplicating.
+         */
+        private static final int MIN_SHARED_SIZE = 256;
+
         public final List<Packet> list = new ArrayList<>();
 
         public void add(Packet packet) {
             list.add(packet);
         }
 
+        /**
+         * Writes the list to the cache and returns its index.
+         * Identical lists (e.g. chunks which are re-sent every time the player returns to them) share one copy.
+         */
         public int build(WriteableCache cache) throws IOException {
-            int index = cache.index();
+            byte[] key = contentKey();
+            if (key != null) {
+                int sharedIndex = cache.getSharedIndex(key);
+                if (sharedIndex != -1) {
+                    for (Packet packet : list) {
+                        packet.release();
+                    }
+                    return sharedIndex;
+                }
+            }
 
-            NetOutput out = cache.write();
-            out.writeVarInt(list.size());
-            for (Packet packet : list) {
-                writeCompressedPacket(out, packet);
-                packet.release();
+            // All packets are compressed as one block, which is a lot more effective than compressing each one of
+            // them individually as they tend to be small and similar.
+            ByteBuf block = PooledByteBufAllocator.DEFAULT.heapBuffer();
+            ByteBuf packetBuf = PooledByteBufAllocator.DEFAULT.heapBuffer();
+            int index;
+            try {
+                ByteBufNetOutput blockOut = new ByteBufNetOutput(block);
+                for (Packet packet : list) {
+                    packetBuf.clear();
+                    writePacket(packetBuf, packet);
+                    blockOut.writeVarInt(packetBuf.readableBytes());
+                    block.writeBytes(packetBuf);
+                    packet.release();
+                }
+
+                index = cache.index();
+                NetOutput out = cache.write();
+                out.writeVarInt(list.size());
+                writeCompressed(out, block);
+            } finally {
+                block.release();
+                packetBuf.release();
             }
 
+            if (key != null) {
+                cache.putSharedIndex(key, index);
+            }
             return index;
         }
+
+        private byte[] contentKey() {
+            int size = 0;
+            for (Packet packet : list) {
+                size += packet.getBuf().readableBytes();
+            }
+            if (size < MIN_SHARED_SIZE) {
+                return null;
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("SHA-256 is guaranteed to be available", e);
+            }
+            ByteBuffer header = ByteBuffer.allocate(12);
+            for (Packet packet : list) {
+                ByteBuf buf = packet.getBuf();
+                header.clear();
+                header.putInt(packet.getType().getState().ordinal());
+                header.putInt(packet.getId());
+                header.putInt(buf.readableBytes());
+                header.flip();
+                digest.update(header);
+                digest.update(buf.nioBuffer());
+            }
+            return digest.digest();
+        }
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the heap footprint of state which has been decoded from a {@link ReadableCache} and can be re-read
+ * from it at any time. Whenever the total exceeds the limit, the least recently used state is paged out.
+ * Not thread-safe, must only be used from the thread which is seeking.
+ */
+public class MemoryBudget {
+    private final long limit;
+    /**
+     * All resident state with its footprint, in access order.
+     */
+    private final LinkedHashMap<Pageable, Long> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private long footprint;
+    private long peakFootprint;
+
+    /**
+     * @param limit Maximum total footprint in bytes, state is paged out (least recently used first) when exceeded
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Records that the given state has been read into memory and marks it as most recently used.
+     * Pages out other state if the limit is now exceeded.
+     */
+    public void pagedIn(Pageable pageable) {
+        long size = pageable.getFootprint();
+        Long oldSize = resident.put(pageable, size);
+        footprint += size - (oldSize != null ? oldSize : 0);
+
+        Iterator<Map.Entry<Pageable, Long>> iter = resident.entrySet().iterator();
+        while (footprint > limit && iter.hasNext()) {
+            Map.Entry<Pageable, Long> entry = iter.next();
+            if (entry.getKey() == pageable) {
+                continue; // it is about to be used, evicting it would be pointless
+            }
+            iter.remove();
+            footprint -= entry.getValue();
+            entry.getKey().pageOut();
+        }
+
+        peakFootprint = Math.max(peakFootprint, footprint);
+    }
+
+    /**
+     * Marks the given state as most recently used.
+     */
+    public void touch(Pageable pageable) {
+        resident.get(pageable);
+    }
+
+    /**
+     * Records that the given state has been released by its owner.
+     */
+    public void removed(Pageable pageable) {
+        Long size = resident.remove(pageable);
+        if (size != null) {
+            footprint -= size;
+        }
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return Estimated heap size of all currently resident state in bytes
+     */
+    public long getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * @return Highest value {@link #getFootprint()} has ever had
+     */
+    public long getPeakFootprint() {
+        return peakFootprint;
+    }
+
+    public interface Pageable {
+        /**
+         * @return Estimated heap size of this state in bytes
+         */
+        long getFootprint();
+
+        /**
+         * Drops the state from memory, it must be read from the cache again before it is next used.
+         */
+        void pageOut();
+    }
+}
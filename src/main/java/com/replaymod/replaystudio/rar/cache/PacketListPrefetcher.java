@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.cache;
+
+import com.replaymod.replaystudio.protocol.Packet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes {@link LazyPacketList}s which are expected to be read soon on a background thread, so they can later be read
+ * from memory instead of having to be inflated on the thread doing the seeking.
+ * The amount of memory held by decoded lists which have not yet been taken is bounded.
+ */
+public class PacketListPrefetcher implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(PacketListPrefetcher.class.getName());
+
+    private final ReadableCache cache;
+    private final long maxBytes;
+    private final ExecutorService worker;
+
+    // All guarded by this
+    private final Map<Integer, List<Packet>> ready = new HashMap<>();
+    private long readyBytes;
+    /**
+     * Incremented whenever outstanding work is cancelled, so the worker can tell whether its task is still wanted.
+     */
+    private int generation;
+
+    /**
+     * @param cache The cache to decode from, the prefetcher reads from its own duplicate of it
+     * @param maxBytes Maximum amount of packet data kept in decoded lists which have not yet been taken
+     */
+    public PacketListPrefetcher(ReadableCache cache, long maxBytes) {
+        this.cache = cache.retainedDuplicate();
+        this.maxBytes = maxBytes;
+        this.worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replaystudio-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Replaces any outstanding prefetch work with the given lists, which are decoded in order until the memory limit is
+     * reached. Already decoded lists which are no longer wanted are discarded.
+     * @param lists Lists expected to be read soon, most urgent first
+     */
+    public synchronized void prefetch(List<LazyPacketList> lists) {
+        int generation = ++this.generation;
+
+        Set<Integer> wanted = new HashSet<>();
+        for (LazyPacketList list : lists) {
+            wanted.add(list.getIndex());
+        }
+        Iterator<Map.Entry<Integer, List<Packet>>> iter = ready.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Integer, List<Packet>> entry = iter.next();
+            if (!wanted.contains(entry.getKey())) {
+                readyBytes -= release(entry.getValue());
+                iter.remove();
+            }
+        }
+
+        if (!lists.isEmpty()) {
+            List<LazyPacketList> queue = new ArrayList<>(lists);
+            worker.execute(() -> run(generation, queue));
+        }
+    }
+
+    /**
+     * Cancels all outstanding prefetch work and discards all decoded lists.
+     * Should be called whenever the playhead jumps somewhere unexpected.
+     */
+    public synchronized void cancel() {
+        generation++;
+        for (List<Packet> packets : ready.values()) {
+            release(packets);
+        }
+        ready.clear();
+        readyBytes = 0;
+    }
+
+    /**
+     * Takes the decoded packets of the list at the given index.
+     * @return The packets, or {@code null} if the list has not been decoded (yet)
+     */
+    synchronized List<Packet> take(int index) {
+        List<Packet> packets = ready.remove(index);
+        if (packets != null) {
+            readyBytes -= size(packets);
+        }
+        return packets;
+    }
+
+    private void run(int generation, List<LazyPacketList> lists) {
+        for (LazyPacketList list : lists) {
+            synchronized (this) {
+                if (generation != this.generation || readyBytes >= maxBytes) {
+                    return;
+                }
+                if (ready.containsKey(list.getIndex())) {
+                    continue;
+                }
+            }
+
+            List<Packet> packets = new ArrayList<>();
+            try {
+                list.decode(packets::add, cache);
+            } catch (IOException | RuntimeException e) {
+                release(packets);
+                LOGGER.log(Level.WARNING, "Failed to prefetch packet list at " + list.getIndex() + ":", e);
+                return;
+            }
+
+            synchronized (this) {
+                if (generation != this.generation || ready.containsKey(list.getIndex())) {
+                    release(packets);
+                    return;
+                }
+                ready.put(list.getIndex(), packets);
+                readyBytes += size(packets);
+            }
+        }
+    }
+
+    private static long size(List<Packet> packets) {
+        long size = 0;
+        for (Packet packet : packets) {
+            size += packet.getBuf().readableBytes();
+        }
+        return size;
+    }
+
+    private static long release(List<Packet> packets) {
+        long size = size(packets);
+        for (Packet packet : packets) {
+            packet.release();
+        }
+        return size;
+    }
+
+    /**
+     * Cancels all outstanding work, waits for the worker thread to finish and releases all held resources.
+     */
+    @Override
+    public void close() throws IOException {
+        if (worker.isShutdown()) {
+            return;
+        }
+        cancel();
+        worker.shutdown();
+        // The worker stops after at most one more list now, we must not release the cache before it has
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        cancel();
+        cache.release();
+    }
+}
@@ -21,15 +21,30 @@ package com.replaymod.replaystudio.rar.cache;
 
 import com.github.steveice10.netty.buffer.ByteBuf;
 import com.github.steveice10.packetlib.io.NetInput;
+import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.util.ByteBufExtNetInput;
 
+import java.util.List;
+
 public class ReadableCache {
     private final ByteBuf buf;
     private final NetInput in;
+    private final Runnable onDeallocate;
+    private PacketListPrefetcher prefetcher;
+    private MemoryBudget memoryBudget;
 
     public ReadableCache(ByteBuf buf) {
+        this(buf, null);
+    }
+
+    /**
+     * @param onDeallocate Called once this cache and all its {@link #retainedDuplicate() duplicates} have been
+     *                     released, e.g. to unmap the memory backing the buffer
+     */
+    public ReadableCache(ByteBuf buf, Runnable onDeallocate) {
         this.buf = buf;
         this.in = new ByteBufExtNetInput(buf);
+        this.onDeallocate = onDeallocate;
     }
 
     public NetInput seek(int index) {
@@ -37,7 +52,49 @@ public class ReadableCache {
         return in;
     }
 
+    /**
+     * Returns a new cache which shares the content of this one but can be read independently, e.g. from another thread.
+     * The returned cache must be released separately.
+     */
+    public ReadableCache retainedDuplicate() {
+        return new ReadableCache(buf.retainedDuplicate(), onDeallocate);
+    }
+
+    /**
+     * Sets the prefetcher from which packet lists read from this cache are taken, if it has already decoded them.
+     */
+    public void setPrefetcher(PacketListPrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    List<Packet> takePrefetched(int index) {
+        return prefetcher != null ? prefetcher.take(index) : null;
+    }
+
+    /**
+     * Sets the budget which state read from this cache should register with, so it can be paged out when needed.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return The memory budget, or {@code null} if state read from this cache should be kept in memory until unloaded
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return Size of the heap buffer holding this cache, or 0 if it is held outside of the heap (e.g. mapped)
+     */
+    public long getHeapSize() {
+        return buf.isDirect() ? 0 : buf.capacity();
+    }
+
     public void release() {
-        buf.release();
+        if (buf.release() && onDeallocate != null) {
+            onDeallocate.run();
+        }
     }
 }
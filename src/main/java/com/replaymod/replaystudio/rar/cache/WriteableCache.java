@@ -16,71 +16,200 @@
  * You should have received a copy of the GNU Lesser General Public License
  * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
  */
-
 package com.replaymod.replaystudio.rar.cache;
 
 import com.github.steveice10.netty.buffer.ByteBuf;
-import com.github.steveice10.netty.buffer.Unpooled;
+import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
 import com.github.steveice10.packetlib.io.NetOutput;
-import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
 import com.replaymod.replaystudio.util.ByteBufExtNetOutput;
-import com.replaymod.replaystudio.util.Utils;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache writer used during analysis.
+ * Data is collected in large pooled direct buffers which are written to the underlying (usually compressing) output
+ * stream in bulk on a background thread, so serialization and compression do not hold up the analysis.
+ * Must be closed before the underlying output stream to ensure all data has been written.
+ */
+public class WriteableCache implements Closeable {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 8;
+    /**
+     * Committed deferred buffers smaller than this are copied into the current chunk instead of being written on their
+     * own, so the underlying stream never sees tiny writes.
+     */
+    private static final int MIN_DIRECT_WRITE = 64 * 1024;
+
+    private final OutputStream stream;
+    private final ExecutorService writer;
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private volatile IOException writeError;
 
-public class WriteableCache {
-    private final CountingOutputStream wrapper;
-    private final NetOutput out;
+    /**
+     * Index of previously written shared data by content key.
+     */
+    private final Map<ByteBuffer, Integer> sharedIndices = new HashMap<>();
+
+    /**
+     * Amount of bytes handed off to the writer thread.
+     */
+    private int flushedIndex;
+    private ByteBuf buf;
+    private NetOutput out;
 
     public WriteableCache(OutputStream out) {
-        this.wrapper = new CountingOutputStream(out);
-        this.out = new StreamNetOutput(wrapper);
+        this.stream = out;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replaystudio-cache-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        newChunk();
+    }
+
+    private void newChunk() {
+        buf = PooledByteBufAllocator.DEFAULT.directBuffer(CHUNK_SIZE);
+        out = new ByteBufExtNetOutput(buf);
     }
 
     public int index() {
-        return wrapper.index;
+        return flushedIndex + buf.readableBytes();
     }
 
-    public NetOutput write() {
+    /**
+     * Returns the output for writing directly to the cache.
+     * The returned output must no longer be used once any other method of this cache has been called.
+     * @return The output
+     */
+    public NetOutput write() throws IOException {
+        if (buf.readableBytes() >= CHUNK_SIZE) {
+            flushChunk();
+        }
         return out;
     }
 
+    /**
+     * Returns the index at which data with the given content key has previously been written.
+     * @param key Key uniquely identifying the content, e.g. a cryptographic hash of it
+     * @return The index, or -1 if no such data has been written yet
+     */
+    public int getSharedIndex(byte[] key) {
+        return sharedIndices.getOrDefault(ByteBuffer.wrap(key), -1);
+    }
+
+    /**
+     * Records that data with the given content key has been written at the given index, so later writers of the same
+     * content can refer to it instead of writing it again.
+     * @see #getSharedIndex(byte[])
+     */
+    public void putSharedIndex(byte[] key, int index) {
+        sharedIndices.put(ByteBuffer.wrap(key), index);
+    }
+
     public Deferred deferred() {
-        return new Deferred(Unpooled.buffer());
+        return new Deferred(PooledByteBufAllocator.DEFAULT.directBuffer());
     }
 
-    public class Deferred extends ByteBufExtNetOutput {
-        private Deferred(ByteBuf buf) {
-            super(buf);
+    private void flushChunk() throws IOException {
+        if (buf.isReadable()) {
+            enqueue(buf);
+            newChunk();
         }
+    }
 
-        public int commit() throws IOException {
-            int index = index();
-            Utils.writeBytes(out, getBuf());
-            getBuf().release();
-            return index;
+    private void enqueue(ByteBuf chunk) throws IOException {
+        try {
+            checkWriteError();
+            pendingChunks.acquire();
+        } catch (IOException | InterruptedException e) {
+            chunk.release();
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            throw (IOException) e;
         }
+        flushedIndex += chunk.readableBytes();
+        writer.execute(() -> {
+            try {
+                if (writeError == null) {
+                    chunk.readBytes(stream, chunk.readableBytes());
+                }
+            } catch (IOException e) {
+                writeError = e;
+            } finally {
+                chunk.release();
+                pendingChunks.release();
+            }
+        });
     }
 
-    private static class CountingOutputStream extends OutputStream {
-        private final OutputStream inner;
-        private int index;
+    private void checkWriteError() throws IOException {
+        IOException error = writeError;
+        if (error != null) {
+            throw new IOException("Failed to write cache", error);
+        }
+    }
 
-        private CountingOutputStream(OutputStream inner) {
-            this.inner = inner;
+    /**
+     * Writes all remaining data to the underlying output stream and waits for the writer thread to finish.
+     * Does not close the underlying output stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer.isShutdown()) {
+            return;
+        }
+        try {
+            if (buf.isReadable()) {
+                enqueue(buf);
+            } else {
+                buf.release();
+            }
+        } finally {
+            buf = null;
+            out = null;
+            writer.shutdown();
+        }
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
         }
+        checkWriteError();
+    }
 
-        @Override
-        public void write(int i) throws IOException {
-            inner.write(i);
-            index++;
+    public class Deferred extends ByteBufExtNetOutput {
+        private Deferred(ByteBuf buf) {
+            super(buf);
         }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            inner.write(b, off, len);
-            index += len;
+        public int commit() throws IOException {
+            ByteBuf deferredBuf = getBuf();
+            if (deferredBuf.readableBytes() < MIN_DIRECT_WRITE) {
+                int index = index();
+                buf.writeBytes(deferredBuf);
+                deferredBuf.release();
+                if (buf.readableBytes() >= CHUNK_SIZE) {
+                    flushChunk();
+                }
+                return index;
+            }
+            flushChunk();
+            int index = index();
+            enqueue(deferredBuf);
+            return index;
         }
     }
 }
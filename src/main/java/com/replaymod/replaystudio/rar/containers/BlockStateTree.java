@@ -16,80 +16,369 @@
  * You should have received a copy of the GNU Lesser General Public License
  * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
  */
-
 package com.replaymod.replaystudio.rar.containers;
 
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
-import com.replaymod.replaystudio.lib.guava.collect.ListMultimap;
-import com.replaymod.replaystudio.lib.guava.collect.Multimaps;
 import com.replaymod.replaystudio.lib.viaversion.api.minecraft.chunks.PaletteType;
-import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.lib.viaversion.api.protocol.version.ProtocolVersion;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.util.IPosition;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+
+/**
+ * Block changes of a single chunk column.
+ * Each change is packed into a single long (see {@link #pack(int, int, int)}), all changes at one time are stored in
+ * a {@link LongList}. In the cache, state ids are stored as indices into a palette shared by all changes of the column.
+ */
+public class BlockStateTree extends DiffStateTree<LongList>  {
+
+    /**
+     * Minimum amount of changes between two checkpoints.
+     * The actual interval is at least the amount of distinct positions, so checkpoints never take up more memory than
+     * the changes themselves.
+     */
+    private static final int MIN_CHECKPOINT_INTERVAL = 256;
 
-public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.BlockChange>>  {
+    private static final int STATE_BITS = 21;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+    private static final int POS_BITS = 22;
+    private static final int POS_MASK = (1 << POS_BITS) - 1;
 
     private final PacketTypeRegistry registry;
 
+    private int chunkX;
+    private int chunkZ;
+    private int[] palette;
+
+    // Checkpoints for long jumps, computed on load. Null if there are too few changes for them to be worth it.
+    // Each checkpoint contains the state of every position which is ever changed in this tree, as of its time (i.e.
+    // after all changes at that time have been applied). The first checkpoint is the initial state.
+    private int[] positions;
+    private int[] checkpointTimes;
+    private int[][] checkpointStates;
+
     public BlockStateTree(PacketTypeRegistry registry, int index) {
         super(index);
         this.registry = registry;
     }
 
+    /**
+     * Packs a change into a single long: 21 bits each for the previous and new state, followed by the position as
+     * returned by {@link #packPos(int, int, int)} in the lowest 22 bits.
+     */
+    private static long pack(int pos, int from, int to) {
+        return (long) from << (STATE_BITS + POS_BITS) | (long) to << POS_BITS | pos;
+    }
+
+    private static int from(long change) {
+        return (int) (change >>> (STATE_BITS + POS_BITS));
+    }
+
+    private static int to(long change) {
+        return (int) (change >>> POS_BITS) & STATE_MASK;
+    }
+
+    private static int pos(long change) {
+        return (int) change & POS_MASK;
+    }
+
+    /**
+     * Packs a position within the column: 10 bits for the section y, 12 bits for the position within the section.
+     */
+    private static int packPos(int x, int y, int z) {
+        return ((y >> 4) & 0x3ff) << 12 | (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+
+    private static int sectionY(int pos) {
+        return pos << 10 >> 22;
+    }
+
+    private IPosition unpackPos(int pos) {
+        return new IPosition(chunkX << 4 | pos & 15, sectionY(pos) << 4 | pos >> 8 & 15, chunkZ << 4 | pos >> 4 & 15);
+    }
+
     @Override
-    protected Collection<BlockChange> read(NetInput in) throws IOException {
-        List<BlockChange> list = new LinkedList<>(); // LinkedList to allow .descendingIterator
+    protected void readHeader(NetInput in) throws IOException {
+        chunkX = in.readVarInt();
+        chunkZ = in.readVarInt();
+        palette = new int[in.readVarInt()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = in.readVarInt();
+        }
+    }
 
-        for (int j = in.readVarInt(); j > 0; j--) {
-            list.add(new BlockChange(
-                    Packet.Reader.readPosition(registry, in),
-                    in.readVarInt(),
-                    in.readVarInt()
-            ));
+    @Override
+    protected LongList read(NetInput in) throws IOException {
+        long[] changes = new long[in.readVarInt()];
+        for (int i = 0; i < changes.length; i++) {
+            int pos = in.readVarInt();
+            int from = palette[in.readVarInt()];
+            int to = palette[in.readVarInt()];
+            changes[i] = pack(pos, from, to);
         }
+        return LongArrayList.wrap(changes);
+    }
 
-        return list;
+    @Override
+    protected void discard(LongList value) {
     }
 
     @Override
-    protected void discard(Collection<BlockChange> value) {
+    protected void pagedIn() {
+        palette = null;
+        computeCheckpoints();
     }
 
     @Override
-    protected void play(PacketSink sink, Collection<BlockChange> value) throws IOException {
-        for (BlockChange change : value) {
-            sink.accept(new PacketBlockChange(change.pos, change.to).write(registry));
+    protected void pagedOut() {
+        positions = null;
+        checkpointTimes = null;
+        checkpointStates = null;
+    }
+
+    @Override
+    protected long estimateFootprint() {
+        long footprint = super.estimateFootprint();
+        for (LongList changes : map.values()) {
+            footprint += 32 + changes.size() * 8L;
         }
+        if (checkpointStates != null) {
+            footprint += (checkpointStates.length + 1) * (16 + positions.length * 4L);
+        }
+        return footprint;
+    }
+
+    private void computeCheckpoints() {
+        Int2IntMap positionIndices = new Int2IntOpenHashMap();
+        positionIndices.defaultReturnValue(-1);
+        IntList positions = new IntArrayList();
+        IntList initialStates = new IntArrayList();
+        int totalChanges = 0;
+        for (LongList changes : map.values()) {
+            for (int i = 0; i < changes.size(); i++) {
+                long change = changes.getLong(i);
+                if (positionIndices.putIfAbsent(pos(change), positions.size()) == -1) {
+                    positions.add(pos(change));
+                    initialStates.add(from(change));
+                }
+            }
+            totalChanges += changes.size();
+        }
+
+        int interval = Math.max(MIN_CHECKPOINT_INTERVAL, positions.size());
+        if (totalChanges < interval * 2) {
+            return; // not worth it, diffs alone are cheap enough
+        }
+
+        int[] state = initialStates.toIntArray();
+
+        IntList times = new IntArrayList();
+        List<int[]> states = new ArrayList<>();
+        times.add(Integer.MIN_VALUE);
+        states.add(state.clone());
+
+        int changesSinceCheckpoint = 0;
+        for (Map.Entry<Integer, LongList> entry : map.entrySet()) {
+            LongList changes = entry.getValue();
+            for (int i = 0; i < changes.size(); i++) {
+                long change = changes.getLong(i);
+                state[positionIndices.get(pos(change))] = to(change);
+            }
+            changesSinceCheckpoint += changes.size();
+            if (changesSinceCheckpoint >= interval) {
+                times.add((int) entry.getKey());
+                states.add(state.clone());
+                changesSinceCheckpoint = 0;
+            }
+        }
+
+        this.positions = positions.toIntArray();
+        this.checkpointTimes = times.toIntArray();
+        this.checkpointStates = states.toArray(new int[0][]);
     }
 
     @Override
-    protected void rewind(PacketSink sink, Collection<BlockChange> value) throws IOException {
-        for (Iterator<BlockChange> it = ((LinkedList<BlockChange>) value).descendingIterator(); it.hasNext(); ) {
-            BlockChange update = it.next();
-            sink.accept(PacketBlockChange.write(registry, update.pos, update.from));
+    public void play(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
+        if (jumpViaCheckpoint(sink, currentTimeStamp, targetTime)) {
+            return;
+        }
+
+        // Only the net change per position matters, so for each position we keep the state at the current time (i.e.
+        // the `from` of the earliest change) and the state at the target time (i.e. the `to` of the latest change)
+        Int2LongMap net = new Int2LongLinkedOpenHashMap();
+        for (LongList changes : map.subMap(currentTimeStamp, false, targetTime, true).values()) {
+            for (int i = 0; i < changes.size(); i++) {
+                long change = changes.getLong(i);
+                int pos = pos(change);
+                long prev = net.get(pos);
+                net.put(pos, net.containsKey(pos) ? pack(pos, from(prev), to(change)) : change);
+            }
         }
+        emit(sink, net.values());
     }
 
-    public static class Builder extends DiffStateTree.Builder<Collection<BlockChange>> {
-        private final PacketTypeRegistry registry;
+    @Override
+    public void rewind(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
+        if (jumpViaCheckpoint(sink, currentTimeStamp, targetTime)) {
+            return;
+        }
+
+        // Same as for play but in reverse, so the `to` of the latest change is where we come from and the `from` of the
+        // earliest change is where we want to go
+        Int2LongMap net = new Int2LongLinkedOpenHashMap();
+        for (LongList changes : map.subMap(targetTime, false, currentTimeStamp, true).descendingMap().values()) {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                long change = changes.getLong(i);
+                int pos = pos(change);
+                long prev = net.get(pos);
+                net.put(pos, pack(pos, net.containsKey(pos) ? from(prev) : to(change), from(change)));
+            }
+        }
+        emit(sink, net.values());
+    }
+
+    /**
+     * Sends the given changes (skipping those which do not actually change anything), grouped into one packet per chunk
+     * section (or column prior to 1.16.2).
+     */
+    private void emit(PacketSink sink, LongCollection changes) throws IOException {
+        boolean perSection = registry.atLeast(ProtocolVersion.v1_16_2);
+        Int2ObjectMap<List<PacketBlockChange>> groups = new Int2ObjectLinkedOpenHashMap<>();
+        for (LongIterator it = changes.iterator(); it.hasNext(); ) {
+            long change = it.nextLong();
+            if (from(change) == to(change)) {
+                continue;
+            }
+            int pos = pos(change);
+            int key = perSection ? sectionY(pos) : 0;
+            List<PacketBlockChange> group = groups.get(key);
+            if (group == null) {
+                groups.put(key, group = new ArrayList<>());
+            }
+            group.add(new PacketBlockChange(unpackPos(pos), to(change)));
+        }
+        for (List<PacketBlockChange> group : groups.values()) {
+            if (group.size() == 1) {
+                sink.accept(group.get(0).write(registry));
+            } else {
+                sink.accept(PacketBlockChange.writeBulk(registry, group));
+            }
+        }
+    }
+
+    /**
+     * Jumps to the target time by restoring the closest checkpoint before it and then playing the remaining changes,
+     * if that requires fewer updates than applying all changes between the current and the target time.
+     * This bounds the cost of a jump independently of its distance.
+     * @return {@code true} if the jump was performed, {@code false} if the caller should apply the changes instead
+     */
+    private boolean jumpViaCheckpoint(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (checkpointTimes == null) {
+            return false;
+        }
+
+        int checkpoint = Arrays.binarySearch(checkpointTimes, targetTime);
+        if (checkpoint < 0) {
+            checkpoint = -checkpoint - 2; // the first one is MIN_VALUE, so there's always one before
+        }
+        int checkpointTime = checkpointTimes[checkpoint];
+
+        int viaCheckpoint = positions.length + countChanges(checkpointTime, targetTime, Integer.MAX_VALUE);
+        int direct = countChanges(Math.min(currentTimeStamp, targetTime), Math.max(currentTimeStamp, targetTime), viaCheckpoint);
+        if (direct <= viaCheckpoint) {
+            return false;
+        }
+
+        // Positions which are changed again after the checkpoint are only sent once, with their final state
+        int[] states = checkpointStates[checkpoint].clone();
+        Int2IntMap positionIndices = new Int2IntOpenHashMap(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            positionIndices.put(positions[i], i);
+        }
+        for (LongList changes : map.subMap(checkpointTime, false, targetTime, true).values()) {
+            for (int i = 0; i < changes.size(); i++) {
+                long change = changes.getLong(i);
+                states[positionIndices.get(pos(change))] = to(change);
+            }
+        }
+        LongList changes = new LongArrayList(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            // The client state is unknown, so even unchanged positions need to be sent (`from` is a dummy value)
+            changes.add(pack(positions[i], ~states[i] & STATE_MASK, states[i]));
+        }
+        emit(sink, changes);
+        return true;
+    }
+
+    /**
+     * Counts the changes in the given time range (exclusive start, inclusive end), stopping once the limit is exceeded.
+     */
+    private int countChanges(int fromTime, int toTime, int limit) {
+        int count = 0;
+        for (LongList changes : map.subMap(fromTime, false, toTime, true).values()) {
+            count += changes.size();
+            if (count > limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    protected void play(PacketSink sink, LongList value) throws IOException {
+        emit(sink, value);
+    }
+
+    @Override
+    protected void rewind(PacketSink sink, LongList value) throws IOException {
+        LongList reversed = new LongArrayList(value.size());
+        for (int i = value.size() - 1; i >= 0; i--) {
+            long change = value.getLong(i);
+            reversed.add(pack(pos(change), to(change), from(change)));
+        }
+        emit(sink, reversed);
+    }
+
+    public static class Builder extends DiffStateTree.Builder<LongList> {
         private final DimensionType dimensionType;
-        private final ListMultimap<Integer, BlockChange> blocks = Multimaps.newListMultimap(map, LinkedList::new); // LinkedList to allow .descendingIterator
+        private final int chunkX;
+        private final int chunkZ;
         private final PacketChunkData.PalettedStorage[] currentBlockState;
 
+        private final Int2IntMap paletteIndices = new Int2IntOpenHashMap();
+
         public Builder(PacketTypeRegistry registry, DimensionType dimensionType, PacketChunkData.Column column) {
-            this.registry = registry;
             this.dimensionType = dimensionType;
+            this.chunkX = column.x;
+            this.chunkZ = column.z;
             this.currentBlockState = new PacketChunkData.PalettedStorage[dimensionType.getSections()];
 
             PacketChunkData.Chunk[] chunks = column.chunks;
@@ -100,6 +389,17 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
             }
         }
 
+        private void add(int time, int x, int y, int z, int from, int to) {
+            if ((from & ~STATE_MASK) != 0 || (to & ~STATE_MASK) != 0) {
+                throw new IllegalArgumentException("Block state id out of range: " + from + " -> " + to);
+            }
+            LongList changes = map.get(time);
+            if (changes == null) {
+                map.put(time, changes = new LongArrayList());
+            }
+            changes.add(pack(packPos(x, y, z), from, to));
+        }
+
         public void update(int time, PacketBlockChange record) {
             IPosition pos = record.getPosition();
             int sectionIndex = dimensionType.sectionYToIndex(pos.getY() >> 4);
@@ -111,7 +411,7 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
             int prevState = blockStorage.get(x, y, z);
             int newState = record.getId();
             blockStorage.set(x, y, z, newState);
-            blocks.put(time, new BlockChange(pos, prevState, newState));
+            add(time, x, pos.getY(), z, prevState, newState);
         }
 
         public void update(int time, PacketChunkData.Column column) {
@@ -131,8 +431,7 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
                             int fromState = fromBlocks.get(x, y, z);
                             int toState = toBlocks.get(x, y, z);
                             if (fromState != toState) {
-                                IPosition pos = new IPosition(column.x << 4 | x, sectionY << 4 | y, column.z << 4 | z);
-                                blocks.put(time, new BlockChange(pos, fromState, toState));
+                                add(time, x, sectionY << 4 | y, z, fromState, toState);
                             }
                         }
                     }
@@ -145,29 +444,41 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
         }
 
         @Override
-        protected void write(NetOutput out, Collection<BlockChange> value, int time) throws IOException {
-            out.writeVarInt(value.size());
-            for (BlockChange blockChange : value) {
-                Packet.Writer.writePosition(registry, out, blockChange.pos);
-                out.writeVarInt(blockChange.from);
-                out.writeVarInt(blockChange.to);
+        protected void writeHeader(NetOutput out) throws IOException {
+            IntList palette = new IntArrayList();
+            for (LongList changes : map.values()) {
+                for (int i = 0; i < changes.size(); i++) {
+                    long change = changes.getLong(i);
+                    for (int state : new int[]{from(change), to(change)}) {
+                        if (!paletteIndices.containsKey(state)) {
+                            paletteIndices.put(state, palette.size());
+                            palette.add(state);
+                        }
+                    }
+                }
+            }
+
+            out.writeVarInt(chunkX);
+            out.writeVarInt(chunkZ);
+            out.writeVarInt(palette.size());
+            for (int i = 0; i < palette.size(); i++) {
+                out.writeVarInt(palette.getInt(i));
             }
         }
 
         @Override
-        protected void discard(Collection<BlockChange> value) {
+        protected void write(NetOutput out, LongList value, int time) throws IOException {
+            out.writeVarInt(value.size());
+            for (int i = 0; i < value.size(); i++) {
+                long change = value.getLong(i);
+                out.writeVarInt(pos(change));
+                out.writeVarInt(paletteIndices.get(from(change)));
+                out.writeVarInt(paletteIndices.get(to(change)));
+            }
         }
-    }
-
-    public static class BlockChange {
-        public IPosition pos;
-        public int from;
-        public int to;
 
-        public BlockChange(IPosition pos, int from, int to) {
-            this.pos = pos;
-            this.from = from;
-            this.to = to;
+        @Override
+        protected void discard(LongList value) {
         }
     }
 }
@@ -35,6 +35,9 @@ public abstract class DiffStateTree<T> extends StateTree<T> implements RandomAcc
 
     @Override
     public void play(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
         for (T update : map.subMap(currentTimeStamp, false, targetTime, true).values()) {
             play(sink, update);
         }
@@ -42,6 +45,9 @@ public abstract class DiffStateTree<T> extends StateTree<T> implements RandomAcc
 
     @Override
     public void rewind(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
         for (T update : map.subMap(targetTime, false, currentTimeStamp, true).descendingMap().values()) {
             rewind(sink, update);
         }
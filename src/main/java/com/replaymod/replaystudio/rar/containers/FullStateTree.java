@@ -35,20 +35,41 @@ public abstract class FullStateTree<T> extends StateTree<T> implements RandomAcc
 
     @Override
     public void play(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
         Map.Entry<Integer, T> lastUpdate = map.floorEntry(targetTime);
-        if (lastUpdate != null && lastUpdate.getKey() > currentTimeStamp) {
+        if (lastUpdate != null && playPasses(lastUpdate.getKey(), currentTimeStamp)) {
             apply(sink, lastUpdate.getValue());
         }
     }
 
     @Override
     public void rewind(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
         Map.Entry<Integer, T> lastUpdate = map.floorEntry(targetTime);
-        if (lastUpdate != null && !lastUpdate.getKey().equals(map.floorKey(currentTimeStamp))) {
+        if (lastUpdate != null && rewindPasses(lastUpdate.getKey(), map.floorKey(currentTimeStamp))) {
             apply(sink, lastUpdate.getValue());
         }
     }
 
+    /**
+     * Whether playing from the given time passes the last update at or before the target time, so it needs applying.
+     */
+    static boolean playPasses(int lastUpdateTime, int currentTimeStamp) {
+        return lastUpdateTime > currentTimeStamp;
+    }
+
+    /**
+     * Whether rewinding passes the last update at or before the target time, so it needs applying.
+     * @param currentUpdateTime Time of the last update at or before the current time, or {@code null} if there is none
+     */
+    static boolean rewindPasses(int lastUpdateTime, Integer currentUpdateTime) {
+        return currentUpdateTime == null || lastUpdateTime != currentUpdateTime;
+    }
+
     public static abstract class Builder<T> extends StateTree.Builder<T> {
         public T getLatest() {
             return map.isEmpty() ? null : map.lastEntry().getValue();
@@ -16,7 +16,6 @@
  * You should have received a copy of the GNU Lesser General Public License
  * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
  */
-
 package com.replaymod.replaystudio.rar.containers;
 
 import com.github.steveice10.packetlib.io.NetInput;
@@ -26,31 +25,166 @@ import com.replaymod.replaystudio.util.IOBiConsumer;
 import com.replaymod.replaystudio.util.Location;
 
 import java.io.IOException;
-import java.util.function.BiConsumer;
+import java.util.Arrays;
+
+/**
+ * Location track of a single entity, with the same semantics as a {@link FullStateTree}.
+ * Samples are kept in parallel primitive arrays and looked up by binary search over their times.
+ * <p>
+ * In the cache, coordinates are stored as deltas in the protocol's 1/4096 fixed-point representation where that is
+ * lossless and as plain doubles otherwise. Angles are quantized to 1/65536 of a full turn, which is lossless for
+ * all versions sending them as single bytes.
+ */
+public abstract class LocationStateTree extends PagedState {
 
-public abstract class LocationStateTree extends FullStateTree<Location>  {
+    private static final double FIXED_POINT_SCALE = 4096;
+    private static final float ANGLE_SCALE = 65536 / 360f;
+
+    private int size;
+    private int[] times;
+    private double[] xs, ys, zs;
+    private short[] yaws, pitches;
 
     public LocationStateTree(int index) {
         super(index);
     }
 
+    protected abstract void apply(PacketSink sink, Location value) throws IOException;
+
+    @Override
+    protected void readValues(NetInput in) throws IOException {
+        size = in.readVarInt();
+        times = new int[size];
+        xs = new double[size];
+        ys = new double[size];
+        zs = new double[size];
+        yaws = new short[size];
+        pitches = new short[size];
+
+        int time = 0;
+        long[] prev = new long[3];
+        for (int i = 0; i < size; i++) {
+            time += in.readVarInt();
+            times[i] = time;
+            xs[i] = readCoordinate(in, prev, 0);
+            ys[i] = readCoordinate(in, prev, 1);
+            zs[i] = readCoordinate(in, prev, 2);
+            yaws[i] = in.readShort();
+            pitches[i] = in.readShort();
+        }
+    }
+
+    @Override
+    protected void clearValues() {
+        size = 0;
+        times = null;
+        xs = ys = zs = null;
+        yaws = pitches = null;
+    }
+
+    @Override
+    protected int getFirstTime() {
+        return size > 0 ? times[0] : Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected int getLastTime() {
+        return size > 0 ? times[size - 1] : Integer.MIN_VALUE;
+    }
+
+    @Override
+    protected long estimateFootprint() {
+        return 6 * 16 + size * (4 + 3 * 8 + 2 * 2L);
+    }
+
+    private static double readCoordinate(NetInput in, long[] prev, int i) throws IOException {
+        long value = in.readVarLong();
+        if ((value & 1) != 0) {
+            double coordinate = in.readDouble();
+            prev[i] = Math.round(coordinate * FIXED_POINT_SCALE);
+            return coordinate;
+        }
+        long delta = value >>> 1;
+        prev[i] += (delta >>> 1) ^ -(delta & 1); // zig-zag
+        return prev[i] / FIXED_POINT_SCALE;
+    }
+
+    /**
+     * Returns the index of the last sample at or before the given time, or -1 if there is none.
+     */
+    private int floorIndex(int time) {
+        int i = Arrays.binarySearch(times, 0, size, time);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private Location get(int i) {
+        return new Location(xs[i], ys[i], zs[i], yaws[i] / ANGLE_SCALE, pitches[i] / ANGLE_SCALE);
+    }
+
+    /**
+     * Returns the location at the given time, reading it back in if it has been paged out.
+     * @return The location, or {@code null} if there is no sample at or before the time
+     */
+    public Location getLocation(int time) throws IOException {
+        if (!ensureResident(Integer.MIN_VALUE, time)) {
+            return null;
+        }
+        int i = floorIndex(time);
+        return i >= 0 ? get(i) : null;
+    }
+
     @Override
-    protected Location read(NetInput in) throws IOException {
-        return new Location(in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), in.readFloat());
+    public void play(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
+        int lastUpdate = floorIndex(targetTime);
+        if (lastUpdate >= 0 && FullStateTree.playPasses(times[lastUpdate], currentTimeStamp)) {
+            apply(sink, get(lastUpdate));
+        }
     }
 
     @Override
-    protected void discard(Location value) {
+    public void rewind(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
+        if (!ensureResident(currentTimeStamp, targetTime)) {
+            return;
+        }
+        int lastUpdate = floorIndex(targetTime);
+        int currentUpdate = floorIndex(currentTimeStamp);
+        Integer currentUpdateTime = currentUpdate >= 0 ? times[currentUpdate] : null;
+        if (lastUpdate >= 0 && FullStateTree.rewindPasses(times[lastUpdate], currentUpdateTime)) {
+            apply(sink, get(lastUpdate));
+        }
     }
 
     public static class Builder extends FullStateTree.Builder<Location> {
+        private final long[] prev = new long[3];
+
+        @Override
+        protected void writeHeader(NetOutput out) throws IOException {
+            Arrays.fill(prev, 0);
+        }
+
         @Override
         protected void write(NetOutput out, Location value, int time) throws IOException {
-            out.writeDouble(value.getX());
-            out.writeDouble(value.getY());
-            out.writeDouble(value.getZ());
-            out.writeFloat(value.getYaw());
-            out.writeFloat(value.getPitch());
+            writeCoordinate(out, value.getX(), 0);
+            writeCoordinate(out, value.getY(), 1);
+            writeCoordinate(out, value.getZ(), 2);
+            out.writeShort(Math.round(value.getYaw() * ANGLE_SCALE));
+            out.writeShort(Math.round(value.getPitch() * ANGLE_SCALE));
+        }
+
+        private void writeCoordinate(NetOutput out, double coordinate, int i) throws IOException {
+            long fixed = Math.round(coordinate * FIXED_POINT_SCALE);
+            long delta = fixed - prev[i];
+            // The delta must fit into 62 bits, as zig-zag encoding and the fixed-point flag each take one
+            if (fixed / FIXED_POINT_SCALE == coordinate && (delta << 2 >> 2) == delta) {
+                out.writeVarLong(((delta << 1) ^ (delta >> 63)) << 1); // zig-zag, lowest bit clear for fixed-point
+            } else {
+                out.writeVarLong(1);
+                out.writeDouble(coordinate);
+            }
+            prev[i] = fixed;
         }
 
         @Override
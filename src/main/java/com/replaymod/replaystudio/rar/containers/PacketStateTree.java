@@ -49,6 +49,15 @@ public class PacketStateTree extends FullStateTree<Packet>  {
         value.release();
     }
 
+    @Override
+    protected long estimateFootprint() {
+        long footprint = super.estimateFootprint();
+        for (Packet packet : map.values()) {
+            footprint += packet.getBuf().capacity();
+        }
+        return footprint;
+    }
+
     @Override
     protected void apply(PacketSink sink, Packet value) throws IOException {
         sink.accept(value.retain());
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.containers;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.RandomAccessState;
+import com.replaymod.replaystudio.rar.cache.MemoryBudget;
+import com.replaymod.replaystudio.rar.cache.ReadableCache;
+
+import java.io.IOException;
+
+/**
+ * State read from a single cache entry of timed values, which may be dropped from memory when the {@link MemoryBudget}
+ * of the cache is exceeded and is then read back in once a seek touches its time range.
+ */
+public abstract class PagedState implements RandomAccessState {
+
+    protected final int index;
+
+    private ReadableCache cache;
+    /**
+     * Whether the values have been cleared to free up memory and need to be read again before use.
+     */
+    private boolean pagedOut;
+    // Time of the first and last value, kept while paged out so we know whether we actually need to page back in
+    private int firstTime;
+    private int lastTime;
+    private long footprint;
+    private final MemoryBudget.Pageable pageable = new MemoryBudget.Pageable() {
+        @Override
+        public long getFootprint() {
+            return footprint;
+        }
+
+        @Override
+        public void pageOut() {
+            clearValues();
+            pagedOut = true;
+        }
+    };
+
+    public PagedState(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Reads all values from the cache entry.
+     */
+    protected abstract void readValues(NetInput in) throws IOException;
+
+    /**
+     * Drops all values from memory.
+     */
+    protected abstract void clearValues();
+
+    /**
+     * Returns the time of the first value in memory, or {@link Integer#MAX_VALUE} if there is none.
+     */
+    protected abstract int getFirstTime();
+
+    /**
+     * Returns the time of the last value in memory, or {@link Integer#MIN_VALUE} if there is none.
+     */
+    protected abstract int getLastTime();
+
+    /**
+     * Returns the estimated heap size of the values in memory in bytes.
+     */
+    protected abstract long estimateFootprint();
+
+    /**
+     * Whether this state may be paged out when the {@link MemoryBudget} of the cache is exceeded.
+     * States whose values themselves hold loaded state must not be paged out.
+     */
+    protected boolean isPageable() {
+        return true;
+    }
+
+    @Override
+    public void load(PacketSink sink, ReadableCache cache) throws IOException {
+        this.cache = cache;
+        pageIn();
+    }
+
+    @Override
+    public void unload(PacketSink sink, ReadableCache cache) throws IOException {
+        MemoryBudget budget = cache.getMemoryBudget();
+        if (budget != null) {
+            budget.removed(pageable);
+        }
+        clearValues();
+        pagedOut = false;
+        this.cache = null;
+    }
+
+    private void pageIn() throws IOException {
+        readValues(cache.seek(index));
+        pagedOut = false;
+        firstTime = getFirstTime();
+        lastTime = getLastTime();
+
+        MemoryBudget budget = cache.getMemoryBudget();
+        if (budget != null && isPageable()) {
+            footprint = estimateFootprint();
+            budget.pagedIn(pageable);
+        }
+    }
+
+    /**
+     * Ensures the values are in memory if there may be any between the given times, reading them back from the cache
+     * if they have been paged out.
+     * @param timeA One end of the time range, exclusive if it is the lower one
+     * @param timeB The other end of the time range, exclusive if it is the lower one
+     * @return {@code false} if there definitely are no values in the range (they may then not be in memory)
+     */
+    protected boolean ensureResident(int timeA, int timeB) throws IOException {
+        if (!pagedOut) {
+            MemoryBudget budget = cache != null ? cache.getMemoryBudget() : null;
+            if (budget != null && isPageable()) {
+                budget.touch(pageable);
+            }
+            return true;
+        }
+        if (Math.max(timeA, timeB) < firstTime || Math.min(timeA, timeB) >= lastTime) {
+            return false;
+        }
+        pageIn();
+        return true;
+    }
+}
@@ -21,41 +21,76 @@ package com.replaymod.replaystudio.rar.containers;
 
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
-import com.replaymod.replaystudio.rar.PacketSink;
-import com.replaymod.replaystudio.rar.RandomAccessState;
-import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 
 import java.io.IOException;
 import java.util.Map;
 import java.util.TreeMap;
 
-public abstract class StateTree<T> implements RandomAccessState {
-    protected final int index;
+public abstract class StateTree<T> extends PagedState {
+    /**
+     * Rough heap size of a single map entry (tree node and boxed key), excluding the value itself.
+     */
+    protected static final int ENTRY_FOOTPRINT = 64;
 
     protected final TreeMap<Integer, T> map = new TreeMap<>();
 
     public StateTree(int index) {
-        this.index = index;
+        super(index);
     }
 
     protected abstract T read(NetInput in) throws IOException;
     protected abstract void discard(T value);
 
+    /**
+     * Reads data shared by all values, as written by {@link Builder#writeHeader(NetOutput)}.
+     */
+    protected void readHeader(NetInput in) throws IOException {
+    }
+
+    /**
+     * Called after the map has been read from the cache, either on load or when paging back in.
+     */
+    protected void pagedIn() {
+    }
+
+    /**
+     * Called after the map has been cleared, either on unload or when paging out.
+     */
+    protected void pagedOut() {
+    }
+
+    @Override
+    protected long estimateFootprint() {
+        return (long) map.size() * ENTRY_FOOTPRINT;
+    }
+
     @Override
-    public void load(PacketSink sink, ReadableCache cache) throws IOException {
-        NetInput in = cache.seek(index);
+    protected void readValues(NetInput in) throws IOException {
+        readHeader(in);
         int time = 0;
         for (int i = in.readVarInt(); i > 0; i--) {
             time += in.readVarInt();
             map.put(time, read(in));
         }
+        pagedIn();
     }
 
     @Override
-    public void unload(PacketSink sink, ReadableCache cache) throws IOException {
+    protected void clearValues() {
         map.values().forEach(this::discard);
         map.clear();
+        pagedOut();
+    }
+
+    @Override
+    protected int getFirstTime() {
+        return map.isEmpty() ? Integer.MAX_VALUE : map.firstKey();
+    }
+
+    @Override
+    protected int getLastTime() {
+        return map.isEmpty() ? Integer.MIN_VALUE : map.lastKey();
     }
 
     public static abstract class Builder<T> {
@@ -65,6 +100,12 @@ public abstract class StateTree<T> implements RandomAccessState {
         protected abstract void write(NetOutput out, T value, int time) throws IOException;
         protected abstract void discard(T value);
 
+        /**
+         * Writes data shared by all values, called once before any values are written.
+         */
+        protected void writeHeader(NetOutput out) throws IOException {
+        }
+
         public void put(int time, T value) {
             T oldValue = map.put(time, value);
             if (oldValue != null) {
@@ -74,6 +115,7 @@ public abstract class StateTree<T> implements RandomAccessState {
 
         public int build(WriteableCache cache) throws IOException {
             WriteableCache.Deferred out = cache.deferred();
+            writeHeader(out);
             out.writeVarInt(map.size());
             int lastTime = 0;
             for (Map.Entry<Integer, T> entry : map.entrySet()) {
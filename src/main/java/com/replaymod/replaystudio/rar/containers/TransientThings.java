@@ -20,43 +20,63 @@
 package com.replaymod.replaystudio.rar.containers;
 
 import com.github.steveice10.packetlib.io.NetInput;
-import com.replaymod.replaystudio.lib.guava.collect.ListMultimap;
-import com.replaymod.replaystudio.lib.guava.collect.Multimaps;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.rar.RandomAccessState;
+import com.replaymod.replaystudio.rar.cache.LazyPacketList;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.state.Chunk;
 import com.replaymod.replaystudio.rar.state.Entity;
 import com.replaymod.replaystudio.rar.state.TransientThing;
 import com.replaymod.replaystudio.rar.state.Weather;
+import com.replaymod.replaystudio.util.IPosition;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToIntFunction;
 
 public class TransientThings implements RandomAccessState {
 
-    private final TreeMap<Integer, Collection<TransientThing>> thingSpawns = new TreeMap<>();
-    private final TreeMap<Integer, Collection<TransientThing>> thingDespawns = new TreeMap<>();
+    // Index of all things by spawn time (with their despawn times) and by despawn time (with their spawn times)
+    private ThingIndex bySpawn;
+    private ThingIndex byDespawn;
+    // Index of entities by spawn time, these need to be checked against the area of interest whenever they move
+    private ThingIndex entitiesBySpawn;
+    private List<TransientThing> entities;
+    // All chunks by their position, to find those which enter or leave a moving area of interest
+    private Long2ObjectMap<List<TransientThing>> chunksByPosition;
 
     // Keep track of currently active things (optimization)
     private int activeThingsTime = -1;
-    private final List<TransientThing> activeThings = new LinkedList<>();
+    private final Set<TransientThing> activeThings = new LinkedHashSet<>();
 
     private final PacketTypeRegistry registry;
     private final int index;
     private ReadableCache cache;
+    private IPosition focus;
+    private AreaOfInterest area;
+    /**
+     * Copy of the area of interest as it was when the active things were last updated.
+     */
+    private AreaOfInterest appliedArea;
+    /**
+     * Whether there may be entities which are alive but not active because they were outside of the area of interest.
+     */
+    private boolean entitiesFiltered;
 
     public TransientThings(PacketTypeRegistry registry, int index) {
         this.registry = registry;
@@ -68,8 +88,7 @@ public class TransientThings implements RandomAccessState {
         this.cache = cache;
 
         NetInput in = cache.seek(index);
-        ListMultimap<Integer, TransientThing> thingSpawns = Multimaps.newListMultimap(this.thingSpawns, ArrayList::new);
-        ListMultimap<Integer, TransientThing> thingDespawns = Multimaps.newListMultimap(this.thingDespawns, ArrayList::new);
+        List<TransientThing> things = new ArrayList<>();
         things: while (true) {
             TransientThing trackedThing;
             switch (in.readVarInt()) {
@@ -79,9 +98,34 @@ public class TransientThings implements RandomAccessState {
                 case 3: trackedThing = new Weather(registry, in); break;
                 default: throw new IOException("Invalid transient thing id.");
             }
-            thingSpawns.put(trackedThing.spawnTime, trackedThing);
-            thingDespawns.put(trackedThing.despawnTime, trackedThing);
+            things.add(trackedThing);
         }
+        index(things);
+    }
+
+    /**
+     * Builds the indices over the given things, in the order in which they were read from the cache.
+     */
+    void index(List<TransientThing> things) {
+        bySpawn = new ThingIndex(things, thing -> thing.spawnTime, thing -> thing.despawnTime);
+        // Values are negated spawn times, so "spawned at or before t" becomes "value greater than -t - 1"
+        byDespawn = new ThingIndex(things, thing -> thing.despawnTime, thing -> -thing.spawnTime);
+
+        entities = new ArrayList<>();
+        chunksByPosition = new Long2ObjectOpenHashMap<>();
+        for (TransientThing thing : things) {
+            if (thing instanceof Entity) {
+                entities.add(thing);
+            } else if (thing instanceof Chunk) {
+                long position = ((Chunk) thing).getPosition();
+                List<TransientThing> chunks = chunksByPosition.get(position);
+                if (chunks == null) {
+                    chunksByPosition.put(position, chunks = new ArrayList<>());
+                }
+                chunks.add(thing);
+            }
+        }
+        entitiesBySpawn = new ThingIndex(entities, thing -> thing.spawnTime, thing -> thing.despawnTime);
     }
 
     @Override
@@ -91,9 +135,176 @@ public class TransientThings implements RandomAccessState {
         }
         activeThings.clear();
         activeThingsTime = -1;
+        if (entities != null) {
+            for (TransientThing entity : entities) {
+                entity.release(cache);
+            }
+        }
+
+        bySpawn = null;
+        byDespawn = null;
+        entitiesBySpawn = null;
+        entities = null;
+        chunksByPosition = null;
+    }
+
+    /**
+     * Sets the position around which things should be loaded first, or {@code null} to load them in time order.
+     * Chunks are loaded by distance to the focus before all other things.
+     */
+    public void setFocus(IPosition focus) {
+        this.focus = focus;
+    }
+
+    /**
+     * Sets the area of interest, or {@code null} to replicate everything.
+     * Things outside of it will not be loaded (and unloaded if they already are). Entities are checked against it at
+     * the time which is seeked to. If the area changes or {@link AreaOfInterest#setCenter(IPosition) moves}, things
+     * which are now inside of it are loaded on the next play or rewind. When it merely moves a little, only chunks at
+     * its edges are looked at.
+     */
+    public void setAreaOfInterest(AreaOfInterest area) {
+        this.area = area;
+    }
+
+    /**
+     * Returns whether the thing may be inside the area of interest at some point, without reading anything.
+     */
+    private boolean mayBeInside(TransientThing thing) {
+        return appliedArea == null || thing.isInside(appliedArea);
+    }
+
+    private boolean isInside(TransientThing thing, int time) throws IOException {
+        return appliedArea == null || thing.isInside(appliedArea, time, cache);
+    }
+
+    private List<TransientThing> filterLoads(List<TransientThing> things, int time) throws IOException {
+        if (appliedArea == null) {
+            return orderLoads(things);
+        }
+        List<TransientThing> result = new ArrayList<>(things.size());
+        for (TransientThing thing : things) {
+            if (thing.isInside(appliedArea, time, cache)) {
+                result.add(thing);
+            }
+        }
+        return orderLoads(result);
+    }
+
+    /**
+     * Brings the set of active things in line with a changed or moved area of interest at the given time.
+     * Entities are left to {@link #applyAreaOfInterestToEntities(PacketSink, int)}.
+     */
+    private void applyAreaOfInterest(PacketSink sink, int time) throws IOException {
+        AreaOfInterest area = this.area != null ? this.area.copy() : null;
+        if (Objects.equals(area, appliedArea)) {
+            return;
+        }
+        AreaOfInterest previousArea = appliedArea;
+        appliedArea = area;
+        if (area != null) {
+            entitiesFiltered = true;
+        }
+
+        List<TransientThing> entering = new ArrayList<>();
+        if (previousArea != null && area != null && countChunks(previousArea, area) <= chunksByPosition.size()) {
+            // Only chunks which are inside of exactly one of the two areas can have changed
+            int minX = Math.min(previousArea.getMinX(), area.getMinX()) >> 4;
+            int minZ = Math.min(previousArea.getMinZ(), area.getMinZ()) >> 4;
+            int maxX = Math.max(previousArea.getMaxX(), area.getMaxX()) >> 4;
+            int maxZ = Math.max(previousArea.getMaxZ(), area.getMaxZ()) >> 4;
+            for (int x = minX; x <= maxX; x++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    if (previousArea.containsChunk(x, z) == area.containsChunk(x, z)) {
+                        continue;
+                    }
+                    List<TransientThing> chunks = chunksByPosition.get(PacketChunkData.Column.coordToLong(x, z));
+                    if (chunks == null) {
+                        continue;
+                    }
+                    for (TransientThing chunk : chunks) {
+                        if (chunk.spawnTime <= time && chunk.despawnTime > time) {
+                            reconcile(sink, chunk, time, entering);
+                        }
+                    }
+                }
+            }
+        } else {
+            for (TransientThing thing : bySpawn.query(Integer.MIN_VALUE, time, time)) {
+                if (!(thing instanceof Entity)) {
+                    reconcile(sink, thing, time, entering);
+                }
+            }
+        }
+        load(sink, orderLoads(entering), time);
+    }
+
+    /**
+     * Returns the number of chunk columns covered by the bounding box of both areas.
+     */
+    private static long countChunks(AreaOfInterest a, AreaOfInterest b) {
+        long width = (Math.max(a.getMaxX(), b.getMaxX()) >> 4) - (Math.min(a.getMinX(), b.getMinX()) >> 4) + 1L;
+        long depth = (Math.max(a.getMaxZ(), b.getMaxZ()) >> 4) - (Math.min(a.getMinZ(), b.getMinZ()) >> 4) + 1L;
+        return width * depth;
+    }
+
+    /**
+     * Brings the set of active entities in line with the area of interest at the given time.
+     * Unlike other things, entities move, so they may enter or leave the area at any time.
+     */
+    private void applyAreaOfInterestToEntities(PacketSink sink, int time) throws IOException {
+        if (!entitiesFiltered) {
+            return; // all alive entities are active already
+        }
+        List<TransientThing> entering = new ArrayList<>();
+        for (TransientThing entity : entitiesBySpawn.query(Integer.MIN_VALUE, time, time)) {
+            reconcile(sink, entity, time, entering);
+        }
+        load(sink, orderLoads(entering), time);
+        entitiesFiltered = appliedArea != null;
+    }
+
+    /**
+     * Unloads the given alive thing if it has left the area of interest, or queues it to be loaded if it has entered.
+     */
+    private void reconcile(PacketSink sink, TransientThing thing, int time, List<TransientThing> entering) throws IOException {
+        if (!isInside(thing, time)) {
+            if (activeThings.remove(thing)) {
+                thing.unload(sink, cache);
+            }
+        } else if (!activeThings.contains(thing)) {
+            entering.add(thing);
+        }
+    }
 
-        thingSpawns.clear();
-        thingDespawns.clear();
+    /**
+     * Loads the given things which are alive at the given time, catching up with everything since their spawn.
+     */
+    private void load(PacketSink sink, List<TransientThing> things, int time) throws IOException {
+        for (TransientThing thing : things) {
+            thing.load(sink, cache);
+            thing.play(sink, thing.spawnTime - 1, time);
+            activeThings.add(thing);
+        }
+    }
+
+    private List<TransientThing> orderLoads(List<TransientThing> things) {
+        if (focus == null || things.size() < 2) {
+            return things;
+        }
+        IPosition focus = this.focus;
+        long[] distances = new long[things.size()];
+        Integer[] order = new Integer[things.size()];
+        for (int i = 0; i < order.length; i++) {
+            distances[i] = things.get(i).getDistanceSquared(focus);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> distances[i])); // stable, keeps time order otherwise
+        List<TransientThing> result = new ArrayList<>(order.length);
+        for (int i : order) {
+            result.add(things.get(i));
+        }
+        return result;
     }
 
     private void computeActiveThings(int time) throws IOException {
@@ -109,13 +320,16 @@ public class TransientThings implements RandomAccessState {
         }
         activeThings.clear();
 
-        for (Collection<TransientThing> things : thingSpawns.subMap(-1, false, time, true).values()) {
-            for (TransientThing thing : things) {
-                if (thing.despawnTime > time) {
-                    thing.load(Packet::release, cache);
-                    activeThings.add(thing);
-                }
+        appliedArea = area != null ? area.copy() : null;
+        entitiesFiltered = appliedArea != null;
+
+        // Spawned at or before the time and despawned after it
+        for (TransientThing thing : bySpawn.query(Integer.MIN_VALUE, time, time)) {
+            if (!isInside(thing, time)) {
+                continue;
             }
+            thing.load(Packet::release, cache);
+            activeThings.add(thing);
         }
 
         activeThingsTime = time;
@@ -124,23 +338,19 @@ public class TransientThings implements RandomAccessState {
     @Override
     public void play(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
         computeActiveThings(currentTimeStamp);
+        applyAreaOfInterest(sink, currentTimeStamp);
 
-        Iterator<TransientThing> activeIter = activeThings.iterator();
-        while (activeIter.hasNext()) {
-            TransientThing thing = activeIter.next();
-            if (thing.despawnTime <= targetTime) {
+        // Active things which despawn before the target time
+        for (TransientThing thing : byDespawn.query(currentTimeStamp, targetTime, -currentTimeStamp - 1)) {
+            if (activeThings.remove(thing)) {
                 thing.unload(sink, cache);
-                activeIter.remove();
             }
         }
 
-        for (Collection<TransientThing> things : thingSpawns.subMap(currentTimeStamp, false, targetTime, true).values()) {
-            for (TransientThing thing : things) {
-                if (thing.despawnTime > targetTime) {
-                    thing.load(sink, cache);
-                    activeThings.add(thing);
-                }
-            }
+        // Things which spawn before and are still alive at the target time
+        for (TransientThing thing : filterLoads(bySpawn.query(currentTimeStamp, targetTime, targetTime), targetTime)) {
+            thing.load(sink, cache);
+            activeThings.add(thing);
         }
 
         activeThingsTime = targetTime;
@@ -148,28 +358,26 @@ public class TransientThings implements RandomAccessState {
         for (TransientThing thing : activeThings) {
             thing.play(sink, currentTimeStamp, targetTime);
         }
+
+        applyAreaOfInterestToEntities(sink, targetTime);
     }
 
     @Override
     public void rewind(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
         computeActiveThings(currentTimeStamp);
+        applyAreaOfInterest(sink, currentTimeStamp);
 
-        Iterator<TransientThing> activeIter = activeThings.iterator();
-        while (activeIter.hasNext()) {
-            TransientThing thing = activeIter.next();
-            if (thing.spawnTime > targetTime) {
+        // Active things which spawned after the target time
+        for (TransientThing thing : bySpawn.query(targetTime, currentTimeStamp, currentTimeStamp)) {
+            if (activeThings.remove(thing)) {
                 thing.unload(sink, cache);
-                activeIter.remove();
             }
         }
 
-        for (Collection<TransientThing> things : thingDespawns.subMap(targetTime, false, currentTimeStamp, true).values()) {
-            for (TransientThing thing : things) {
-                if (thing.spawnTime <= targetTime) {
-                    thing.load(sink, cache);
-                    activeThings.add(thing);
-                }
-            }
+        // Things which despawned since the target time but were already alive at it
+        for (TransientThing thing : filterLoads(byDespawn.query(targetTime, currentTimeStamp, -targetTime - 1), targetTime)) {
+            thing.load(sink, cache);
+            activeThings.add(thing);
         }
 
         activeThingsTime = targetTime;
@@ -177,6 +385,109 @@ public class TransientThings implements RandomAccessState {
         for (TransientThing thing : activeThings) {
             thing.rewind(sink, currentTimeStamp, targetTime);
         }
+
+        applyAreaOfInterestToEntities(sink, targetTime);
+    }
+
+    /**
+     * Collects the spawn packets of all things which would be loaded when moving from the given time towards the
+     * other one, in the order in which they would be loaded.
+     */
+    public void collectUpcomingSpawns(int time, int towards, List<LazyPacketList> out) {
+        if (bySpawn == null) {
+            return;
+        }
+        if (towards > time) {
+            for (TransientThing thing : bySpawn.query(time, towards, Integer.MIN_VALUE)) {
+                if (mayBeInside(thing)) {
+                    out.add(thing.getSpawnPackets());
+                }
+            }
+        } else {
+            List<TransientThing> things = byDespawn.query(towards, time, Integer.MIN_VALUE);
+            for (int i = things.size() - 1; i >= 0; i--) {
+                if (mayBeInside(things.get(i))) {
+                    out.add(things.get(i).getSpawnPackets());
+                }
+            }
+        }
+    }
+
+    /**
+     * Things sorted by one of their times (the key), augmented with a segment tree holding the maximum of a second
+     * value over each range. This answers "things with a key in (a, b] and a value greater than c" in O(log n + k).
+     */
+    private static class ThingIndex {
+        private final TransientThing[] things;
+        private final int[] keys;
+        private final int[] maxValues;
+        private final int leaves;
+
+        ThingIndex(List<TransientThing> things, ToIntFunction<TransientThing> key, ToIntFunction<TransientThing> value) {
+            this.things = things.toArray(new TransientThing[0]);
+            Arrays.sort(this.things, Comparator.comparingInt(key)); // stable, keeps cache order for equal keys
+            this.keys = new int[this.things.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = key.applyAsInt(this.things[i]);
+            }
+
+            int leaves = 1;
+            while (leaves < this.things.length) {
+                leaves <<= 1;
+            }
+            this.leaves = leaves;
+            this.maxValues = new int[leaves * 2];
+            Arrays.fill(maxValues, Integer.MIN_VALUE);
+            for (int i = 0; i < this.things.length; i++) {
+                maxValues[leaves + i] = value.applyAsInt(this.things[i]);
+            }
+            for (int i = leaves - 1; i > 0; i--) {
+                maxValues[i] = Math.max(maxValues[2 * i], maxValues[2 * i + 1]);
+            }
+        }
+
+        /**
+         * Returns, in key order, all things with a key in {@code (fromKey, toKey]} and a value greater than
+         * {@code minValue}.
+         */
+        List<TransientThing> query(int fromKey, int toKey, int minValue) {
+            List<TransientThing> result = new ArrayList<>();
+            int from = upperBound(fromKey);
+            int to = upperBound(toKey);
+            if (from < to) {
+                query(1, 0, leaves, from, to, minValue, result);
+            }
+            return result;
+        }
+
+        private void query(int node, int nodeFrom, int nodeTo, int from, int to, int minValue, List<TransientThing> result) {
+            if (nodeTo <= from || to <= nodeFrom || maxValues[node] <= minValue) {
+                return;
+            }
+            if (nodeTo - nodeFrom == 1) {
+                result.add(things[nodeFrom]);
+                return;
+            }
+            int mid = (nodeFrom + nodeTo) >>> 1;
+            query(2 * node, nodeFrom, mid, from, to, minValue, result);
+            query(2 * node + 1, mid, nodeTo, from, to, minValue, result);
+        }
+
+        /**
+         * Returns the index of the first thing with a key greater than the given one.
+         */
+        private int upperBound(int key) {
+            int lo = 0, hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
     }
 
     public static class Builder {
@@ -33,7 +33,9 @@ import com.replaymod.replaystudio.protocol.packets.PacketConfigRegistries;
 import com.replaymod.replaystudio.protocol.packets.PacketConfigSelectKnownPacks;
 import com.replaymod.replaystudio.protocol.packets.PacketJoinGame;
 import com.replaymod.replaystudio.protocol.packets.PacketPlayerPositionRotation;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.cache.LazyPacketList;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.state.Replay;
@@ -51,6 +53,8 @@ public class WorldStateTree extends StateTree<World> {
     private final Replay replay;
     private ReadableCache cache;
     private World activeWorld;
+    private IPosition focus;
+    private AreaOfInterest area;
 
     public WorldStateTree(PacketTypeRegistry registry, Replay replay, int index) {
         super(index);
@@ -76,13 +80,21 @@ public class WorldStateTree extends StateTree<World> {
 
     @Override
     protected World read(NetInput in) throws IOException {
-        return new World(registry, in);
+        World world = new World(registry, in);
+        world.setFocus(focus);
+        world.setAreaOfInterest(area);
+        return world;
     }
 
     @Override
     protected void discard(World value) {
     }
 
+    @Override
+    protected boolean isPageable() {
+        return false; // worlds hold the state of everything in them
+    }
+
     private void ensureActiveWorld(World world) throws IOException {
         if (world == activeWorld) {
             return; // our cache is up-to-date, nothing to do
@@ -241,6 +253,39 @@ public class WorldStateTree extends StateTree<World> {
         }
     }
 
+    /**
+     * Sets the position around which things in all worlds should be loaded first.
+     * @see TransientThings#setFocus(IPosition)
+     */
+    public void setFocus(IPosition focus) {
+        this.focus = focus;
+        for (World world : map.values()) {
+            world.setFocus(focus);
+        }
+    }
+
+    /**
+     * Sets the area of interest for all worlds.
+     * @see TransientThings#setAreaOfInterest(AreaOfInterest)
+     */
+    public void setAreaOfInterest(AreaOfInterest area) {
+        this.area = area;
+        for (World world : map.values()) {
+            world.setAreaOfInterest(area);
+        }
+    }
+
+    /**
+     * Collects the spawn packets of things in the currently active world which would be loaded when moving from the
+     * given time towards the other one.
+     * @see TransientThings#collectUpcomingSpawns(int, int, List)
+     */
+    public void collectUpcomingSpawns(int time, int towards, List<LazyPacketList> out) {
+        if (activeWorld != null) {
+            activeWorld.collectUpcomingSpawns(time, towards, out);
+        }
+    }
+
     public static class Builder {
         private final PacketTypeRegistry registry;
         private final WriteableCache cache;
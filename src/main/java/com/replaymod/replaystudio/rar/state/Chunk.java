@@ -24,19 +24,25 @@ import com.github.steveice10.packetlib.io.NetOutput;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.rar.RandomAccessState;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.containers.BlockStateTree;
+import com.replaymod.replaystudio.util.IPosition;
 
 import java.io.IOException;
 
 public class Chunk extends TransientThing implements RandomAccessState {
+    private final int x;
+    private final int z;
     private final BlockStateTree blocks;
 
     public Chunk(PacketTypeRegistry registry, NetInput in) throws IOException {
         super(registry, in);
+        this.x = in.readInt();
+        this.z = in.readInt();
         this.blocks = new BlockStateTree(registry, in.readVarInt());
     }
 
@@ -52,6 +58,25 @@ public class Chunk extends TransientThing implements RandomAccessState {
         blocks.unload(sink, cache);
     }
 
+    /**
+     * @return The chunk coordinates, as packed by {@link PacketChunkData.Column#coordToLong(int, int)}
+     */
+    public long getPosition() {
+        return PacketChunkData.Column.coordToLong(x, z);
+    }
+
+    @Override
+    public long getDistanceSquared(IPosition focus) {
+        long dx = (x << 4) + 8 - focus.getX();
+        long dz = (z << 4) + 8 - focus.getZ();
+        return dx * dx + dz * dz;
+    }
+
+    @Override
+    public boolean isInside(AreaOfInterest area) {
+        return area.containsChunk(x, z);
+    }
+
     @Override
     public void play(PacketSink sink, int currentTimeStamp, int targetTime) throws IOException {
         blocks.play(sink, currentTimeStamp, targetTime);
@@ -67,12 +92,17 @@ public class Chunk extends TransientThing implements RandomAccessState {
     }
 
     public static class Builder extends TransientThing.Builder {
+        private final int x;
+        private final int z;
         public final BlockStateTree.Builder blocks;
 
         public Builder(PacketTypeRegistry registry, DimensionType dimensionType, PacketChunkData.Column column) throws IOException {
             addSpawnPacket(PacketChunkData.load(column).write(registry));
             addDespawnPacket(PacketChunkData.unload(column.x, column.z).write(registry));
 
+            x = column.x;
+            z = column.z;
+
             blocks = new BlockStateTree.Builder(registry, dimensionType, column);
         }
 
@@ -80,6 +110,8 @@ public class Chunk extends TransientThing implements RandomAccessState {
         public void build(NetOutput out, WriteableCache cache) throws IOException {
             super.build(out, cache);
 
+            out.writeInt(x);
+            out.writeInt(z);
             out.writeVarInt(blocks.build(cache));
         }
     }
@@ -21,10 +21,12 @@ package com.replaymod.replaystudio.rar.state;
 
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
 import com.replaymod.replaystudio.protocol.packets.PacketEntityHeadLook;
 import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.rar.RandomAccessState;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
@@ -35,12 +37,21 @@ import com.replaymod.replaystudio.util.Location;
 import java.io.IOException;
 
 public class Entity extends TransientThing implements RandomAccessState {
+    private final int id;
+    // Bounding box of all locations in block coordinates (inclusive), empty if there are none
+    private final int minX, minZ, maxX, maxZ;
     private final LocationStateTree locations;
+    private boolean loaded;
+    private boolean locationsLoaded;
 
     public Entity(PacketTypeRegistry registry, NetInput in) throws IOException {
         super(registry, in);
 
-        int id = in.readVarInt();
+        this.id = in.readVarInt();
+        this.minX = in.readInt();
+        this.minZ = in.readInt();
+        this.maxX = in.readInt();
+        this.maxZ = in.readInt();
         this.locations = LocationStateTree.withApply(in.readVarInt(), (sink, loc) -> {
             sink.accept(PacketEntityTeleport.write(registry, id, loc, false));
             sink.accept(PacketEntityHeadLook.write(registry, id, loc.getYaw()));
@@ -50,13 +61,49 @@ public class Entity extends TransientThing implements RandomAccessState {
     @Override
     public void load(PacketSink sink, ReadableCache cache) throws IOException {
         super.load(sink, cache);
-        locations.load(sink, cache);
+        loadLocations(sink, cache);
+        loaded = true;
     }
 
     @Override
     public void unload(PacketSink sink, ReadableCache cache) throws IOException {
         super.unload(sink, cache);
         locations.unload(sink, cache);
+        locationsLoaded = false;
+        loaded = false;
+    }
+
+    private void loadLocations(PacketSink sink, ReadableCache cache) throws IOException {
+        if (!locationsLoaded) {
+            locations.load(sink, cache);
+            locationsLoaded = true;
+        }
+    }
+
+    @Override
+    public boolean isInside(AreaOfInterest area) {
+        if (!area.containsEntity(id)) {
+            return false;
+        }
+        return minX > maxX || area.intersects(minX, minZ, maxX, maxZ);
+    }
+
+    @Override
+    public boolean isInside(AreaOfInterest area, int time, ReadableCache cache) throws IOException {
+        if (!isInside(area)) {
+            return false;
+        }
+        loadLocations(Packet::release, cache);
+        Location location = locations.getLocation(time);
+        return location == null || area.containsPosition(location.getX(), location.getZ());
+    }
+
+    @Override
+    public void release(ReadableCache cache) throws IOException {
+        if (locationsLoaded && !loaded) {
+            locations.unload(Packet::release, cache);
+            locationsLoaded = false;
+        }
     }
 
     @Override
@@ -72,6 +119,8 @@ public class Entity extends TransientThing implements RandomAccessState {
     public static class Builder extends TransientThing.Builder {
         private final int entityId;
         private final LocationStateTree.Builder locations = new LocationStateTree.Builder();
+        private int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        private int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
 
         public Builder(PacketTypeRegistry registry, int entityId) throws IOException {
             this.entityId = entityId;
@@ -85,6 +134,13 @@ public class Entity extends TransientThing implements RandomAccessState {
 
         public void updateLocation(int time, Location loc) {
             locations.put(time, loc);
+
+            int x = (int) Math.floor(loc.getX());
+            int z = (int) Math.floor(loc.getZ());
+            minX = Math.min(minX, x);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxZ = Math.max(maxZ, z);
         }
 
         @Override
@@ -92,6 +148,10 @@ public class Entity extends TransientThing implements RandomAccessState {
             super.build(out, cache);
 
             out.writeVarInt(entityId);
+            out.writeInt(minX);
+            out.writeInt(minZ);
+            out.writeInt(maxX);
+            out.writeInt(maxZ);
             out.writeVarInt(locations.build(cache));
         }
     }
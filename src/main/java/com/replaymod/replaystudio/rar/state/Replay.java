@@ -23,26 +23,36 @@ import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.replaymod.replaystudio.lib.viaversion.api.protocol.version.ProtocolVersion;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.rar.RandomAccessState;
+import com.replaymod.replaystudio.rar.cache.LazyPacketList;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.containers.PacketStateTree;
 import com.replaymod.replaystudio.rar.containers.WorldStateTree;
+import com.replaymod.replaystudio.util.IPosition;
 
 import java.io.IOException;
+import java.util.List;
 
 public class Replay implements RandomAccessState {
     private final PacketTypeRegistry registry;
     public final PacketStateTree features;
     public final PacketStateTree tags;
     private final WorldStateTree world;
+    /**
+     * Player list entries at the end of the analysed range. These are not played back (players which are visible are
+     * sent along with their entity) but are needed to resume analysis from the end.
+     */
+    public final LazyPacketList players;
 
     public Replay(PacketTypeRegistry registry, NetInput in) throws IOException {
         this.registry = registry;
         features = new PacketStateTree(registry, in.readVarInt());
         tags = new PacketStateTree(registry, in.readVarInt());
         world = new WorldStateTree(registry, this, in.readVarInt());
+        players = new LazyPacketList(registry, in.readVarInt());
     }
 
     @Override
@@ -79,12 +89,34 @@ public class Replay implements RandomAccessState {
         world.rewind(sink, currentTimeStamp, targetTime);
     }
 
+    /**
+     * @see WorldStateTree#setFocus(IPosition)
+     */
+    public void setFocus(IPosition focus) {
+        world.setFocus(focus);
+    }
+
+    /**
+     * @see WorldStateTree#setAreaOfInterest(AreaOfInterest)
+     */
+    public void setAreaOfInterest(AreaOfInterest area) {
+        world.setAreaOfInterest(area);
+    }
+
+    /**
+     * @see WorldStateTree#collectUpcomingSpawns(int, int, List)
+     */
+    public void collectUpcomingSpawns(int time, int towards, List<LazyPacketList> out) {
+        world.collectUpcomingSpawns(time, towards, out);
+    }
+
     public static class Builder {
         private final WriteableCache cache;
         public final PacketStateTree.Builder features = new PacketStateTree.Builder();
         public final PacketStateTree.Builder tags = new PacketStateTree.Builder();
         private final WorldStateTree.Builder worlds;
         public World.Builder world;
+        public final LazyPacketList.Builder players = new LazyPacketList.Builder();
 
         public Builder(PacketTypeRegistry registry, WriteableCache cache) throws IOException {
             this.cache = cache;
@@ -99,6 +131,7 @@ public class Replay implements RandomAccessState {
             out.writeVarInt(features.build(cache));
             out.writeVarInt(tags.build(cache));
             out.writeVarInt(worlds.build(time));
+            out.writeVarInt(players.build(cache));
         }
     }
 }
@@ -23,11 +23,13 @@ import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.rar.RandomAccessState;
 import com.replaymod.replaystudio.rar.cache.LazyPacketList;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
+import com.replaymod.replaystudio.util.IPosition;
 
 import java.io.IOException;
 
@@ -57,6 +59,42 @@ public abstract class TransientThing implements RandomAccessState {
         despawnPackets.read(sink, cache);
     }
 
+    /**
+     * Returns the squared distance of this thing to the given block position, used to load nearby things first.
+     * Things without a position return {@link Long#MAX_VALUE}.
+     */
+    public long getDistanceSquared(IPosition focus) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns whether this thing may be replicated given the area of interest, at least at some point during its life.
+     * Must be cheap, it is called without loading the thing. Things without a position are always inside.
+     */
+    public boolean isInside(AreaOfInterest area) {
+        return true;
+    }
+
+    /**
+     * Returns whether this thing should be replicated at the given time given the area of interest.
+     * May read from the cache even if this thing is not loaded, see {@link #release(ReadableCache)}.
+     * By default, this is the same as {@link #isInside(AreaOfInterest)}, i.e. for things which do not move.
+     */
+    public boolean isInside(AreaOfInterest area, int time, ReadableCache cache) throws IOException {
+        return isInside(area);
+    }
+
+    /**
+     * Drops any state which {@link #isInside(AreaOfInterest, int, ReadableCache)} has read while this thing was not
+     * loaded. Does not affect the thing if it is loaded.
+     */
+    public void release(ReadableCache cache) throws IOException {
+    }
+
+    public LazyPacketList getSpawnPackets() {
+        return spawnPackets;
+    }
+
     public static class Builder {
         private int spawnTime;
         private int despawnTime;
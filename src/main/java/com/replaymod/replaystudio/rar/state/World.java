@@ -28,12 +28,15 @@ import com.replaymod.replaystudio.protocol.packets.PacketJoinGame;
 import com.replaymod.replaystudio.protocol.packets.PacketRespawn;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
 import com.replaymod.replaystudio.protocol.registry.Registries;
+import com.replaymod.replaystudio.rar.AreaOfInterest;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.rar.RandomAccessState;
+import com.replaymod.replaystudio.rar.cache.LazyPacketList;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.containers.PacketStateTree;
 import com.replaymod.replaystudio.rar.containers.TransientThings;
+import com.replaymod.replaystudio.util.IPosition;
 
 import java.io.IOException;
 import java.util.List;
@@ -111,6 +114,27 @@ public class World implements RandomAccessState {
         thunderStrengths.rewind(sink, currentTimeStamp, targetTime);
     }
 
+    /**
+     * @see TransientThings#setFocus(IPosition)
+     */
+    public void setFocus(IPosition focus) {
+        transientThings.setFocus(focus);
+    }
+
+    /**
+     * @see TransientThings#setAreaOfInterest(AreaOfInterest)
+     */
+    public void setAreaOfInterest(AreaOfInterest area) {
+        transientThings.setAreaOfInterest(area);
+    }
+
+    /**
+     * @see TransientThings#collectUpcomingSpawns(int, int, List)
+     */
+    public void collectUpcomingSpawns(int time, int towards, List<LazyPacketList> out) {
+        transientThings.collectUpcomingSpawns(time, towards, out);
+    }
+
     public static class Builder {
         private final WriteableCache cache;
         private final PacketTypeRegistry registry;
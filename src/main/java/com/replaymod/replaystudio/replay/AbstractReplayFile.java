@@ -20,13 +20,18 @@ package com.replaymod.replaystudio.replay;
 
 import com.replaymod.replaystudio.lib.guava.base.Optional;
 import com.replaymod.replaystudio.lib.guava.io.Closeables;
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
 import com.google.gson.*;
 import com.replaymod.replaystudio.Studio;
 import com.replaymod.replaystudio.data.Marker;
 import com.replaymod.replaystudio.data.ModInfo;
 import com.replaymod.replaystudio.data.ReplayAssetEntry;
+import com.replaymod.replaystudio.io.BlockCompressedInputStream;
+import com.replaymod.replaystudio.io.BlockCompressedOutputStream;
+import com.replaymod.replaystudio.io.RecordingIndex;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.io.ZipWriter;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
 import com.replaymod.replaystudio.pathing.path.Timeline;
 import com.replaymod.replaystudio.pathing.serialize.TimelineSerialization;
@@ -35,13 +40,27 @@ import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
 
 public abstract class AbstractReplayFile implements ReplayFile {
 
     private static final String ENTRY_META_DATA = "metaData.json";
     protected static final String ENTRY_RECORDING = "recording.tmcpr";
+    protected static final String ENTRY_RECORDING_BLOCKS = "recording.tmcpr.blocks";
+    protected static final String ENTRY_RECORDING_BLOCK_TABLE = "recording.tmcpr.blocks.index";
+    protected static final String ENTRY_RECORDING_HASH = "recording.tmcpr.crc32";
     private static final String ENTRY_RESOURCE_PACK = "resourcepack/%s.zip";
     private static final String ENTRY_RESOURCE_PACK_INDEX = "resourcepack/index.json";
     private static final String ENTRY_THUMB_OLD = "thumb";
@@ -53,6 +72,8 @@ public abstract class AbstractReplayFile implements ReplayFile {
     private static final Pattern PATTERN_ASSETS = Pattern.compile("asset/.*");
     private static final String ENTRY_MODS = "mods.json";
 
+    private static final String CACHE_RECORDING_INDEX = "recordingIndex.bin";
+
     private static final byte[] THUMB_MAGIC_NUMBERS = {0, 1, 1, 2, 3, 5, 8};
 
     protected final Studio studio;
@@ -61,6 +82,73 @@ public abstract class AbstractReplayFile implements ReplayFile {
         this.studio = studio;
     }
 
+    /**
+     * Returns the directory in which the cache entries of this replay file are stored.
+     * @return The cache directory
+     */
+    protected abstract Path getCacheRoot();
+
+    /**
+     * Resolves an entry name against the given directory.
+     * @param root The directory
+     * @param entry The entry name
+     * @return The path of the entry
+     * @throws IOException If the entry name refers to a location outside of the directory
+     */
+    protected static Path resolve(Path root, String entry) throws IOException {
+        Path path = root.resolve(entry).normalize();
+        if (!path.startsWith(root.normalize()) || path.equals(root.normalize())) {
+            throw new IOException("Invalid entry name: " + entry);
+        }
+        return path;
+    }
+
+    @Override
+    public Optional<InputStream> getCache(String entry) throws IOException {
+        Path path = resolve(getCacheRoot(), entry);
+        if (!Files.exists(path)) {
+            return Optional.absent();
+        }
+        InputStream rawIn = new BufferedInputStream(Files.newInputStream(path));
+        try {
+            return Optional.of(new GZIPInputStream(rawIn));
+        } catch (IOException e) {
+            Closeables.closeQuietly(rawIn);
+            return Optional.absent();
+        }
+    }
+
+    @Override
+    public OutputStream writeCache(String entry) throws IOException {
+        return new GZIPOutputStream(writeCacheUncompressed(entry));
+    }
+
+    @Override
+    public OutputStream writeCacheUncompressed(String entry) throws IOException {
+        Path path = resolve(getCacheRoot(), entry);
+        Files.createDirectories(path.getParent());
+        return new BufferedOutputStream(Files.newOutputStream(path));
+    }
+
+    @Override
+    public Optional<ByteBuffer> mapCache(String entry) throws IOException {
+        Path path = resolve(getCacheRoot(), entry);
+        if (!Files.exists(path)) {
+            return Optional.absent();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return Optional.absent();
+            }
+            return Optional.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public void removeCache(String entry) throws IOException {
+        Files.deleteIfExists(resolve(getCacheRoot(), entry));
+    }
+
     @Override
     public ReplayMetaData getMetaData() throws IOException {
         Optional<InputStream> in = get(ENTRY_META_DATA);
@@ -79,6 +167,7 @@ public abstract class AbstractReplayFile implements ReplayFile {
             metaData.setFileFormatVersion(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
             metaData.setProtocolVersion(registry.getVersion().getOriginalVersion());
         }
+        setRecordingLayout(metaData, hasBlockCompressedRecording());
         if (metaData.getGenerator() == null) {
             metaData.setGenerator("ReplayStudio v" + studio.getVersion());
         }
@@ -91,7 +180,7 @@ public abstract class AbstractReplayFile implements ReplayFile {
 
     @Override
     public ReplayInputStream getPacketData(PacketTypeRegistry registry) throws IOException {
-        Optional<InputStream> in = get(ENTRY_RECORDING);
+        Optional<InputStream> in = getRecording();
         if (!in.isPresent()) {
             return null;
         }
@@ -99,9 +188,251 @@ public abstract class AbstractReplayFile implements ReplayFile {
         return new ReplayInputStream(registry, in.get(), metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0());
     }
 
+    /**
+     * Returns the raw recording data, regardless of whether it is stored as a plain or as a block compressed entry.
+     */
+    private Optional<InputStream> getRecording() throws IOException {
+        Optional<InputStream> in = get(ENTRY_RECORDING);
+        if (in.isPresent()) {
+            return in;
+        }
+        in = get(ENTRY_RECORDING_BLOCKS);
+        if (in.isPresent()) {
+            return Optional.of(new BlockCompressedInputStream(in.get()));
+        }
+        return Optional.absent();
+    }
+
+    private boolean hasBlockCompressedRecording() throws IOException {
+        Optional<InputStream> in = get(ENTRY_RECORDING_BLOCKS);
+        if (!in.isPresent()) {
+            return false;
+        }
+        in.get().close();
+        return true;
+    }
+
+    /**
+     * Adjusts the file format version of the given meta data to the layout in which the recording is stored.
+     * @param metaData The meta data
+     * @param blockCompressed Whether the recording is stored block compressed
+     * @return Whether the version has been changed
+     */
+    private static boolean setRecordingLayout(ReplayMetaData metaData, boolean blockCompressed) {
+        int version = metaData.getFileFormatVersion();
+        if (blockCompressed && version < ReplayMetaData.BLOCK_COMPRESSED_FILE_FORMAT_VERSION) {
+            metaData.setFileFormatVersion(ReplayMetaData.BLOCK_COMPRESSED_FILE_FORMAT_VERSION);
+            return true;
+        }
+        if (!blockCompressed && version == ReplayMetaData.BLOCK_COMPRESSED_FILE_FORMAT_VERSION) {
+            metaData.setFileFormatVersion(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Updates the file format version of already written meta data after the recording layout has changed.
+     */
+    private void updateRecordingLayout(boolean blockCompressed) throws IOException {
+        ReplayMetaData metaData = getMetaData();
+        if (metaData != null && setRecordingLayout(metaData, blockCompressed)) {
+            try (OutputStream out = write(ENTRY_META_DATA)) {
+                out.write(new Gson().toJson(metaData).getBytes());
+            }
+        }
+    }
+
+    private RecordingIndex getRecordingBlockTable() throws IOException {
+        Optional<InputStream> in = get(ENTRY_RECORDING_BLOCK_TABLE);
+        if (!in.isPresent()) {
+            return null;
+        }
+        try (InputStream is = in.get()) {
+            return RecordingIndex.read(is);
+        }
+    }
+
     @Override
     public ReplayOutputStream writePacketData() throws IOException {
-        return new ReplayOutputStream(write(ENTRY_RECORDING));
+        return writePacketData(false);
+    }
+
+    @Override
+    public ReplayOutputStream writePacketData(boolean blockCompressed) throws IOException {
+        if (blockCompressed) {
+            remove(ENTRY_RECORDING);
+            OutputStream out = write(ENTRY_RECORDING_BLOCKS);
+            return new ReplayOutputStream(new BlockCompressedOutputStream(out, blockTable -> {
+                try (OutputStream tableOut = write(ENTRY_RECORDING_BLOCK_TABLE)) {
+                    blockTable.write(tableOut);
+                }
+                updateRecordingLayout(true);
+            }));
+        } else {
+            remove(ENTRY_RECORDING_BLOCKS);
+            remove(ENTRY_RECORDING_BLOCK_TABLE);
+            updateRecordingLayout(false);
+            return new ReplayOutputStream(write(ENTRY_RECORDING));
+        }
+    }
+
+    @Override
+    public String getRecordingHash() throws IOException {
+        RecordingHash hash = RecordingHash.read(get(ENTRY_RECORDING_HASH));
+        return hash != null ? hash.hash : null;
+    }
+
+    /**
+     * Checks whether the current recording data starts with the given previous recording data, i.e. whether the
+     * recording has only been appended to since. Only reads as much data as the previous recording had.
+     * @param previous Hash of the previous recording data
+     * @return Whether the recording has been appended to, {@code false} if the size of the previous one is unknown
+     * @throws IOException If an I/O error occurs
+     */
+    protected boolean startsWithRecording(RecordingHash previous) throws IOException {
+        if (previous.size < 0) {
+            return false;
+        }
+        Optional<InputStream> in = get(ENTRY_RECORDING);
+        if (!in.isPresent()) {
+            in = get(ENTRY_RECORDING_BLOCKS);
+        }
+        if (!in.isPresent()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream is = in.get()) {
+            byte[] buffer = new byte[8192];
+            long remaining = previous.size;
+            while (remaining > 0) {
+                int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    return false; // shorter than before
+                }
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return String.valueOf(crc.getValue()).equals(previous.hash);
+    }
+
+    /**
+     * Deletes the cache directory after the recording has been changed.
+     * @param cache The cache directory
+     * @param appended Whether data has only been appended to the recording, in which case entries starting with
+     *                 {@link #APPENDABLE_CACHE_PREFIX} are kept
+     * @throws IOException If an I/O error occurs
+     */
+    protected static void invalidateCache(Path cache, boolean appended) throws IOException {
+        if (!Files.exists(cache)) {
+            return;
+        }
+        Path appendable = cache.resolve(APPENDABLE_CACHE_PREFIX);
+        try (Stream<Path> paths = Files.walk(cache)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                if (appended && (path.startsWith(appendable) || path.equals(cache))) {
+                    continue;
+                }
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Writes the given file as a stored (i.e. uncompressed) zip entry.
+     * Used for the block compressed recording: its blocks are already compressed and must be stored as is, so they can
+     * be skipped without inflating everything in front of them.
+     * @param out The zip to write to
+     * @param name The name of the entry
+     * @param file The file containing the entry data
+     * @throws IOException If an I/O error occurs
+     */
+    protected static void putStoredEntry(ZipWriter out, String name, File file) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setTime(file.lastModified());
+        entry.setSize(file.length());
+        entry.setCompressedSize(file.length());
+        entry.setCrc(crc32(file));
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            out.putRawEntry(entry, in);
+        }
+    }
+
+    private static long crc32(File file) throws IOException {
+        try (CheckedInputStream in = new CheckedInputStream(new FileInputStream(file), new CRC32())) {
+            byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1);
+            return in.getChecksum().getValue();
+        }
+    }
+
+    @Override
+    public RecordingIndex getRecordingIndex() throws IOException {
+        synchronized (this) {
+            Optional<InputStream> cached = getCache(CACHE_RECORDING_INDEX);
+            if (cached.isPresent()) {
+                try (InputStream in = cached.get()) {
+                    RecordingIndex index = RecordingIndex.read(in);
+                    if (index != null) {
+                        return index;
+                    }
+                } catch (EOFException ignored) {
+                    // Cache contains insufficient data, probably due to a previous crash / full disk
+                }
+                removeCache(CACHE_RECORDING_INDEX);
+            }
+
+            Optional<InputStream> in = getRecording();
+            if (!in.isPresent()) {
+                return null;
+            }
+            RecordingIndex index;
+            try (InputStream rawIn = in.get()) {
+                index = RecordingIndex.build(rawIn);
+            }
+            try (OutputStream out = writeCache(CACHE_RECORDING_INDEX)) {
+                index.write(out);
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public InputStream getRawPacketData(int time) throws IOException {
+        RecordingIndex blockTable = getRecordingBlockTable();
+        if (blockTable != null) {
+            // Block compressed recordings can skip straight to the right block without inflating anything before it
+            Optional<InputStream> blocksIn = get(ENTRY_RECORDING_BLOCKS);
+            if (!blocksIn.isPresent()) {
+                return null;
+            }
+            try {
+                return BlockCompressedInputStream.startingAt(blocksIn.get(), blockTable.floorOffset(time));
+            } catch (IOException e) {
+                Closeables.closeQuietly(blocksIn.get());
+                throw e;
+            }
+        }
+
+        RecordingIndex index = getRecordingIndex();
+        if (index == null) {
+            return null;
+        }
+        Optional<InputStream> in = get(ENTRY_RECORDING);
+        if (!in.isPresent()) {
+            return null;
+        }
+        InputStream rawIn = in.get();
+        try {
+            ByteStreams.skipFully(rawIn, index.floorOffset(time));
+        } catch (IOException e) {
+            Closeables.closeQuietly(rawIn);
+            throw e;
+        }
+        return rawIn;
     }
 
     @Override
@@ -344,4 +675,98 @@ public abstract class AbstractReplayFile implements ReplayFile {
             out.write(new Gson().toJson(root).getBytes());
         }
     }
+
+    /**
+     * Hash and size of the recording data, as stored in the {@link #ENTRY_RECORDING_HASH} entry of the cache.
+     * The entry in the replay file itself only holds the hash.
+     */
+    protected static class RecordingHash {
+        public final String hash;
+        /**
+         * Size of the recording data in bytes, or -1 if unknown.
+         */
+        public final long size;
+
+        public RecordingHash(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        public static RecordingHash read(Optional<InputStream> in) {
+            if (!in.isPresent()) {
+                return null;
+            }
+            try (InputStream is = in.get();
+                 Reader rin = new InputStreamReader(is);
+                 BufferedReader brin = new BufferedReader(rin)) {
+                String hash = brin.readLine();
+                if (hash == null) {
+                    return null;
+                }
+                String size = brin.readLine();
+                try {
+                    return new RecordingHash(hash, size != null ? Long.parseLong(size) : -1);
+                } catch (NumberFormatException e) {
+                    return new RecordingHash(hash, -1);
+                }
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
+
+        public void write(OutputStream out) throws IOException {
+            Writer writer = new OutputStreamWriter(out);
+            writer.write(hash);
+            if (size >= 0) {
+                writer.write("\n" + size);
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Computes the {@link RecordingHash} of recording data while it is being written, and whether the data starts with
+     * that of the previous recording.
+     */
+    protected static class RecordingHasher {
+        private final RecordingHash previous;
+        private final CRC32 crc = new CRC32();
+        private final CRC32 previousCrc = new CRC32();
+        private long size;
+
+        /**
+         * @param previous Hash of the previous recording data, or {@code null} if unknown
+         */
+        public RecordingHasher(RecordingHash previous) {
+            this.previous = previous;
+        }
+
+        public void update(int b) {
+            if (previous != null && size < previous.size) {
+                previousCrc.update(b);
+            }
+            crc.update(b);
+            size++;
+        }
+
+        public void update(byte[] b, int off, int len) {
+            if (previous != null && size < previous.size) {
+                previousCrc.update(b, off, (int) Math.min(len, previous.size - size));
+            }
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        public RecordingHash getHash() {
+            return new RecordingHash(String.valueOf(crc.getValue()), size);
+        }
+
+        /**
+         * @return Whether the data so far consists of the previous recording data followed by more data
+         */
+        public boolean isAppendedTo() {
+            return previous != null && previous.size >= 0 && size >= previous.size
+                    && String.valueOf(previousCrc.getValue()).equals(previous.hash);
+        }
+    }
 }
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.replay;
+
+import com.replaymod.replaystudio.lib.guava.base.Optional;
+import com.replaymod.replaystudio.lib.guava.io.Closeables;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.ZipWriter;
+import com.replaymod.replaystudio.util.Utils;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Replay file which keeps its entries as plain files in a directory instead of a zip file.
+ * Meant as a working copy for replays which are edited a lot: reading does not need to inflate anything and writing an
+ * entry only touches that entry.
+ * <p>
+ * Entries are written atomically: a new version is written to a temporary file next to the directory and only replaces
+ * the entry once its output stream is closed. As such, changes are persisted immediately and {@link #save()} does
+ * nothing. Use {@link #saveTo(File)} to export the replay as a regular zip file.
+ */
+public class DirectoryReplayFile extends AbstractReplayFile {
+
+    private final Path directory;
+    private final Path tmpFiles;
+    private final Path cache;
+
+    // Concurrent, as entries may be read by a background analysis of the replay while others are being written
+    private final Map<String, EntryOutputStream> outputStreams = new ConcurrentHashMap<>();
+
+    /**
+     * Amount of threads used to compress entries when exporting.
+     */
+    private int compressionThreads = 1;
+
+    public DirectoryReplayFile(Studio studio, File directory) throws IOException {
+        this(studio, directory, new File(directory.getParentFile(), directory.getName() + ".cache"));
+    }
+
+    public DirectoryReplayFile(Studio studio, File directory, File cache) throws IOException {
+        super(studio);
+
+        this.directory = directory.toPath();
+        this.tmpFiles = new File(directory.getParentFile(), directory.getName() + ".tmp").toPath();
+        this.cache = cache.toPath();
+
+        Files.createDirectories(this.directory);
+
+        // Remove left-overs of writes which never completed
+        delete(tmpFiles);
+
+        // Validate cache
+        RecordingHash cacheHash = RecordingHash.read(getCache(ENTRY_RECORDING_HASH));
+        String recordingHash = readHash(get(ENTRY_RECORDING_HASH));
+        if (!Objects.equals(cacheHash != null ? cacheHash.hash : null, recordingHash)) {
+            long recordingSize = getRecordingSize();
+            boolean appended = cacheHash != null && recordingHash != null
+                    && cacheHash.size >= 0 && recordingSize >= cacheHash.size && startsWithRecording(cacheHash);
+            invalidateCache(this.cache, appended);
+            createCache(recordingHash != null ? new RecordingHash(recordingHash, recordingSize) : null);
+        }
+    }
+
+    /**
+     * Extracts the specified zip replay file into a directory.
+     * @param studio The studio
+     * @param zip The replay file to extract
+     * @param directory The target directory, existing entries are overwritten
+     * @return The extracted replay file
+     * @throws IOException If an I/O error occurs
+     */
+    public static DirectoryReplayFile extract(Studio studio, File zip, File directory) throws IOException {
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                Path path = resolve(directory.toPath(), entry.getName());
+                Files.createDirectories(path.getParent());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return new DirectoryReplayFile(studio, directory);
+    }
+
+    /**
+     * Sets the amount of threads used to compress entries when exporting this replay file via {@link #saveTo(File)}.
+     * Defaults to 1, i.e. compression happens on the saving thread.
+     * @param compressionThreads Amount of threads
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    private static String readHash(Optional<InputStream> in) {
+        if (!in.isPresent()) {
+            return null;
+        }
+        try (InputStream is = in.get();
+             Reader rin = new InputStreamReader(is);
+             BufferedReader brin = new BufferedReader(rin)) {
+            return brin.readLine();
+        } catch (IOException ignored) {
+            return null;
+        }
+    }
+
+    private void createCache(RecordingHash hash) throws IOException {
+        if (hash == null) return; // legacy replay without hash entry, should get one when recording data is re-written
+        try (OutputStream out = writeCache(ENTRY_RECORDING_HASH)) {
+            hash.write(out);
+        }
+    }
+
+    /**
+     * Returns the size of the recording data without reading it, or -1 if there is none.
+     */
+    private long getRecordingSize() throws IOException {
+        for (String entry : new String[]{ENTRY_RECORDING, ENTRY_RECORDING_BLOCKS}) {
+            Path path = directory.resolve(entry);
+            if (Files.exists(path)) {
+                return Files.size(path);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Optional<InputStream> get(String entry) throws IOException {
+        Path path = resolve(directory, entry);
+        if (!Files.isRegularFile(path)) {
+            return Optional.absent();
+        }
+        return Optional.of(open(path));
+    }
+
+    private static InputStream open(Path path) throws IOException {
+        // Entries are not memory-mapped: they are replaced by moving a new file over them, which fails on some
+        // platforms for as long as a mapping (which can only be released by the garbage collector) exists.
+        return new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+    }
+
+    @Override
+    protected Path getCacheRoot() {
+        return cache;
+    }
+
+    @Override
+    public Map<String, InputStream> getAll(Pattern pattern) throws IOException {
+        Map<String, InputStream> streams = new HashMap<>();
+        for (Map.Entry<String, Path> entry : listEntries().entrySet()) {
+            if (pattern.matcher(entry.getKey()).matches()) {
+                streams.put(entry.getKey(), open(entry.getValue()));
+            }
+        }
+        return streams;
+    }
+
+    private Map<String, Path> listEntries() throws IOException {
+        Map<String, Path> entries = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isRegularFile(path)) {
+                    entries.put(directory.relativize(path).toString().replace(File.separatorChar, '/'), path);
+                }
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public OutputStream write(String entry) throws IOException {
+        Path path = resolve(directory, entry);
+        Files.createDirectories(tmpFiles);
+        Path tmpFile = Files.createTempFile(tmpFiles, "entry", ".tmp");
+        FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE);
+
+        RecordingHasher crc = ENTRY_RECORDING.equals(entry) || ENTRY_RECORDING_BLOCKS.equals(entry)
+                ? new RecordingHasher(RecordingHash.read(getCache(ENTRY_RECORDING_HASH))) : null;
+        if (crc != null) {
+            // Immediately invalidate old hash in case we crash during writing
+            try (OutputStream os = write(ENTRY_RECORDING_HASH);
+                 Writer writer = new OutputStreamWriter(os)) {
+                writer.write("invalid");
+            }
+        }
+
+        EntryOutputStream out = new EntryOutputStream(entry, path, tmpFile, channel, crc);
+        Closeables.close(outputStreams.put(entry, out), true);
+        return out;
+    }
+
+    @Override
+    public void remove(String entry) throws IOException {
+        EntryOutputStream out = outputStreams.get(entry);
+        if (out != null) {
+            out.discard();
+        }
+        Files.deleteIfExists(resolve(directory, entry));
+    }
+
+    /**
+     * Does nothing, all changes are persisted once their output stream has been closed.
+     */
+    @Override
+    public void save() throws IOException {
+    }
+
+    /**
+     * Exports this replay file as a zip file.
+     * @param target The target file location
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void saveTo(File target) throws IOException {
+        for (OutputStream out : new ArrayList<>(outputStreams.values())) {
+            Closeables.close(out, false);
+        }
+        outputStreams.clear();
+
+        try (ZipWriter out = new ZipWriter(new FileOutputStream(target), compressionThreads)) {
+            for (Map.Entry<String, Path> e : listEntries().entrySet()) {
+                File file = e.getValue().toFile();
+                if (ENTRY_RECORDING_BLOCKS.equals(e.getKey())) {
+                    putStoredEntry(out, e.getKey(), file);
+                    continue;
+                }
+                try (OutputStream entryOut = out.putNextEntry(e.getKey(), file.lastModified())) {
+                    Utils.copy(open(e.getValue()), entryOut);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes this replay file. Entries which are still being written are discarded rather than committed, their
+     * previous version (if any) remains.
+     */
+    @Override
+    public void close() throws IOException {
+        for (EntryOutputStream out : new ArrayList<>(outputStreams.values())) {
+            out.discard();
+        }
+        outputStreams.clear();
+        delete(tmpFiles);
+    }
+
+    /**
+     * Output stream of an entry, which writes to a temporary file that replaces the entry once the stream is closed.
+     */
+    private class EntryOutputStream extends OutputStream {
+        private final String entry;
+        private final Path path;
+        private final Path tmpFile;
+        private final FileChannel channel;
+        private final OutputStream inner;
+        private final RecordingHasher crc;
+        private boolean closed;
+
+        private EntryOutputStream(String entry, Path path, Path tmpFile, FileChannel channel, RecordingHasher crc) {
+            this.entry = entry;
+            this.path = path;
+            this.tmpFile = tmpFile;
+            this.channel = channel;
+            this.inner = new BufferedOutputStream(Channels.newOutputStream(channel));
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int i) throws IOException {
+            if (crc != null) crc.update(i);
+            inner.write(i);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (crc != null) crc.update(b, off, len);
+            inner.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            inner.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outputStreams.remove(entry, this);
+
+            inner.flush();
+            channel.force(false);
+            inner.close();
+
+            Files.createDirectories(path.getParent());
+            try {
+                Files.move(tmpFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (crc != null) {
+                RecordingHash hash = crc.getHash();
+
+                // Write new hash
+                try (OutputStream out = DirectoryReplayFile.this.write(ENTRY_RECORDING_HASH);
+                     Writer writer = new OutputStreamWriter(out)) {
+                    writer.write(hash.hash);
+                }
+
+                // Invalidate cache, unless the new recording merely extends the old one
+                invalidateCache(cache, crc.isAppendedTo());
+                createCache(hash);
+            }
+        }
+
+        /**
+         * Closes this stream without replacing the entry, dropping everything written to it.
+         */
+        private void discard() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outputStreams.remove(entry, this);
+            try {
+                channel.close();
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.replaymod.replaystudio.lib.guava.base.Optional;
 import com.replaymod.replaystudio.data.Marker;
 import com.replaymod.replaystudio.data.ModInfo;
 import com.replaymod.replaystudio.data.ReplayAssetEntry;
+import com.replaymod.replaystudio.io.RecordingIndex;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
@@ -37,14 +38,36 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
+/**
+ * A replay file, consisting of named entries (the recording, its metadata, etc.) and a cache which is not part of the
+ * replay itself.
+ * <p>
+ * Implementations must support reading entries, and reading, writing and removing cache entries, from multiple
+ * threads at the same time, as long as no single entry is written while it is being read or written elsewhere. The
+ * quick mode for example analyses the replay on a background thread while seeking reads the cache analysed so far,
+ * see {@link com.replaymod.replaystudio.rar.RandomAccessReplay#loadProgressively}. {@link #save()},
+ * {@link #saveTo(File)} and {@link #close()} must not be called concurrently with any other method.
+ */
 public interface ReplayFile extends Closeable {
 
+    /**
+     * Cache entries whose name starts with this prefix are kept when data is only appended to the recording, see
+     * {@link #writeCache(String)}.
+     * Users of this prefix store the cache for the appended data in additional entries rather than rewriting existing
+     * ones, so a cache which has been extended many times consists of many small pieces. The quick mode cache for
+     * example gets an additional segment per extension, see
+     * {@link com.replaymod.replaystudio.rar.RandomAccessReplay#setCheckpointInterval(int)} for how seeking across
+     * those behaves.
+     */
+    String APPENDABLE_CACHE_PREFIX = "appendable/";
+
     /**
      * Returns an input stream for the specified entry in this replay file.
      * @param entry The entry
@@ -83,7 +106,9 @@ public interface ReplayFile extends Closeable {
      * Write to the specified cache entry of this replay file.
      * Since the cache in not part of the original replay file, there's no need to call {@link #save()} to persist it.
      * There's also no guarantee of persistence, the cache may be cleared (but shouldn't be most of the time) when the
-     * cache entry is closed. The cache will always be cleared when the replay data is being re-written.
+     * cache entry is closed. The cache will always be cleared when the replay data is being re-written, except for
+     * entries starting with {@link #APPENDABLE_CACHE_PREFIX} if the new replay data merely has more data appended to
+     * the old one. Such entries should use {@link #getRecordingHash()} to find out whether that has happened.
      * Writing to the cache while an OutputStream to the replay data is open results in undefined behavior.
      * @param entry The entry
      * @return An output stream to write to
@@ -91,6 +116,35 @@ public interface ReplayFile extends Closeable {
      */
     OutputStream writeCache(String entry) throws IOException;
 
+    /**
+     * Write to the specified cache entry of this replay file without compressing it, such that it can later be
+     * memory-mapped via {@link #mapCache(String)}.
+     * Otherwise behaves like {@link #writeCache(String)}.
+     * The default implementation simply calls {@link #writeCache(String)}, for replay files which cannot map their cache
+     * anyway.
+     * @param entry The entry
+     * @return An output stream to write to
+     * @throws IOException If an I/O error occurs
+     */
+    default OutputStream writeCacheUncompressed(String entry) throws IOException {
+        return writeCache(entry);
+    }
+
+    /**
+     * Maps the specified uncompressed cache entry (see {@link #writeCacheUncompressed(String)}) into memory.
+     * The returned buffer remains valid until it is garbage collected or explicitly unmapped, even if the entry is
+     * removed or the replay file closed in the meantime. On some platforms the entry cannot be removed or replaced while
+     * it is still mapped, so callers should {@link com.replaymod.replaystudio.util.Utils#unmap(ByteBuffer) unmap} it
+     * as soon as they no longer need it.
+     * @param entry The entry
+     * @return Optional read-only buffer containing the entry, absent if it does not exist, is larger than 2GB or this
+     * replay file does not support mapping (the default), in which case it can still be read via {@link #getCache(String)}
+     * @throws IOException If an I/O error occurs
+     */
+    default Optional<ByteBuffer> mapCache(String entry) throws IOException {
+        return Optional.absent();
+    }
+
     /**
      * Removes the entry from this replay file.
      * Changes will not be written unless {@link #save()} is called.
@@ -128,6 +182,61 @@ public interface ReplayFile extends Closeable {
 
     ReplayOutputStream writePacketData() throws IOException;
 
+    /**
+     * Write the recording data of this replay file.
+     * If {@code blockCompressed} is {@code true}, the recording is stored as independently compressed blocks (see
+     * {@link com.replaymod.replaystudio.io.BlockCompressedOutputStream}) instead of the plain {@code recording.tmcpr}
+     * entry, which allows {@link #getRawPacketData(int)} to skip to any time without inflating preceding data.
+     * Such replays are marked with {@link ReplayMetaData#BLOCK_COMPRESSED_FILE_FORMAT_VERSION}, so programs which only
+     * know about the plain entry refuse them as too new. The file format version in the meta data is adjusted
+     * accordingly when the output stream is closed.
+     * The default implementation does not support block compressed recordings and always calls
+     * {@link #writePacketData()}.
+     * @param blockCompressed Whether to store the recording block compressed
+     * @return The output stream to write to
+     * @throws IOException If an I/O error occurs
+     */
+    default ReplayOutputStream writePacketData(boolean blockCompressed) throws IOException {
+        return writePacketData();
+    }
+
+    /**
+     * Returns the hash of the current recording data, which changes whenever the recording is written.
+     * @return The hash or {@code null} if unknown (e.g. for replays written by old versions, or if this replay file does
+     * not keep track of it, the default)
+     * @throws IOException If an I/O error occurs
+     */
+    default String getRecordingHash() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the sparse time index of the raw recording data.
+     * The index is built on first use and stored in the cache of this replay file.
+     * The default implementation builds it from {@link #getRawPacketData(int)} on every call.
+     * @return The index or {@code null} if this replay file has no recording data
+     * @throws IOException If an I/O error occurs
+     */
+    default RecordingIndex getRecordingIndex() throws IOException {
+        try (InputStream in = getRawPacketData(0)) {
+            return in != null ? RecordingIndex.build(in) : null;
+        }
+    }
+
+    /**
+     * Returns the raw, undecoded recording data, positioned at the start of a frame such that all frames with a
+     * timestamp of at least {@code time} follow.
+     * Each frame consists of its timestamp and length (both 4-byte big endian integers) followed by the packet data.
+     * The default implementation returns the plain {@code recording.tmcpr} entry from its start.
+     * @param time The timestamp of the first frame required
+     * @return The raw input stream or {@code null} if this replay file has no recording data
+     * @throws IOException If an I/O error occurs
+     */
+    default InputStream getRawPacketData(int time) throws IOException {
+        Optional<InputStream> in = get("recording.tmcpr");
+        return in.isPresent() ? in.get() : null;
+    }
+
     Map<Integer, String> getResourcePackIndex() throws IOException;
     void writeResourcePackIndex(Map<Integer, String> index) throws IOException;
 
@@ -32,6 +32,19 @@ import java.util.Objects;
 public class ReplayMetaData {
     public static final int CURRENT_FILE_FORMAT_VERSION = 14;
 
+    /**
+     * File format version of replays which store their recording block compressed (see
+     * {@link com.replaymod.replaystudio.io.BlockCompressedOutputStream}) instead of as a plain {@code recording.tmcpr}.
+     * Readers which only know older versions cannot find the recording of such replays and refuse them as too new.
+     * Apart from the recording layout, it is identical to {@link #CURRENT_FILE_FORMAT_VERSION}.
+     */
+    public static final int BLOCK_COMPRESSED_FILE_FORMAT_VERSION = 15;
+
+    /**
+     * The highest file format version which can be read.
+     */
+    public static final int MAX_FILE_FORMAT_VERSION = BLOCK_COMPRESSED_FILE_FORMAT_VERSION;
+
     /**
      * Mapping from replay file version to protocol version for versions prior to 10.
      * For 10+ see https://github.com/ReplayMod/ReplayStudio/issues/9 (i.e. {@link #protocol}).
@@ -20,21 +20,22 @@ package com.replaymod.replaystudio.replay;
 
 import com.replaymod.replaystudio.lib.guava.base.Charsets;
 import com.replaymod.replaystudio.lib.guava.base.Optional;
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
 import com.replaymod.replaystudio.lib.guava.io.Closeables;
 import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.RawZipFile;
+import com.replaymod.replaystudio.io.ZipWriter;
 import com.replaymod.replaystudio.util.Utils;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
-import java.util.zip.CRC32;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import static com.replaymod.replaystudio.lib.guava.io.Files.*;
 import static java.nio.file.Files.*;
@@ -42,8 +43,6 @@ import static java.nio.file.Files.move;
 
 public class ZipReplayFile extends AbstractReplayFile {
 
-    private static final String ENTRY_RECORDING_HASH = "recording.tmcpr.crc32";
-
     private final File input;
     private final File output;
     private final File cache;
@@ -53,20 +52,37 @@ public class ZipReplayFile extends AbstractReplayFile {
     private final File changedFiles;
     private final File removedFiles;
     private final File sourceFile;
+    private final File directoryBackup;
 
-    private CRC32 recordingCrc;
+    private RecordingHasher recordingHasher;
 
     /**
      * Whether the input file path should be written to the tmp folder on next write.
      */
     private boolean shouldSaveInputFile;
 
-    private final Map<String, OutputStream> outputStreams = new HashMap<>();
-    private final Map<String, File> changedEntries = new HashMap<>();
-    private final Set<String> removedEntries = new HashSet<>();
+    // Concurrent, as entries may be read by a background analysis of the replay while others are being written
+    private final Map<String, OutputStream> outputStreams = new ConcurrentHashMap<>();
+    private final Map<String, File> changedEntries = new ConcurrentHashMap<>();
+    private final Set<String> removedEntries = ConcurrentHashMap.newKeySet();
 
     private ZipFile zipFile;
 
+    /**
+     * Amount of threads used to compress entries when saving.
+     */
+    private int compressionThreads = 1;
+
+    /**
+     * Whether changes should be appended to the existing file instead of rewriting it completely.
+     */
+    private boolean incrementalSave;
+
+    /**
+     * Maximum fraction of unused space in the file before an incremental save rewrites it completely instead.
+     */
+    private double compactionThreshold = 0.5;
+
     public ZipReplayFile(Studio studio, File file) throws IOException {
         this(studio, file, file);
     }
@@ -82,6 +98,7 @@ public class ZipReplayFile extends AbstractReplayFile {
         changedFiles = new File(tmpFiles, "changed");
         removedFiles = new File(tmpFiles, "removed");
         sourceFile = new File(tmpFiles, "source");
+        directoryBackup = new File(tmpFiles, "directory");
 
         if (input != null && input.exists()) {
             // Save input file path in case of crash
@@ -99,6 +116,10 @@ public class ZipReplayFile extends AbstractReplayFile {
         this.cache = cache;
 
         if (input != null && input.exists()) {
+            if (directoryBackup.exists()) {
+                // We crashed while appending to the file, restore its previous central directory
+                restoreCentralDirectory(input);
+            }
             this.zipFile = new ZipFile(input);
         }
 
@@ -118,18 +139,9 @@ public class ZipReplayFile extends AbstractReplayFile {
         }
 
         // Validate cache
-        String cacheHash = null;
+        RecordingHash cacheHash = RecordingHash.read(getCache(ENTRY_RECORDING_HASH));
         String mcprHash = null;
 
-        Optional<InputStream> cacheIn = getCache(ENTRY_RECORDING_HASH);
-        if (cacheIn.isPresent()) {
-            try (InputStream in = cacheIn.get();
-                 Reader rin = new InputStreamReader(in);
-                 BufferedReader brin = new BufferedReader(rin)) {
-                cacheHash = brin.readLine();
-            } catch (IOException ignored) {}
-        }
-
         Optional<InputStream> mcprIn = get(ENTRY_RECORDING_HASH);
         if (mcprIn.isPresent()) {
             try (InputStream in = mcprIn.get();
@@ -139,20 +151,71 @@ public class ZipReplayFile extends AbstractReplayFile {
             } catch (IOException ignored) {}
         }
 
-        if (!Objects.equals(cacheHash, mcprHash)) {
-            delete(cache);
-            createCache(mcprHash);
+        if (!Objects.equals(cacheHash != null ? cacheHash.hash : null, mcprHash)) {
+            long recordingSize = getRecordingSize();
+            boolean appended = cacheHash != null && mcprHash != null
+                    && cacheHash.size >= 0 && recordingSize >= cacheHash.size && startsWithRecording(cacheHash);
+            invalidateCache(cache.toPath(), appended);
+            createCache(mcprHash != null ? new RecordingHash(mcprHash, recordingSize) : null);
         }
     }
 
-    private void createCache(String hash) throws IOException {
+    /**
+     * Sets the amount of threads used to compress entries when saving this replay file.
+     * Defaults to 1, i.e. compression happens on the saving thread.
+     * @param compressionThreads Amount of threads
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Sets whether {@link #save()} should append changed entries to the existing file (and write a new central
+     * directory) instead of writing a new file. This is a lot cheaper for small changes to large replays but leaves
+     * replaced and removed entries behind as unused space, see {@link #setCompactionThreshold(double)}.
+     * Only applies if the output file is the same as the input file.
+     * Defaults to {@code false}.
+     * @param incrementalSave Whether to save incrementally
+     */
+    public void setIncrementalSave(boolean incrementalSave) {
+        this.incrementalSave = incrementalSave;
+    }
+
+    /**
+     * Sets the fraction of unused space above which an incremental save rewrites (compacts) the whole file instead.
+     * Defaults to 0.5, i.e. the file is compacted once more than half of it would be unused.
+     * @param compactionThreshold Fraction of the file size, between 0 and 1
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    private void createCache(RecordingHash hash) throws IOException {
         if (hash == null) return; // legacy replay without hash entry, should get one when recording data is re-written
-        try (OutputStream out = writeCache(ENTRY_RECORDING_HASH);
-             Writer writer = new OutputStreamWriter(out)) {
-            writer.write(hash);
+        try (OutputStream out = writeCache(ENTRY_RECORDING_HASH)) {
+            hash.write(out);
         }
     }
 
+    /**
+     * Returns the size of the (uncompressed) recording data without reading it, or -1 if unknown.
+     */
+    private long getRecordingSize() {
+        for (String entry : new String[]{ENTRY_RECORDING, ENTRY_RECORDING_BLOCKS}) {
+            File file = changedEntries.get(entry);
+            if (file != null) {
+                return file.length();
+            }
+            if (zipFile != null && !removedEntries.contains(entry)) {
+                ZipEntry zipEntry = zipFile.getEntry(entry);
+                if (zipEntry != null) {
+                    return zipEntry.getSize();
+                }
+            }
+        }
+        return -1;
+    }
+
     /**
      * Saves the input file path to the source file in the temp folder structure.
      * @throws IOException
@@ -169,8 +232,9 @@ public class ZipReplayFile extends AbstractReplayFile {
 
     @Override
     public Optional<InputStream> get(String entry) throws IOException {
-        if (changedEntries.containsKey(entry)) {
-            return Optional.of(new BufferedInputStream(new FileInputStream(changedEntries.get(entry))));
+        File changedFile = changedEntries.get(entry);
+        if (changedFile != null) {
+            return Optional.of(new BufferedInputStream(new FileInputStream(changedFile)));
         }
         if (zipFile == null || removedEntries.contains(entry)) {
             return Optional.absent();
@@ -183,18 +247,8 @@ public class ZipReplayFile extends AbstractReplayFile {
     }
 
     @Override
-    public Optional<InputStream> getCache(String entry) throws IOException {
-        Path path = cache.toPath().resolve(entry);
-        if (!Files.exists(path)) {
-            return Optional.absent();
-        }
-        InputStream rawIn = new BufferedInputStream(Files.newInputStream(path));
-        try {
-            return Optional.of(new GZIPInputStream(rawIn));
-        } catch (IOException e) {
-            Closeables.closeQuietly(rawIn);
-            return Optional.absent();
-        }
+    protected Path getCacheRoot() {
+        return cache.toPath();
     }
 
     @Override
@@ -204,7 +258,7 @@ public class ZipReplayFile extends AbstractReplayFile {
         for (Map.Entry<String, File> entry : changedEntries.entrySet()) {
             String name = entry.getKey();
             if (pattern.matcher(name).matches()) {
-                streams.put(name, new BufferedInputStream(new FileInputStream(changedEntries.get(name))));
+                streams.put(name, new BufferedInputStream(new FileInputStream(entry.getValue())));
             }
         }
 
@@ -238,26 +292,26 @@ public class ZipReplayFile extends AbstractReplayFile {
         if (removedEntries.remove(entry)) {
             deleteIfExists(new File(removedFiles, entry).toPath());
         }
-        if (ENTRY_RECORDING.equals(entry)) {
+        if (ENTRY_RECORDING.equals(entry) || ENTRY_RECORDING_BLOCKS.equals(entry)) {
             // Immediately invalidate old hash in case we crash during writing
             try (OutputStream os = ZipReplayFile.this.write(ENTRY_RECORDING_HASH);
                  Writer writer = new OutputStreamWriter(os)) {
                 writer.write("invalid");
             }
 
-            // Compute new hash
-            recordingCrc = new CRC32();
+            // Compute new hash, and check whether the new recording merely extends the old one
+            recordingHasher = new RecordingHasher(RecordingHash.read(getCache(ENTRY_RECORDING_HASH)));
             OutputStream inner = out;
             out = new OutputStream() {
                 @Override
                 public void write(int i) throws IOException {
-                    recordingCrc.update(i);
+                    recordingHasher.update(i);
                     inner.write(i);
                 }
 
                 @Override
                 public void write(byte[] b, int off, int len) throws IOException {
-                    recordingCrc.update(b, off, len);
+                    recordingHasher.update(b, off, len);
                     inner.write(b, off, len);
                 }
 
@@ -270,31 +324,25 @@ public class ZipReplayFile extends AbstractReplayFile {
                 public void close() throws IOException {
                     inner.close();
 
-                    String crc = "" + recordingCrc.getValue();
-                    recordingCrc = null;
+                    RecordingHash hash = recordingHasher.getHash();
+                    boolean appended = recordingHasher.isAppendedTo();
+                    recordingHasher = null;
 
                     // Write new hash
                     try (OutputStream out = ZipReplayFile.this.write(ENTRY_RECORDING_HASH);
                          Writer writer = new OutputStreamWriter(out)) {
-                        writer.write(crc);
+                        writer.write(hash.hash);
                     }
 
                     // Invalidate cache
-                    delete(cache);
-                    createCache(String.valueOf(crc));
+                    invalidateCache(cache.toPath(), appended);
+                    createCache(hash);
                 }
             };
         }
         return out;
     }
 
-    @Override
-    public OutputStream writeCache(String entry) throws IOException {
-        Path path = cache.toPath().resolve(entry);
-        Files.createDirectories(path.getParent());
-        return new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
-    }
-
     @Override
     public void remove(String entry) throws IOException {
         saveInputFile();
@@ -309,17 +357,16 @@ public class ZipReplayFile extends AbstractReplayFile {
         touch(removedFile);
     }
 
-    @Override
-    public void removeCache(String entry) throws IOException {
-        Path path = cache.toPath().resolve(entry);
-        Files.deleteIfExists(path);
-    }
-
     @Override
     public void save() throws IOException {
         if (zipFile != null && changedEntries.isEmpty() && removedEntries.isEmpty()) {
             return; // No changes, no need to save
         }
+        if (incrementalSave && zipFile != null && input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            if (saveIncrementally()) {
+                return;
+            }
+        }
         File outputFile = createTempFile("replaystudio", "replayfile").toFile();
         saveTo(outputFile);
         close();
@@ -330,6 +377,71 @@ public class ZipReplayFile extends AbstractReplayFile {
         zipFile = new ZipFile(output);
     }
 
+    /**
+     * Appends all changes to the output file.
+     * @return {@code false} if the file has too much unused space and should be rewritten instead
+     */
+    private boolean saveIncrementally() throws IOException {
+        for (OutputStream out : outputStreams.values()) {
+            Closeables.close(out, false);
+        }
+        outputStreams.clear();
+
+        long centralDirectoryOffset;
+        try (RawZipFile rawZipFile = new RawZipFile(output)) {
+            Set<String> discarded = new HashSet<>(changedEntries.keySet());
+            discarded.addAll(removedEntries);
+            centralDirectoryOffset = rawZipFile.getCentralDirectoryOffset();
+            long unused = rawZipFile.getUnusedBytes(discarded);
+            if (unused > compactionThreshold * centralDirectoryOffset) {
+                return false;
+            }
+        }
+
+        // Back up the current central directory (and everything after it), so the file can be restored if we crash
+        // before the new one has been written. The changes themselves remain in the tmp folder until we're done.
+        File backupTmp = new File(tmpFiles, "directory.tmp");
+        createParentDirs(backupTmp);
+        try (RandomAccessFile in = new RandomAccessFile(output, "r");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(backupTmp)))) {
+            byte[] tail = new byte[(int) (in.length() - centralDirectoryOffset)];
+            in.seek(centralDirectoryOffset);
+            in.readFully(tail);
+            out.writeLong(centralDirectoryOffset);
+            out.write(tail);
+        }
+        move(backupTmp.toPath(), directoryBackup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        zipFile.close();
+        try (ZipWriter out = ZipWriter.append(output, compressionThreads)) {
+            for (String entry : removedEntries) {
+                out.removeEntry(entry);
+            }
+            writeChangedEntries(out);
+        } catch (IOException | RuntimeException e) {
+            restoreCentralDirectory(output);
+            zipFile = new ZipFile(output);
+            throw e;
+        }
+        Files.delete(directoryBackup.toPath());
+
+        close();
+        zipFile = new ZipFile(output);
+        return true;
+    }
+
+    private void restoreCentralDirectory(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(directoryBackup)));
+             RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long centralDirectoryOffset = in.readLong();
+            byte[] tail = ByteStreams.toByteArray(in);
+            out.seek(centralDirectoryOffset);
+            out.write(tail);
+            out.setLength(centralDirectoryOffset + tail.length);
+        }
+        Files.delete(directoryBackup.toPath());
+    }
+
     @Override
     public void saveTo(File target) throws IOException {
         for (OutputStream out : outputStreams.values()) {
@@ -337,20 +449,38 @@ public class ZipReplayFile extends AbstractReplayFile {
         }
         outputStreams.clear();
 
-        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+        try (ZipWriter out = new ZipWriter(new FileOutputStream(target), compressionThreads)) {
             if (zipFile != null) {
-                for (ZipEntry entry : Collections.list(zipFile.entries())) {
-                    if (!changedEntries.containsKey(entry.getName()) && !removedEntries.contains(entry.getName())) {
-                        entry = new ZipEntry(entry);
-                        entry.setCompressedSize(-1);
-                        out.putNextEntry(entry);
-                        Utils.copy(zipFile.getInputStream(entry), out);
+                try (RawZipFile rawZipFile = new RawZipFile(new File(zipFile.getName()))) {
+                    for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                        if (!changedEntries.containsKey(entry.getName()) && !removedEntries.contains(entry.getName())) {
+                            // Unchanged entries can be copied as is, no need to inflate and deflate them again
+                            InputStream rawIn = rawZipFile.getRawInputStream(entry);
+                            if (rawIn != null) {
+                                try (InputStream in = rawIn) {
+                                    out.putRawEntry(entry, in);
+                                }
+                                continue;
+                            }
+                            try (OutputStream entryOut = out.putNextEntry(entry.getName(), entry.getTime())) {
+                                Utils.copy(zipFile.getInputStream(entry), entryOut);
+                            }
+                        }
                     }
                 }
             }
-            for (Map.Entry<String, File> e : changedEntries.entrySet()) {
-                out.putNextEntry(new ZipEntry(e.getKey()));
-                Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), out);
+            writeChangedEntries(out);
+        }
+    }
+
+    private void writeChangedEntries(ZipWriter out) throws IOException {
+        for (Map.Entry<String, File> e : changedEntries.entrySet()) {
+            if (ENTRY_RECORDING_BLOCKS.equals(e.getKey())) {
+                putStoredEntry(out, e.getKey(), e.getValue());
+                continue;
+            }
+            try (OutputStream entryOut = out.putNextEntry(e.getKey())) {
+                Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), entryOut);
             }
         }
     }
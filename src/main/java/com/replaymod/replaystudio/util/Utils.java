@@ -19,8 +19,9 @@
 package com.replaymod.replaystudio.util;
 
 import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
 import com.github.steveice10.netty.buffer.Unpooled;
-import com.github.steveice10.netty.util.ReferenceCountUtil;
+import com.github.steveice10.netty.util.internal.PlatformDependent;
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
@@ -32,6 +33,8 @@ import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
@@ -183,6 +186,18 @@ public class Utils {
         in.close();
     }
 
+    /**
+     * Releases the memory of a direct (e.g. memory-mapped) buffer immediately instead of whenever it is garbage
+     * collected. The buffer (and any buffers derived from it) must no longer be accessed afterwards.
+     * Does nothing if this is not supported on the current platform.
+     * @param buffer The direct buffer
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer.isDirect() && PlatformDependent.hasUnsafe()) {
+            PlatformDependent.freeDirectBuffer(buffer);
+        }
+    }
+
     public static ByteBuf readRetainedSlice(NetInput in, int len) throws IOException {
         if (in instanceof ByteBufExtNetInput) {
             ByteBuf inBuf = ((ByteBufExtNetInput) in).getBuf();
@@ -203,76 +218,126 @@ public class Utils {
         out.writeBytes(bytes);
     }
 
+    /**
+     * Codecs reused for all compressed packets written and read by the current thread, so we do not have to allocate
+     * (and rely on finalization to free) a native zlib stream for every single packet.
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
     public static Packet readCompressedPacket(PacketTypeRegistry registry, NetInput in) throws IOException {
-        ByteBuf byteBuf = null;
+        ByteBuf byteBuf = readCompressed(in);
         try {
-            int prefix = in.readVarInt();
-            int len = prefix >> 1;
-            if ((prefix & 1) == 1) {
-                int fullLen = in.readVarInt();
-                byteBuf = Unpooled.buffer(fullLen);
-
-                Inflater inflater = new Inflater();
-                inflater.setInput(in.readBytes(len));
-                inflater.inflate(byteBuf.array(), byteBuf.arrayOffset(), fullLen);
-                byteBuf.writerIndex(fullLen);
-            } else {
-                byteBuf = readRetainedSlice(in, len);
-            }
-
-            int id = new ByteBufNetInput(byteBuf).readVarInt();
-            int stateId = id >> 24;
-            int packetId = id << 24 >> 24;
-            return new Packet(registry.withState(State.values()[4 - stateId]), packetId, byteBuf.retain());
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return readPacket(registry, byteBuf);
         } finally {
-            ReferenceCountUtil.release(byteBuf);
+            byteBuf.release();
         }
     }
 
+    /**
+     * Reads a packet as written by {@link #writePacket(ByteBuf, Packet)} from the given buffer.
+     * The returned packet holds a retained slice of the buffer.
+     */
+    public static Packet readPacket(PacketTypeRegistry registry, ByteBuf byteBuf) throws IOException {
+        ByteBufNetInput in = new ByteBufNetInput(byteBuf);
+        int id = in.readVarInt();
+        int stateId = id >> 24;
+        int packetId = id << 24 >> 24;
+        return new Packet(registry.withState(State.values()[4 - stateId]), packetId, byteBuf.retain());
+    }
+
     public static void writeCompressedPacket(NetOutput out, Packet packet) throws IOException {
-        ByteBuf byteBuf = Unpooled.buffer();
+        ByteBuf byteBuf = PooledByteBufAllocator.DEFAULT.heapBuffer();
         try {
-            int stateId = 4 - packet.getType().getState().ordinal();
-            new ByteBufNetOutput(byteBuf).writeVarInt((stateId << 24) | packet.getId());
-            byteBuf.writeBytes(packet.getBuf());
-
-            int rawIndex = byteBuf.readerIndex();
-            int size = byteBuf.readableBytes();
-
-            byteBuf.ensureWritable(size);
-            Deflater deflater = new Deflater();
-            deflater.setInput(byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(), size);
-            deflater.finish();
-            int compressedSize = 0;
-            while (!deflater.finished() && compressedSize < size) {
-                compressedSize += deflater.deflate(
-                        byteBuf.array(),
-                        byteBuf.arrayOffset() + byteBuf.writerIndex() + compressedSize,
-                        size - compressedSize
-                );
-            }
+            writePacket(byteBuf, packet);
+            writeCompressed(out, byteBuf);
+        } finally {
+            byteBuf.release();
+        }
+    }
 
-            if (compressedSize < size) {
-                byteBuf.readerIndex(rawIndex + size);
-                byteBuf.writerIndex(rawIndex + size + compressedSize);
-                out.writeVarInt(compressedSize << 1 | 1);
-                out.writeVarInt(size);
-            } else {
-                byteBuf.readerIndex(rawIndex);
-                byteBuf.writerIndex(rawIndex + size);
-                out.writeVarInt(size << 1);
+    /**
+     * Writes the state, id and payload of the given packet to the given buffer.
+     * Does not consume the packet's buffer.
+     */
+    public static void writePacket(ByteBuf byteBuf, Packet packet) throws IOException {
+        int stateId = 4 - packet.getType().getState().ordinal();
+        new ByteBufNetOutput(byteBuf).writeVarInt((stateId << 24) | packet.getId());
+        ByteBuf packetBuf = packet.getBuf();
+        byteBuf.writeBytes(packetBuf, packetBuf.readerIndex(), packetBuf.readableBytes());
+    }
+
+    /**
+     * Writes the readable bytes of the given heap buffer to the output, deflated if that makes them any smaller.
+     * The buffer's indices are modified and it should not be used afterwards.
+     * @see #readCompressed(NetInput)
+     */
+    public static void writeCompressed(NetOutput out, ByteBuf byteBuf) throws IOException {
+        int rawIndex = byteBuf.readerIndex();
+        int size = byteBuf.readableBytes();
+
+        byteBuf.ensureWritable(size);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(), size);
+        deflater.finish();
+        int compressedSize = 0;
+        while (!deflater.finished() && compressedSize < size) {
+            compressedSize += deflater.deflate(
+                    byteBuf.array(),
+                    byteBuf.arrayOffset() + byteBuf.writerIndex() + compressedSize,
+                    size - compressedSize
+            );
+        }
+
+        if (deflater.finished() && compressedSize < size) {
+            byteBuf.readerIndex(rawIndex + size);
+            byteBuf.writerIndex(rawIndex + size + compressedSize);
+            out.writeVarInt(compressedSize << 1 | 1);
+            out.writeVarInt(size);
+        } else {
+            byteBuf.readerIndex(rawIndex);
+            byteBuf.writerIndex(rawIndex + size);
+            out.writeVarInt(size << 1);
+        }
+        writeBytes(out, byteBuf);
+    }
+
+    /**
+     * Reads data as written by {@link #writeCompressed(NetOutput, ByteBuf)}.
+     * Compressed data is inflated into a pooled buffer, uncompressed data is sliced from the input if possible.
+     * @return The data, must be released by the caller
+     */
+    public static ByteBuf readCompressed(NetInput in) throws IOException {
+        int prefix = in.readVarInt();
+        int len = prefix >> 1;
+        if ((prefix & 1) == 0) {
+            return readRetainedSlice(in, len);
+        }
+
+        int fullLen = in.readVarInt();
+        byte[] input = in.readBytes(len);
+        ByteBuf byteBuf = PooledByteBufAllocator.DEFAULT.heapBuffer(fullLen, fullLen);
+        try {
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(input);
+            int inflated = 0;
+            while (inflated < fullLen) {
+                int read = inflater.inflate(byteBuf.array(), byteBuf.arrayOffset() + inflated, fullLen - inflated);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data, expected " + fullLen + " bytes but got " + inflated);
+                }
+                inflated += read;
             }
-            writeBytes(out, byteBuf);
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            ReferenceCountUtil.release(byteBuf);
+            byteBuf.writerIndex(fullLen);
+            return byteBuf;
+        } catch (DataFormatException e) {
+            byteBuf.release();
+            throw new IOException(e);
+        } catch (Throwable t) {
+            byteBuf.release();
+            throw t;
         }
     }
 }
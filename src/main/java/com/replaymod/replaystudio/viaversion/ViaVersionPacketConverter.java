@@ -43,6 +43,7 @@ import java.util.List;
 import java.util.UUID;
 
 import static com.replaymod.replaystudio.replay.ReplayMetaData.PROTOCOL_FOR_FILE_FORMAT;
+import static com.replaymod.replaystudio.replay.ReplayMetaData.MAX_FILE_FORMAT_VERSION;
 
 /**
  * Converts a sequence of packets from one version to another using ViaVersion.
@@ -71,6 +72,7 @@ public class ViaVersionPacketConverter {
     }
 
     public static boolean isFileVersionSupported(int fileVersion, int fileProtocol, int outputProtocol) {
+        if (fileVersion > MAX_FILE_FORMAT_VERSION) return false;
         if (fileVersion < 10) {
             if (!PROTOCOL_FOR_FILE_FORMAT.containsKey(fileVersion)) return false;
             fileProtocol = PROTOCOL_FOR_FILE_FORMAT.get(fileVersion);
@@ -110,6 +112,13 @@ public class ViaVersionPacketConverter {
         }
     }
 
+    /**
+     * @return Whether packets are passed through unchanged, i.e. this converter does not need to see every packet
+     */
+    public boolean isPassThrough() {
+        return user == null;
+    }
+
     public void loginAcknowledged() throws IOException {
         if (user == null) {
             return;
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockCompressedStreamTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    /**
+     * Generates raw recording data with frames of random (including empty and larger than {@link #BLOCK_SIZE})
+     * lengths and non-decreasing timestamps.
+     */
+    public static byte[] generateFrames(Random random, int count, List<Integer> times, List<Integer> offsets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int time = 0;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(3) == 0 ? 0 : random.nextInt(100);
+            int length = random.nextInt(20) == 0 ? BLOCK_SIZE * 3 / 2 + random.nextInt(BLOCK_SIZE) : random.nextInt(200);
+            byte[] data = new byte[length];
+            for (int j = 0; j < length; j++) {
+                data[j] = (byte) random.nextInt(8); // compressible, but not trivially so
+            }
+            times.add(time);
+            offsets.add(out.size());
+            out.writeInt(time);
+            out.writeInt(length);
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compress(byte[] raw, RecordingIndex[] blockTable, int writeSize) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (BlockCompressedOutputStream out = new BlockCompressedOutputStream(compressed, table -> blockTable[0] = table, BLOCK_SIZE)) {
+            for (int i = 0; i < raw.length; i += writeSize) {
+                out.write(raw, i, Math.min(writeSize, raw.length - i));
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(42);
+        byte[] raw = generateFrames(random, 500, new ArrayList<>(), new ArrayList<>());
+
+        // Frame headers and data need to be split correctly regardless of how they are passed to the stream
+        for (int writeSize : new int[]{1, 3, 8, 100, raw.length}) {
+            RecordingIndex[] blockTable = new RecordingIndex[1];
+            byte[] compressed = compress(raw, blockTable, writeSize);
+            assertNotNull("Block table was not passed to the consumer", blockTable[0]);
+            assertTrue("Data should be split into multiple blocks", blockTable[0].size() > 1);
+            assertTrue("Data should be compressed", compressed.length < raw.length);
+
+            try (InputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(compressed))) {
+                assertArrayEquals(raw, ByteStreams.toByteArray(in));
+            }
+        }
+    }
+
+    @Test
+    public void singleByteReads() throws IOException {
+        byte[] raw = generateFrames(new Random(1), 100, new ArrayList<>(), new ArrayList<>());
+        byte[] compressed = compress(raw, new RecordingIndex[1], raw.length);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(compressed))) {
+            int b;
+            while ((b = in.read()) != -1) {
+                result.write(b);
+            }
+        }
+        assertArrayEquals(raw, result.toByteArray());
+    }
+
+    @Test
+    public void emptyRecording() throws IOException {
+        RecordingIndex[] blockTable = new RecordingIndex[1];
+        byte[] compressed = compress(new byte[0], blockTable, 1);
+        assertEquals(0, compressed.length);
+        assertEquals(0, blockTable[0].size());
+        try (InputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(compressed))) {
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void blocksStartAtFrames() throws IOException {
+        List<Integer> times = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        byte[] raw = generateFrames(new Random(7), 500, times, offsets);
+        RecordingIndex[] blockTable = new RecordingIndex[1];
+        byte[] compressed = compress(raw, blockTable, 17);
+
+        int expectedOffset = 0;
+        for (int i = 0; i < blockTable[0].size(); i++) {
+            try (InputStream in = BlockCompressedInputStream.startingAt(new ByteArrayInputStream(compressed), blockTable[0].getOffset(i))) {
+                byte[] rest = ByteStreams.toByteArray(in);
+                int offset = raw.length - rest.length;
+                assertArrayEquals(Arrays.copyOfRange(raw, offset, raw.length), rest);
+
+                int frame = offsets.indexOf(offset);
+                assertTrue("Block " + i + " does not start at a frame", frame >= 0);
+                assertEquals("Block " + i + " has wrong time", (int) times.get(frame), blockTable[0].getTime(i));
+                assertTrue("Blocks are out of order", offset >= expectedOffset);
+                expectedOffset = offset + 1;
+            }
+        }
+    }
+
+    @Test
+    public void floorOffsetIncludesAllLaterFrames() throws IOException {
+        List<Integer> times = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        byte[] raw = generateFrames(new Random(3), 500, times, offsets);
+        RecordingIndex[] blockTable = new RecordingIndex[1];
+        byte[] compressed = compress(raw, blockTable, raw.length);
+
+        int lastTime = times.get(times.size() - 1);
+        for (int time = 0; time <= lastTime + 1; time += 7) {
+            try (InputStream in = BlockCompressedInputStream.startingAt(new ByteArrayInputStream(compressed), blockTable[0].floorOffset(time))) {
+                int offset = raw.length - ByteStreams.toByteArray(in).length;
+                int frame = offsets.indexOf(offset);
+                assertTrue("Skipping to " + time + " does not start at a frame", frame >= 0);
+                assertTrue("Frame before " + time + " is missing", frame == 0 || times.get(frame - 1) < time);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelDeflaterOutputStreamTest {
+    private static byte[] generateData(int length) {
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : i / 100);
+        }
+        return data;
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), new Inflater(true))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                result.write(buf, 0, n);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] compress(byte[] data, ExecutorService executor, int chunkSize) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, executor, 4, Deflater.DEFAULT_COMPRESSION, chunkSize);
+        // Write in uneven pieces, so they don't line up with the chunks
+        for (int i = 0; i < data.length; i += 1000) {
+            out.write(data, i, Math.min(1000, data.length - i));
+        }
+        out.finish();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals(crc.getValue(), out.getCrc());
+        assertEquals(data.length, out.getBytesRead());
+        assertEquals(compressed.size(), out.getBytesWritten());
+
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    @Test
+    public void singleThreadedMatchesDeflaterOutputStream() throws IOException {
+        for (int length : new int[]{0, 1, 4096, 1024 * 1024}) {
+            byte[] data = generateData(length);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(expected, deflater)) {
+                out.write(data);
+            }
+            deflater.end();
+
+            assertArrayEquals("Length " + length, expected.toByteArray(), compress(data, null, 16 * 1024));
+        }
+    }
+
+    @Test
+    public void parallelRoundTrip() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int length : new int[]{0, 1, 16 * 1024, 16 * 1024 + 1, 1024 * 1024}) {
+                byte[] data = generateData(length);
+                assertArrayEquals("Length " + length, data, inflate(compress(data, executor, 16 * 1024)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
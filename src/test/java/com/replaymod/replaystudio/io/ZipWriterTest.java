@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ZipWriterTest {
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = Files.createTempFile("replaystudio-test", ".zip").toFile();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static Map<String, byte[]> generateEntries(int count) {
+        Random random = new Random(count);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int length = i == 0 ? 0 : i == 1 ? 1024 * 1024 : random.nextInt(10000);
+            byte[] data = new byte[length];
+            for (int j = 0; j < length; j++) {
+                data[j] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : j / 64);
+            }
+            entries.put("dir/entry" + i + (i % 2 == 0 ? ".bin" : "-\u00e4.json"), data);
+        }
+        return entries;
+    }
+
+    private void writeDeflated(Map<String, byte[]> entries, int threads) throws IOException {
+        try (ZipWriter out = new ZipWriter(new FileOutputStream(file), threads)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                try (OutputStream entryOut = out.putNextEntry(entry.getKey())) {
+                    entryOut.write(entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void assertZipFile(Map<String, byte[]> expected) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEquals(expected.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+                assertNotNull("Missing entry " + entry.getKey(), zipEntry);
+                assertEquals(entry.getValue().length, zipEntry.getSize());
+                try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                    assertArrayEquals(entry.getKey(), entry.getValue(), ByteStreams.toByteArray(in));
+                }
+            }
+        }
+    }
+
+    private void assertZipInputStream(Map<String, byte[]> expected) throws IOException {
+        Map<String, byte[]> actual = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                actual.put(entry.getName(), ByteStreams.toByteArray(in));
+            }
+        }
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void deflatedEntries() throws IOException {
+        Map<String, byte[]> entries = generateEntries(10);
+        for (int threads : new int[]{1, 4}) {
+            writeDeflated(entries, threads);
+            assertZipFile(entries);
+            assertZipInputStream(entries);
+        }
+    }
+
+    @Test
+    public void rawEntries() throws IOException {
+        Map<String, byte[]> entries = generateEntries(10);
+
+        // Source file written by the JDK, containing both deflated and stored entries
+        File source = Files.createTempFile("replaystudio-test", ".zip").toFile();
+        try {
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(source))) {
+                int i = 0;
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                    if (i++ % 3 == 0) {
+                        CRC32 crc = new CRC32();
+                        crc.update(entry.getValue());
+                        zipEntry.setMethod(ZipEntry.STORED);
+                        zipEntry.setSize(entry.getValue().length);
+                        zipEntry.setCompressedSize(entry.getValue().length);
+                        zipEntry.setCrc(crc.getValue());
+                    }
+                    out.putNextEntry(zipEntry);
+                    out.write(entry.getValue());
+                    out.closeEntry();
+                }
+            }
+
+            try (ZipFile zipFile = new ZipFile(source);
+                 RawZipFile rawZipFile = new RawZipFile(source);
+                 ZipWriter out = new ZipWriter(new FileOutputStream(file))) {
+                for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                    try (InputStream in = rawZipFile.getRawInputStream(entry)) {
+                        assertNotNull(in);
+                        out.putRawEntry(entry, in);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(source.toPath());
+        }
+
+        assertZipFile(entries);
+        assertZipInputStream(entries);
+    }
+
+    @Test
+    public void append() throws IOException {
+        Map<String, byte[]> entries = generateEntries(5);
+        writeDeflated(entries, 1);
+
+        String removed = entries.keySet().iterator().next();
+        String replaced = "dir/entry3-\u00e4.json";
+        entries.remove(removed);
+        entries.put(replaced, "replaced".getBytes(StandardCharsets.UTF_8));
+        entries.put("added", "added".getBytes(StandardCharsets.UTF_8));
+
+        try (ZipWriter out = ZipWriter.append(file, 1)) {
+            out.removeEntry(removed);
+            try (OutputStream entryOut = out.putNextEntry(replaced)) {
+                entryOut.write(entries.get(replaced));
+            }
+            try (OutputStream entryOut = out.putNextEntry("added")) {
+                entryOut.write(entries.get("added"));
+            }
+        }
+        assertZipFile(entries);
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertNull(zipFile.getEntry(removed));
+        }
+
+        // The file shrinks if the new central directory is smaller than the old one
+        try (ZipWriter out = ZipWriter.append(file, 1)) {
+            for (String name : entries.keySet()) {
+                out.removeEntry(name);
+            }
+        }
+        assertZipFile(Collections.emptyMap());
+    }
+
+    @Test
+    public void zip64EntryCount() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipWriter out = new ZipWriter(new FileOutputStream(file))) {
+            for (int i = 0; i < 0x10000 + 10; i++) {
+                byte[] data = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                ZipEntry entry = new ZipEntry("entry" + i);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCompressedSize(data.length);
+                entry.setCrc(crc.getValue());
+                out.putRawEntry(entry, new ByteArrayInputStream(data));
+                entries.put(entry.getName(), data);
+            }
+        }
+        assertZipFile(entries);
+
+        // Appending needs to find the zip64 end of central directory as well
+        entries.put("added", "added".getBytes(StandardCharsets.UTF_8));
+        try (ZipWriter out = ZipWriter.append(file, 1)) {
+            try (OutputStream entryOut = out.putNextEntry("added")) {
+                entryOut.write(entries.get("added"));
+            }
+        }
+        assertZipFile(entries);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar;
+
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.lib.viaversion.api.protocol.packet.State;
+import com.replaymod.replaystudio.lib.viaversion.api.protocol.version.ProtocolVersion;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.protocol.packets.PacketJoinGame;
+import com.replaymod.replaystudio.protocol.packets.SpawnEntity;
+import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.replaymod.replaystudio.util.Location;
+import com.replaymod.replaystudio.util.PacketUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RandomAccessReplayTest {
+    private static final PacketTypeRegistry REGISTRY = PacketTypeRegistry.get(ProtocolVersion.v1_12_2, State.PLAY);
+    private static final int DURATION = 100_000;
+    private static final int CHECKPOINT_INTERVAL = 10_000;
+
+    private final ReplayStudio studio = new ReplayStudio();
+    private File folder;
+
+    @Before
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("replaystudio-test").toFile();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Generates the raw packet data of a recording in which entities randomly spawn, move and despawn.
+     */
+    private static byte[] generateRecording(Random random) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ReplayOutputStream out = new ReplayOutputStream(bytes)) {
+            PacketJoinGame joinGame = new PacketJoinGame();
+            joinGame.entityId = 1;
+            joinGame.dimension = "0";
+            joinGame.dimensionType = new DimensionType("default");
+            joinGame.maxPlayers = 20;
+            out.write(0, joinGame.write(REGISTRY));
+
+            List<Integer> alive = new ArrayList<>();
+            int nextId = 2;
+            for (int time = 0; time < DURATION; time += random.nextInt(50)) {
+                int action = random.nextInt(10);
+                if (alive.isEmpty() || action == 0) {
+                    int entityId = nextId++;
+                    alive.add(entityId);
+                    out.write(time, spawnMob(entityId, randomLocation(random)));
+                } else if (action == 1) {
+                    int entityId = alive.remove(random.nextInt(alive.size()));
+                    out.write(time, PacketDestroyEntities.write(REGISTRY, entityId));
+                } else {
+                    int entityId = alive.get(random.nextInt(alive.size()));
+                    out.write(time, PacketEntityTeleport.write(REGISTRY, entityId, randomLocation(random), false));
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Location randomLocation(Random random) {
+        // Angles are not compared, their lossy quantization is not what is being tested here
+        return new Location(random.nextInt(4000) / 8.0 - 250, random.nextInt(256), random.nextInt(4000) / 8.0 - 250);
+    }
+
+    private static Packet spawnMob(int entityId, Location location) throws IOException {
+        Packet packet = new Packet(REGISTRY, PacketType.SpawnMob);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeVarInt(entityId);
+            out.writeUUID(new UUID(0, entityId));
+            out.writeVarInt(54); // zombie
+            out.writeDouble(location.getX());
+            out.writeDouble(location.getY());
+            out.writeDouble(location.getZ());
+            out.writeByte(0); // yaw
+            out.writeByte(0); // pitch
+            out.writeByte(0); // head pitch
+            out.writeShort(0); // velocity
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeByte(0xff); // end of metadata
+        }
+        return packet;
+    }
+
+    /**
+     * Returns the offset of the first frame in the raw packet data which starts at or after the given offset.
+     */
+    private static int frameOffset(byte[] recording, int minOffset) {
+        ByteBuffer buf = ByteBuffer.wrap(recording);
+        int offset = 0;
+        while (offset < minOffset) {
+            offset += 8 + buf.getInt(offset + 4);
+        }
+        return offset;
+    }
+
+    private void create(File file, byte[] recording) throws IOException {
+        try (ReplayFile replayFile = new ZipReplayFile(studio, file)) {
+            ReplayMetaData metaData = new ReplayMetaData();
+            metaData.setDuration(DURATION);
+            replayFile.writeMetaData(REGISTRY, metaData);
+            try (ReplayOutputStream out = replayFile.writePacketData()) {
+                out.write(recording, 0, recording.length);
+            }
+            replayFile.save();
+        }
+    }
+
+    /**
+     * Seeks both replays forwards and backwards across the whole recording, in steps small enough to only ever switch
+     * to neighbouring segments, and checks that they always show the same entities.
+     */
+    private static void assertSameSeeks(TestReplay expected, TestReplay actual) throws IOException {
+        expected.reset();
+        actual.reset();
+        int step = CHECKPOINT_INTERVAL / 7;
+        int maxEntities = 0;
+        for (int time = 0; time <= DURATION; time += step) {
+            assertSameSeek(expected, actual, time);
+            maxEntities = Math.max(maxEntities, expected.entities.size());
+        }
+        for (int time = DURATION; time >= 0; time -= step) {
+            assertSameSeek(expected, actual, time);
+        }
+        assertTrue("Recording should have entities", maxEntities > 0);
+    }
+
+    private static void assertSameSeek(TestReplay expected, TestReplay actual, int time) throws IOException {
+        expected.seek(time);
+        actual.seek(time);
+        assertEquals("Entities at " + time, expected.entities, actual.entities);
+    }
+
+    @Test
+    public void resumedAnalysisMatchesFreshOne() throws IOException {
+        byte[] recording = generateRecording(new Random(0));
+        File freshFile = new File(folder, "fresh.mcpr");
+        File resumedFile = new File(folder, "resumed.mcpr");
+        create(freshFile, recording);
+        create(resumedFile, recording);
+
+        try (ReplayFile replayFile = new ZipReplayFile(studio, resumedFile)) {
+            TestReplay replay = new TestReplay(replayFile);
+            replay.setCheckpointInterval(CHECKPOINT_INTERVAL);
+            try {
+                replay.load(progress -> {
+                    if (progress > 0.5) {
+                        throw new CancellationException("Interrupting analysis");
+                    }
+                });
+                fail("Analysis should have been interrupted");
+            } catch (CancellationException ignored) {
+            }
+            replay.release();
+        }
+
+        try (ReplayFile freshReplayFile = new ZipReplayFile(studio, freshFile);
+             ReplayFile resumedReplayFile = new ZipReplayFile(studio, resumedFile)) {
+            TestReplay fresh = new TestReplay(freshReplayFile);
+            fresh.load(progress -> {});
+
+            TestReplay resumed = new TestReplay(resumedReplayFile);
+            resumed.setCheckpointInterval(CHECKPOINT_INTERVAL);
+            double[] firstProgress = {-1};
+            resumed.load(progress -> {
+                if (firstProgress[0] < 0) {
+                    firstProgress[0] = progress;
+                }
+            });
+            assertTrue("Analysis should have been resumed", firstProgress[0] > 0.4);
+
+            assertSameSeeks(fresh, resumed);
+            fresh.release();
+            resumed.release();
+        }
+    }
+
+    @Test
+    public void extendedAnalysisMatchesFreshOne() throws IOException {
+        byte[] recording = generateRecording(new Random(1));
+        File freshFile = new File(folder, "fresh.mcpr");
+        File extendedFile = new File(folder, "extended.mcpr");
+        create(freshFile, recording);
+        // Frames are cut apart at random, so there are usually more packets with the last time of the first part
+        create(extendedFile, Arrays.copyOf(recording, frameOffset(recording, recording.length / 2)));
+
+        try (ReplayFile replayFile = new ZipReplayFile(studio, extendedFile)) {
+            TestReplay replay = new TestReplay(replayFile);
+            replay.load(progress -> {});
+            replay.release();
+
+            // Merely appends to the previous recording, so its cache is kept
+            try (ReplayOutputStream out = replayFile.writePacketData()) {
+                out.write(recording, 0, recording.length);
+            }
+            replayFile.save();
+        }
+
+        try (ReplayFile freshReplayFile = new ZipReplayFile(studio, freshFile);
+             ReplayFile extendedReplayFile = new ZipReplayFile(studio, extendedFile)) {
+            TestReplay fresh = new TestReplay(freshReplayFile);
+            fresh.load(progress -> {});
+
+            TestReplay extended = new TestReplay(extendedReplayFile);
+            double[] firstProgress = {-1};
+            extended.load(progress -> {
+                if (firstProgress[0] < 0) {
+                    firstProgress[0] = progress;
+                }
+            });
+            assertTrue("Analysis should have been extended", firstProgress[0] > 0.3);
+
+            assertSameSeeks(fresh, extended);
+            fresh.release();
+            extended.release();
+        }
+    }
+
+    /**
+     * Keeps track of the entities the client would see.
+     */
+    private static class TestReplay extends RandomAccessReplay {
+        private final Map<Integer, Location> entities = new HashMap<>();
+
+        TestReplay(ReplayFile replayFile) {
+            super(replayFile, REGISTRY);
+        }
+
+        @Override
+        protected void dispatch(Packet packet) {
+            try {
+                switch (packet.getType()) {
+                    case JoinGame:
+                    case Respawn:
+                        entities.clear();
+                        break;
+                    case SpawnMob:
+                        entities.put(PacketUtils.getEntityId(packet), SpawnEntity.getLocation(packet));
+                        break;
+                    case EntityTeleport:
+                        entities.put(PacketUtils.getEntityId(packet), PacketEntityTeleport.getLocation(packet));
+                        break;
+                    case DestroyEntities:
+                        PacketDestroyEntities.getEntityIds(packet).forEach(entities::remove);
+                        break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                packet.release();
+            }
+        }
+    }
+}
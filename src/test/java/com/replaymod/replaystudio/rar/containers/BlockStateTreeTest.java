@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.containers;
+
+import com.github.steveice10.netty.buffer.Unpooled;
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.github.steveice10.opennbt.tag.builtin.IntTag;
+import com.replaymod.replaystudio.lib.viaversion.api.protocol.packet.State;
+import com.replaymod.replaystudio.lib.viaversion.api.protocol.version.ProtocolVersion;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.cache.ReadableCache;
+import com.replaymod.replaystudio.rar.cache.WriteableCache;
+import com.replaymod.replaystudio.util.IPosition;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the block states a client ends up with after seeking through a {@link BlockStateTree} against simply
+ * applying all changes up to the target time one after another.
+ */
+public class BlockStateTreeTest {
+    private static final int CHUNK_X = -3;
+    private static final int CHUNK_Z = 5;
+
+    private static PacketTypeRegistry registry(ProtocolVersion version) {
+        return PacketTypeRegistry.get(version, State.PLAY);
+    }
+
+    private static DimensionType dimensionType(PacketTypeRegistry registry) {
+        if (registry.olderThan(ProtocolVersion.v1_18)) {
+            return new DimensionType("minecraft:overworld");
+        }
+        CompoundTag tag = new CompoundTag();
+        tag.put("min_y", new IntTag(-64));
+        tag.put("height", new IntTag(384));
+        return new DimensionType(tag, "minecraft:overworld", 0);
+    }
+
+    /**
+     * Highest block state id the given version can send in a block change packet (and the tree can store).
+     */
+    private static int maxState(PacketTypeRegistry registry) {
+        return registry.olderThan(ProtocolVersion.v1_16_2) ? 0xffff : (1 << 21) - 1;
+    }
+
+    @Test
+    public void testMatchesSequentialChanges_1_12_2() throws IOException {
+        testMatchesSequentialChanges(ProtocolVersion.v1_12_2);
+    }
+
+    @Test
+    public void testMatchesSequentialChanges_1_16_2() throws IOException {
+        testMatchesSequentialChanges(ProtocolVersion.v1_16_2);
+    }
+
+    @Test
+    public void testMatchesSequentialChanges_1_20() throws IOException {
+        testMatchesSequentialChanges(ProtocolVersion.v1_20);
+    }
+
+    private void testMatchesSequentialChanges(ProtocolVersion version) throws IOException {
+        PacketTypeRegistry registry = registry(version);
+        DimensionType dimensionType = dimensionType(registry);
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+
+            // Few positions and states, so they are changed many times (which makes checkpoints worth it for most
+            // seeds) and changes at the same time may cancel each other out
+            List<IPosition> positions = new ArrayList<>();
+            for (int i = 1 + random.nextInt(60); i > 0; i--) {
+                int y = dimensionType.getMinY() + random.nextInt(dimensionType.getHeight());
+                positions.add(new IPosition(CHUNK_X << 4 | random.nextInt(16), y, CHUNK_Z << 4 | random.nextInt(16)));
+            }
+            int[] states = new int[1 + random.nextInt(20)];
+            for (int i = 1; i < states.length; i++) {
+                states[i] = random.nextBoolean() ? random.nextInt(100) : random.nextInt(maxState(registry) + 1);
+            }
+            states[states.length - 1] = maxState(registry);
+
+            TreeMap<Integer, List<PacketBlockChange>> changes = new TreeMap<>();
+            int changesPerTime = 1 + random.nextInt(10);
+            for (int time = 0; time < 2000; time += 10) {
+                List<PacketBlockChange> changesAtTime = new ArrayList<>();
+                for (int i = random.nextInt(changesPerTime); i > 0; i--) {
+                    IPosition pos = positions.get(random.nextInt(positions.size()));
+                    changesAtTime.add(new PacketBlockChange(pos, states[random.nextInt(states.length)]));
+                }
+                changes.put(time, changesAtTime);
+            }
+
+            BlockStateTree.Builder builder = new BlockStateTree.Builder(registry, dimensionType, new PacketChunkData.Column(
+                    CHUNK_X, CHUNK_Z, new PacketChunkData.Chunk[0], null, null, null, null, false, null));
+            for (Map.Entry<Integer, List<PacketBlockChange>> entry : changes.entrySet()) {
+                for (PacketBlockChange change : entry.getValue()) {
+                    builder.update(entry.getKey(), change);
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int index;
+            try (WriteableCache cache = new WriteableCache(bytes)) {
+                index = builder.build(cache);
+            }
+
+            Map<IPosition, Integer> client = new HashMap<>();
+            PacketSink sink = packet -> {
+                try {
+                    apply(registry, packet, client);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    packet.release();
+                }
+            };
+            BlockStateTree tree = new BlockStateTree(registry, index);
+            ReadableCache cache = new ReadableCache(Unpooled.wrappedBuffer(bytes.toByteArray()));
+            try {
+                tree.load(sink, cache);
+                int currentTime = -1;
+                for (int step = 0; step < 100; step++) {
+                    // Mostly short steps, which apply changes directly, and some long jumps via checkpoints
+                    int targetTime = random.nextInt(4) == 0
+                            ? random.nextInt(2100) - 1
+                            : Math.max(-1, currentTime + random.nextInt(200) - 100);
+                    if (targetTime > currentTime) {
+                        tree.play(sink, currentTime, targetTime);
+                    } else {
+                        tree.rewind(sink, currentTime, targetTime);
+                    }
+                    currentTime = targetTime;
+
+                    Map<IPosition, Integer> expected = new HashMap<>();
+                    for (List<PacketBlockChange> changesAtTime : changes.headMap(targetTime, true).values()) {
+                        for (PacketBlockChange change : changesAtTime) {
+                            expected.put(change.getPosition(), change.getId());
+                        }
+                    }
+                    for (IPosition pos : positions) {
+                        assertEquals("Seed " + seed + ", step " + step + " to " + targetTime + ", " + pos,
+                                expected.getOrDefault(pos, 0), client.getOrDefault(pos, 0));
+                    }
+                }
+                tree.unload(sink, cache);
+            } finally {
+                cache.release();
+            }
+        }
+    }
+
+    /**
+     * Applies a block change packet sent by the tree to the given client state, checking that multi block changes only
+     * contain positions which fit into a single packet.
+     */
+    private static void apply(PacketTypeRegistry registry, Packet packet, Map<IPosition, Integer> client) throws IOException {
+        assertTrue(packet.getType() == PacketType.BlockChange || packet.getType() == PacketType.MultiBlockChange);
+        List<PacketBlockChange> changes = PacketBlockChange.readSingleOrBulk(packet);
+        IPosition first = changes.get(0).getPosition();
+        for (PacketBlockChange change : changes) {
+            IPosition pos = change.getPosition();
+            assertEquals(CHUNK_X, pos.getX() >> 4);
+            assertEquals(CHUNK_Z, pos.getZ() >> 4);
+            if (registry.atLeast(ProtocolVersion.v1_16_2)) {
+                assertEquals(first.getY() >> 4, pos.getY() >> 4);
+            }
+            client.put(pos, change.getId());
+        }
+    }
+
+    @Test
+    public void testBulkRoundTrip() throws IOException {
+        for (ProtocolVersion version : new ProtocolVersion[]{ProtocolVersion.v1_8, ProtocolVersion.v1_16_2, ProtocolVersion.v1_20}) {
+            PacketTypeRegistry registry = registry(version);
+            DimensionType dimensionType = dimensionType(registry);
+            Random random = new Random(0);
+            for (int sectionY = dimensionType.getMinSectionY(); sectionY < dimensionType.getMinSectionY() + dimensionType.getSections(); sectionY++) {
+                List<PacketBlockChange> changes = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    // Prior to 1.16.2, one packet covers the whole column
+                    int y = registry.olderThan(ProtocolVersion.v1_16_2)
+                            ? random.nextInt(dimensionType.getHeight())
+                            : sectionY << 4 | random.nextInt(16);
+                    IPosition pos = new IPosition(CHUNK_X << 4 | random.nextInt(16), y, CHUNK_Z << 4 | random.nextInt(16));
+                    changes.add(new PacketBlockChange(pos, i == 0 ? maxState(registry) : random.nextInt(maxState(registry) + 1)));
+                }
+
+                Packet packet = PacketBlockChange.writeBulk(registry, changes);
+                List<PacketBlockChange> result;
+                try {
+                    result = PacketBlockChange.readBulk(packet);
+                } finally {
+                    packet.release();
+                }
+
+                assertEquals(changes.size(), result.size());
+                for (int i = 0; i < changes.size(); i++) {
+                    String message = version + ", section " + sectionY + ", change " + i;
+                    assertEquals(message, changes.get(i).getPosition(), result.get(i).getPosition());
+                    assertEquals(message, changes.get(i).getId(), result.get(i).getId());
+                }
+            }
+        }
+    }
+}
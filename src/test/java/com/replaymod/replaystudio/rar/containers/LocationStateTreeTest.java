@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.containers;
+
+import com.github.steveice10.netty.buffer.Unpooled;
+import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.cache.ReadableCache;
+import com.replaymod.replaystudio.rar.cache.WriteableCache;
+import com.replaymod.replaystudio.util.Location;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LocationStateTreeTest {
+    private static final int INTERVAL = 50;
+    private static final double MAX_ANGLE_ERROR = 360.0 / 65536 / 2;
+
+    /**
+     * Writes the locations at consecutive times, reads them back in and plays through all of them.
+     */
+    private static List<Location> roundTrip(Location... locations) throws IOException {
+        LocationStateTree.Builder builder = new LocationStateTree.Builder();
+        for (int i = 0; i < locations.length; i++) {
+            builder.put(i * INTERVAL, locations[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int index;
+        try (WriteableCache cache = new WriteableCache(bytes)) {
+            index = builder.build(cache);
+        }
+
+        List<Location> result = new ArrayList<>();
+        LocationStateTree tree = LocationStateTree.withApply(index, (sink, location) -> result.add(location));
+        PacketSink sink = packet -> {};
+        ReadableCache cache = new ReadableCache(Unpooled.wrappedBuffer(bytes.toByteArray()));
+        try {
+            tree.load(sink, cache);
+            for (int i = 0; i < locations.length; i++) {
+                tree.play(sink, i * INTERVAL - 1, i * INTERVAL);
+            }
+            tree.unload(sink, cache);
+        } finally {
+            cache.release();
+        }
+        return result;
+    }
+
+    private static void assertRoundTrip(Location... locations) throws IOException {
+        List<Location> result = roundTrip(locations);
+        assertEquals(locations.length, result.size());
+        for (int i = 0; i < locations.length; i++) {
+            Location expected = locations[i];
+            Location actual = result.get(i);
+            assertEquals("x of " + expected, expected.getX(), actual.getX(), 0);
+            assertEquals("y of " + expected, expected.getY(), actual.getY(), 0);
+            assertEquals("z of " + expected, expected.getZ(), actual.getZ(), 0);
+            assertAngle("yaw of " + expected, expected.getYaw(), actual.getYaw());
+            assertAngle("pitch of " + expected, expected.getPitch(), actual.getPitch());
+        }
+    }
+
+    /**
+     * Angles only need to survive modulo a full turn, as that is all the client can tell apart.
+     */
+    private static void assertAngle(String message, float expected, float actual) {
+        double difference = ((expected - actual) % 360 + 540) % 360 - 180;
+        assertEquals(message, 0, difference, MAX_ANGLE_ERROR);
+    }
+
+    @Test
+    public void testFixedPoint() throws IOException {
+        assertRoundTrip(
+                new Location(0, 64, 0),
+                new Location(0.5, 64.0625, -0.25),
+                new Location(1 / 4096.0, 63 + 4095 / 4096.0, -1 / 4096.0),
+                new Location(0.5, 64.0625, -0.25)
+        );
+    }
+
+    @Test
+    public void testNegative() throws IOException {
+        assertRoundTrip(
+                new Location(-0.03125, -64, -1234.5),
+                new Location(-1234.5, -0.03125, -64),
+                new Location(-1, -1, -1)
+        );
+    }
+
+    @Test
+    public void testNotFixedPoint() throws IOException {
+        assertRoundTrip(
+                new Location(1 / 3.0, 64.1, -0.7),
+                new Location(1 / 8192.0, -1e-9, 0.1 + 0.2),
+                new Location(0.5, 64, -0.25),
+                new Location(1 / 3.0 + 1, 64.1, -0.7)
+        );
+    }
+
+    @Test
+    public void testLarge() throws IOException {
+        assertRoundTrip(
+                new Location(29999999.5, -30000000, 1e7 + 1 / 4096.0),
+                new Location(-29999999.5, 30000000, 0),
+                new Location(Math.pow(2, 50), -Math.pow(2, 50), 1e20),
+                new Location(0, 0, 0),
+                new Location(Double.MAX_VALUE, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY),
+                new Location(1, -1, 0.5)
+        );
+    }
+
+    @Test
+    public void testAngles() throws IOException {
+        assertRoundTrip(
+                new Location(0, 0, 0, 0, 0),
+                new Location(0, 0, 0, 179.9f, -90),
+                new Location(0, 0, 0, -180, 90),
+                new Location(0, 0, 0, 12.345f, -45.678f),
+                new Location(0, 0, 0, 270, 0),
+                new Location(0, 0, 0, -270.5f, 0),
+                new Location(0, 0, 0, 720 + 45, 0),
+                new Location(0, 0, 0, -3600 - 30.25f, 0)
+        );
+    }
+}
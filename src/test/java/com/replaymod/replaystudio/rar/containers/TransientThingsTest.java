@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.containers;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.io.stream.StreamNetInput;
+import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.cache.ReadableCache;
+import com.replaymod.replaystudio.rar.state.TransientThing;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the indexed lookups of {@link TransientThings} against the linear scans it used before.
+ */
+public class TransientThingsTest {
+    private static final PacketSink SINK = packet -> {};
+
+    @Test
+    public void testMatchesLinearScan() throws IOException {
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            int count = 1 + random.nextInt(40);
+            int[] spawnTimes = new int[count];
+            int[] despawnTimes = new int[count];
+            for (int i = 0; i < count; i++) {
+                // Coarse times, so many things share their spawn or despawn time, and some are never alive at all
+                spawnTimes[i] = random.nextInt(20) * 10;
+                despawnTimes[i] = spawnTimes[i] + random.nextInt(11) * 10;
+            }
+
+            Log indexedLog = new Log();
+            List<TransientThing> indexedThings = new ArrayList<>();
+            Log linearLog = new Log();
+            LinearThings linear = new LinearThings();
+            for (int i = 0; i < count; i++) {
+                indexedThings.add(new TestThing(i, spawnTimes[i], despawnTimes[i], indexedLog));
+                linear.add(new TestThing(i, spawnTimes[i], despawnTimes[i], linearLog));
+            }
+            TransientThings indexed = new TransientThings(null, 0);
+            indexed.index(indexedThings);
+
+            int currentTime = -1;
+            for (int step = 0; step < 200; step++) {
+                if (random.nextInt(10) == 0) {
+                    currentTime = random.nextInt(320) - 1; // forces a recomputation of the active things
+                }
+                int targetTime = random.nextInt(320) - 1;
+                if (targetTime == currentTime) {
+                    continue;
+                }
+                String message = "seed " + seed + ", step " + step + ": " + currentTime + " -> " + targetTime;
+
+                if (targetTime > currentTime) {
+                    indexed.play(SINK, currentTime, targetTime);
+                    linear.play(currentTime, targetTime);
+                } else {
+                    indexed.rewind(SINK, currentTime, targetTime);
+                    linear.rewind(currentTime, targetTime);
+                }
+                assertEquals(message, linearLog.loads, indexedLog.loads);
+                assertEquals(message, linearLog.unloads, indexedLog.unloads);
+                assertEquals(message, linear.getActive(), indexedLog.active);
+                indexedLog.clear();
+                linearLog.clear();
+                currentTime = targetTime;
+            }
+        }
+    }
+
+    @Test
+    public void testUnloadReleasesAllActive() throws IOException {
+        Log log = new Log();
+        List<TransientThing> things = new ArrayList<>();
+        things.add(new TestThing(0, 0, 100, log));
+        things.add(new TestThing(1, 50, 60, log));
+        things.add(new TestThing(2, 10, 10, log));
+        TransientThings indexed = new TransientThings(null, 0);
+        indexed.index(things);
+
+        indexed.play(SINK, -1, 55);
+        assertEquals(set(0, 1), log.active);
+        indexed.unload(SINK, null);
+        assertTrue(log.active.isEmpty());
+    }
+
+    private static Set<Integer> set(Integer... ids) {
+        Set<Integer> set = new HashSet<>();
+        Collections.addAll(set, ids);
+        return set;
+    }
+
+    /**
+     * Records which things are loaded and unloaded.
+     */
+    private static class Log {
+        private final List<Integer> loads = new ArrayList<>();
+        private final Set<Integer> unloads = new HashSet<>();
+        private final Set<Integer> active = new HashSet<>();
+
+        void clear() {
+            loads.clear();
+            unloads.clear();
+        }
+    }
+
+    private static class TestThing extends TransientThing {
+        private final int id;
+        private final Log log;
+
+        TestThing(int id, int spawnTime, int despawnTime, Log log) throws IOException {
+            super(null, lifetime(spawnTime, despawnTime));
+            this.id = id;
+            this.log = log;
+        }
+
+        private static NetInput lifetime(int spawnTime, int despawnTime) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            NetOutput out = new StreamNetOutput(bytes);
+            out.writeVarInt(spawnTime);
+            out.writeVarInt(despawnTime);
+            out.writeVarInt(0); // spawn packets
+            out.writeVarInt(0); // despawn packets
+            return new StreamNetInput(new ByteArrayInputStream(bytes.toByteArray()));
+        }
+
+        @Override
+        public void load(PacketSink sink, ReadableCache cache) {
+            assertTrue("thing " + id + " loaded twice", log.active.add(id));
+            if (sink == SINK) {
+                log.loads.add(id);
+            }
+        }
+
+        @Override
+        public void unload(PacketSink sink, ReadableCache cache) {
+            assertTrue("thing " + id + " unloaded while not loaded", log.active.remove(id));
+            if (sink == SINK) {
+                log.unloads.add(id);
+            }
+        }
+
+        @Override
+        public void play(PacketSink sink, int currentTimeStamp, int targetTime) {
+            assertFalse(spawnTime > targetTime || despawnTime <= targetTime);
+        }
+
+        @Override
+        public void rewind(PacketSink sink, int currentTimeStamp, int targetTime) {
+            assertFalse(spawnTime > targetTime || despawnTime <= targetTime);
+        }
+    }
+
+    /**
+     * The tree map and active list based implementation {@link TransientThings} used before it was indexed.
+     */
+    private static class LinearThings {
+        private final TreeMap<Integer, Collection<TestThing>> thingSpawns = new TreeMap<>();
+        private final TreeMap<Integer, Collection<TestThing>> thingDespawns = new TreeMap<>();
+        private int activeThingsTime = -1;
+        private final List<TestThing> activeThings = new LinkedList<>();
+
+        void add(TestThing thing) {
+            thingSpawns.computeIfAbsent(thing.spawnTime, k -> new ArrayList<>()).add(thing);
+            thingDespawns.computeIfAbsent(thing.despawnTime, k -> new ArrayList<>()).add(thing);
+        }
+
+        Set<Integer> getActive() {
+            Set<Integer> ids = new HashSet<>();
+            for (TestThing thing : activeThings) {
+                ids.add(thing.id);
+            }
+            return ids;
+        }
+
+        private void computeActiveThings(int time) {
+            if (time == activeThingsTime) {
+                return;
+            }
+            for (TestThing activeThing : activeThings) {
+                activeThing.unload(Packet::release, null);
+            }
+            activeThings.clear();
+
+            for (Collection<TestThing> things : thingSpawns.subMap(-1, false, time, true).values()) {
+                for (TestThing thing : things) {
+                    if (thing.despawnTime > time) {
+                        thing.load(Packet::release, null);
+                        activeThings.add(thing);
+                    }
+                }
+            }
+
+            activeThingsTime = time;
+        }
+
+        void play(int currentTimeStamp, int targetTime) {
+            computeActiveThings(currentTimeStamp);
+
+            Iterator<TestThing> activeIter = activeThings.iterator();
+            while (activeIter.hasNext()) {
+                TestThing thing = activeIter.next();
+                if (thing.despawnTime <= targetTime) {
+                    thing.unload(SINK, null);
+                    activeIter.remove();
+                }
+            }
+
+            for (Collection<TestThing> things : thingSpawns.subMap(currentTimeStamp, false, targetTime, true).values()) {
+                for (TestThing thing : things) {
+                    if (thing.despawnTime > targetTime) {
+                        thing.load(SINK, null);
+                        activeThings.add(thing);
+                    }
+                }
+            }
+
+            activeThingsTime = targetTime;
+        }
+
+        void rewind(int currentTimeStamp, int targetTime) {
+            computeActiveThings(currentTimeStamp);
+
+            Iterator<TestThing> activeIter = activeThings.iterator();
+            while (activeIter.hasNext()) {
+                TestThing thing = activeIter.next();
+                if (thing.spawnTime > targetTime) {
+                    thing.unload(SINK, null);
+                    activeIter.remove();
+                }
+            }
+
+            for (Collection<TestThing> things : thingDespawns.subMap(targetTime, false, currentTimeStamp, true).values()) {
+                for (TestThing thing : things) {
+                    if (thing.spawnTime <= targetTime) {
+                        thing.load(SINK, null);
+                        activeThings.add(thing);
+                    }
+                }
+            }
+
+            activeThingsTime = targetTime;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.replay;
+
+import com.replaymod.replaystudio.io.BlockCompressedStreamTest;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DirectoryReplayFileTest {
+    private final ReplayStudio studio = new ReplayStudio();
+    private File folder;
+
+    @Before
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("replaystudio-test").toFile();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static void write(ReplayFile replayFile, String entry, String content) throws IOException {
+        try (OutputStream out = replayFile.write(entry)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String read(ReplayFile replayFile, String entry) throws IOException {
+        try (InputStream in = replayFile.get(entry).get()) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void unfinishedWritesAreDiscarded() throws IOException {
+        File directory = new File(folder, "replay");
+        try (ReplayFile replayFile = new DirectoryReplayFile(studio, directory)) {
+            write(replayFile, "a", "old a");
+            write(replayFile, "b", "old b");
+
+            replayFile.write("a").write("new a".getBytes(StandardCharsets.UTF_8));
+            replayFile.write("b").write("new b".getBytes(StandardCharsets.UTF_8));
+            replayFile.write("c").write("new c".getBytes(StandardCharsets.UTF_8));
+            replayFile.remove("b");
+        }
+
+        try (ReplayFile replayFile = new DirectoryReplayFile(studio, directory)) {
+            assertEquals("old a", read(replayFile, "a"));
+            assertFalse(replayFile.get("b").isPresent());
+            assertFalse(replayFile.get("c").isPresent());
+        }
+        assertFalse(new File(folder, "replay.tmp").exists());
+    }
+
+    @Test
+    public void exportStoresRecordingBlocks() throws IOException {
+        byte[] raw = BlockCompressedStreamTest.generateFrames(new Random(0), 5000, new ArrayList<>(), new ArrayList<>());
+        File zip = new File(folder, "export.mcpr");
+        try (ReplayFile replayFile = new DirectoryReplayFile(studio, new File(folder, "replay"))) {
+            ReplayMetaData metaData = new ReplayMetaData();
+            metaData.setFileFormatVersion(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
+            replayFile.writeMetaData(null, metaData);
+            try (ReplayOutputStream out = replayFile.writePacketData(true)) {
+                out.write(raw, 0, raw.length);
+            }
+            replayFile.saveTo(zip);
+        }
+
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("recording.tmcpr.blocks").getMethod());
+        }
+        try (ReplayFile replayFile = new ZipReplayFile(studio, zip);
+             InputStream in = replayFile.getRawPacketData(0)) {
+            assertArrayEquals(raw, ByteStreams.toByteArray(in));
+        }
+    }
+}
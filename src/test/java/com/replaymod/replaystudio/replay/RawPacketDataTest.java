@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2024
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.replay;
+
+import com.replaymod.replaystudio.io.BlockCompressedStreamTest;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.lib.guava.io.ByteStreams;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RawPacketDataTest {
+    private final ReplayStudio studio = new ReplayStudio();
+    private final List<Integer> times = new ArrayList<>();
+    private final List<Integer> offsets = new ArrayList<>();
+    private File folder;
+    private byte[] raw;
+
+    @Before
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("replaystudio-test").toFile();
+        // Large enough to span multiple blocks of the default block size
+        raw = BlockCompressedStreamTest.generateFrames(new Random(0), 20000, times, offsets);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private ReplayFile create(File file, boolean blockCompressed) throws IOException {
+        ReplayFile replayFile = new ZipReplayFile(studio, file);
+        ReplayMetaData metaData = new ReplayMetaData();
+        metaData.setFileFormatVersion(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
+        replayFile.writeMetaData(null, metaData);
+        try (ReplayOutputStream out = replayFile.writePacketData(blockCompressed)) {
+            out.write(raw, 0, raw.length);
+        }
+        replayFile.save();
+        return replayFile;
+    }
+
+    private void assertRawPacketData(ReplayFile replayFile) throws IOException {
+        int lastTime = times.get(times.size() - 1);
+        for (int time = -1; time <= lastTime + 1; time += lastTime / 50) {
+            try (InputStream in = replayFile.getRawPacketData(time)) {
+                assertNotNull(in);
+                byte[] rest = ByteStreams.toByteArray(in);
+                int offset = raw.length - rest.length;
+                assertArrayEquals("Data when skipping to " + time, Arrays.copyOfRange(raw, offset, raw.length), rest);
+
+                int frame = offsets.indexOf(offset);
+                assertTrue("Skipping to " + time + " does not start at a frame", frame >= 0);
+                assertTrue("Frame before " + time + " is missing", frame == 0 || times.get(frame - 1) < time);
+                if (time > 0 && time <= lastTime) {
+                    assertTrue("Skipping to " + time + " did not skip anything", frame > 0);
+                }
+            }
+        }
+
+        try (InputStream in = replayFile.getRawPacketData(0)) {
+            assertArrayEquals(raw, ByteStreams.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void plain() throws IOException {
+        File file = new File(folder, "plain.mcpr");
+        try (ReplayFile replayFile = create(file, false)) {
+            assertRawPacketData(replayFile);
+            assertEquals(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, replayFile.getMetaData().getFileFormatVersion());
+        }
+    }
+
+    @Test
+    public void blockCompressed() throws IOException {
+        File file = new File(folder, "blocks.mcpr");
+        create(file, true).close();
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertNull(zipFile.getEntry("recording.tmcpr"));
+            assertNotNull(zipFile.getEntry("recording.tmcpr.blocks"));
+            assertNotNull(zipFile.getEntry("recording.tmcpr.blocks.index"));
+        }
+
+        try (ReplayFile replayFile = new ZipReplayFile(studio, file)) {
+            assertRawPacketData(replayFile);
+            assertNotNull("Recording index could not be built", replayFile.getRecordingIndex());
+
+            // Older readers cannot find the recording, so they must be able to tell that this replay is too new
+            int version = replayFile.getMetaData().getFileFormatVersion();
+            assertEquals(ReplayMetaData.BLOCK_COMPRESSED_FILE_FORMAT_VERSION, version);
+            assertTrue(version > ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
+            assertFalse(studio.isCompatible(ReplayMetaData.MAX_FILE_FORMAT_VERSION + 1, 47, 47));
+
+            // Converting back to the plain layout also reverts the version
+            byte[] data;
+            try (InputStream in = replayFile.getRawPacketData(0)) {
+                data = ByteStreams.toByteArray(in);
+            }
+            try (ReplayOutputStream out = replayFile.writePacketData(false)) {
+                out.write(data, 0, data.length);
+            }
+            assertEquals(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, replayFile.getMetaData().getFileFormatVersion());
+            assertRawPacketData(replayFile);
+        }
+    }
+}